@@ -0,0 +1,494 @@
+package edu.nmsu.imgflow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.io.File;
+import java.io.IOException;
+import java.io.BufferedReader;
+import java.io.FileReader;
+
+/**
+ * The inputs of a batch job: which file each of a graph's File IN nodes loads for
+ * each item of the batch.
+ *
+ * Each File IN node is bound either to a constant file, which it loads once for the
+ * whole batch (e.g. a watermark), or to a list of files, one of which it loads for
+ * each item. File IN nodes that aren't bound keep whatever file they already have,
+ * the same as a constant binding.
+ *
+ * When several File IN nodes are bound to lists, the lists are combined into items
+ * in one of three ways (see COMBINE_MODES):
+ *
+ * Zip:              the first item takes the first file of every list, the second item
+ *                   the second file of every list, etc. Extra files in longer lists are
+ *                   left out.
+ * Cartesian Product: every combination of one file from each list.
+ * Match File Names: the files of the first list are paired with the files of the other
+ *                   lists with the same name (without extension), e.g. photos/a.jpg with
+ *                   masks/a.png. Files without a match in every list are left out.
+ *
+ * Alternatively, the items can be read from a parameter table (see loadTable()): a CSV
+ * or TSV file with one row per item, which names the item's files and can override
+ * the values of node properties for that item (e.g. a different crop or composite
+ * offset for each image).
+ */
+public class BatchInputs {
+
+    /**
+     * The names of the ways of combining file lists into items
+     */
+    public static final String[] COMBINE_MODES = { "Zip", "Cartesian Product", "Match File Names" };
+
+    /**
+     * The files bound to each File IN node, in the order they were bound.
+     * A constant binding is a list of one file
+     */
+    private final LinkedHashMap<GraphNodeFileIn, List<File>> bindings = new LinkedHashMap<GraphNodeFileIn, List<File>>();
+
+    /**
+     * The File IN nodes that are bound to a constant file
+     */
+    private final ArrayList<GraphNodeFileIn> constants = new ArrayList<GraphNodeFileIn>();
+
+    /**
+     * How the file lists are combined (one of COMBINE_MODES)
+     */
+    private String combineMode = COMBINE_MODES[0];
+
+    /**
+     * The property overridden by each property column of the parameter table, in column order
+     */
+    private final ArrayList<NodeProperty<?>> overriddenProperties = new ArrayList<NodeProperty<?>>();
+
+    /**
+     * The items read from the parameter table, or null if the
+     * items are made by combining the file lists
+     */
+    private List<Item> tableItems = null;
+
+    /**
+     * Bind the given File IN node to the given file for the whole batch
+     */
+    public void bindConstant(GraphNodeFileIn node, File file) {
+        bindings.put(node, Collections.singletonList(file));
+        if (!constants.contains(node))
+            constants.add(node);
+    }
+
+    /**
+     * Bind the given File IN node to the given list of files
+     */
+    public void bindFileList(GraphNodeFileIn node, List<File> files) {
+        bindings.put(node, new ArrayList<File>(files));
+        constants.remove(node);
+    }
+
+    /**
+     * Set how file lists are combined into items (one of COMBINE_MODES)
+     */
+    public void setCombineMode(String combineMode) {
+        this.combineMode = combineMode;
+    }
+
+    /**
+     * Get the File IN nodes that are bound to a file or file list
+     */
+    public List<GraphNodeFileIn> getBoundNodes() {
+        return new ArrayList<GraphNodeFileIn>(bindings.keySet());
+    }
+
+    /**
+     * Get the File IN nodes that are bound to a file list
+     */
+    public List<GraphNodeFileIn> getListNodes() {
+        ArrayList<GraphNodeFileIn> nodes = new ArrayList<GraphNodeFileIn>(bindings.keySet());
+        nodes.removeAll(constants);
+        return nodes;
+    }
+
+    /**
+     * Get the constant file of each File IN node that is bound to one
+     */
+    public Map<GraphNodeFileIn, File> getConstants() {
+        LinkedHashMap<GraphNodeFileIn, File> files = new LinkedHashMap<GraphNodeFileIn, File>();
+        for (GraphNodeFileIn node : constants)
+            files.put(node, bindings.get(node).get(0));
+        return files;
+    }
+
+    /**
+     * Get the properties that some items override, in the
+     * order of their columns in the parameter table
+     */
+    public List<NodeProperty<?>> getOverriddenProperties() {
+        return new ArrayList<NodeProperty<?>>(overriddenProperties);
+    }
+
+    /**
+     * Get the batch's items: the rows of the parameter table if one was
+     * loaded, otherwise the file lists combined with the combine mode. Items
+     * made from files with the same names (e.g. a.jpg and a.png) are given
+     * different names (see makeUnique()), so their outputs don't overwrite
+     * each other
+     */
+    public List<Item> getItems() {
+        if (tableItems != null)
+            return new ArrayList<Item>(tableItems);
+
+        List<GraphNodeFileIn> nodes = getListNodes();
+        ArrayList<Item> items = new ArrayList<Item>();
+        if (nodes.isEmpty())
+            return items;
+
+        switch (combineMode) {
+            case "Cartesian Product": {
+                int[] indices = new int[nodes.size()];
+                for (List<File> files : bindings.values())
+                    if (files.isEmpty())
+                        return items;
+                while (true) {
+                    Item item = new Item();
+                    for (int n = 0; n < nodes.size(); n++)
+                        item.files.put(nodes.get(n), bindings.get(nodes.get(n)).get(indices[n]));
+                    items.add(item);
+
+                    // Count up through the combinations, last list fastest
+                    int n = nodes.size() - 1;
+                    while (n >= 0 && ++indices[n] == bindings.get(nodes.get(n)).size())
+                        indices[n--] = 0;
+                    if (n < 0)
+                        break;
+                }
+                break;
+            }
+            case "Match File Names": {
+                // Index the files of every list but the first by name
+                ArrayList<HashMap<String, File>> byName = new ArrayList<HashMap<String, File>>();
+                for (int n = 1; n < nodes.size(); n++) {
+                    HashMap<String, File> names = new HashMap<String, File>();
+                    for (File file : bindings.get(nodes.get(n)))
+                        names.putIfAbsent(getStem(file), file);
+                    byName.add(names);
+                }
+                for (File file : bindings.get(nodes.get(0))) {
+                    Item item = new Item();
+                    item.files.put(nodes.get(0), file);
+                    for (int n = 1; n < nodes.size(); n++) {
+                        File match = byName.get(n - 1).get(getStem(file));
+                        if (match == null)
+                            break;
+                        item.files.put(nodes.get(n), match);
+                    }
+                    if (item.files.size() == nodes.size())
+                        items.add(item);
+                }
+                break;
+            }
+            default: {
+                int length = Integer.MAX_VALUE;
+                for (GraphNodeFileIn node : nodes)
+                    length = Math.min(length, bindings.get(node).size());
+                for (int i = 0; i < length; i++) {
+                    Item item = new Item();
+                    for (GraphNodeFileIn node : nodes)
+                        item.files.put(node, bindings.get(node).get(i));
+                    items.add(item);
+                }
+                break;
+            }
+        }
+
+        ArrayList<String> names = new ArrayList<String>();
+        for (Item item : items)
+            names.add(item.getName());
+        List<String> unique = makeUnique(names);
+        for (int i = 0; i < items.size(); i++)
+            if (!unique.get(i).equals(names.get(i)))
+                items.get(i).name = unique.get(i);
+        return items;
+    }
+
+    /**
+     * Get a copy of these inputs with only the given items (from getItems()), keeping
+     * their names, e.g. for the share of a batch that one process works on
+     */
+    public BatchInputs select(List<Item> items) {
+        BatchInputs copy = new BatchInputs();
+        copy.combineMode = combineMode;
+        copy.bindings.putAll(bindings);
+        copy.constants.addAll(constants);
+        copy.overriddenProperties.addAll(overriddenProperties);
+        copy.tableItems = new ArrayList<Item>(items);
+        return copy;
+    }
+
+    /**
+     * Get the given names, with the second and later uses of a name made unique by
+     * adding a number to them (e.g. a, a, a becomes a, a_2, a_3). The same names in
+     * the same order always give the same result
+     */
+    public static List<String> makeUnique(List<String> names) {
+        HashSet<String> used = new HashSet<String>(names);
+        HashMap<String, Integer> counts = new HashMap<String, Integer>();
+        ArrayList<String> unique = new ArrayList<String>();
+        for (String name : names) {
+            int count = counts.merge(name, 1, Integer::sum);
+            if (count > 1) {
+                // Skip numbers that another name already has (e.g. a file named a_2)
+                String numbered;
+                do {
+                    numbered = name+"_"+count++;
+                } while (!used.add(numbered));
+                counts.put(name, count - 1);
+                name = numbered;
+            }
+            unique.add(name);
+        }
+        return unique;
+    }
+
+    /**
+     * Read the batch's items from the given parameter table, for the nodes of the given graph.
+     *
+     * The table is a CSV file, or a TSV file if its extension is .tsv or its header line
+     * has tabs. The first line is the header, naming each column, and every other (non-empty)
+     * line is an item. Each column is one of:
+     *
+     * A File IN node's name:         the file the node loads for the item, relative to the
+     *                                table's directory. The node is bound to the column's files.
+     * nodeName.propertyName:         the value of the named property of the named node for the
+     *                                item, as in a graph file (see NodeProperty.valueFromString()).
+     *                                An empty cell leaves the property's value as it is in the graph.
+     * name:                          the item's name (see Item.getName()). Otherwise the item
+     *                                is named after its files, or its row if it has none, and
+     *                                made unique by adding its row.
+     *
+     * Columns are matched with the graph's nodes and properties once, here, so the graph
+     * isn't looked up again for each item. CSV cells can be quoted ("a, b"), with "" for
+     * a quote inside the cell.
+     */
+    public void loadTable(File table, Graph graph) throws IOException {
+        ArrayList<String[]> rows = new ArrayList<String[]>();
+        char delimiter = ',';
+        try (BufferedReader in = new BufferedReader(new FileReader(table))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (rows.isEmpty() && (table.getName().toLowerCase().endsWith(".tsv") || line.indexOf('\t') >= 0))
+                    delimiter = '\t';
+                if (!line.trim().isEmpty())
+                    rows.add(splitRow(line, delimiter));
+            }
+        }
+        if (rows.isEmpty())
+            throw new IOException(table.getName()+" has no header");
+
+        // Match each column with a File IN node, a property, or the item name
+        String[] header = rows.get(0);
+        GraphNodeFileIn[] fileColumns = new GraphNodeFileIn[header.length];
+        NodeProperty<?>[] propertyColumns = new NodeProperty<?>[header.length];
+        int nameColumn = -1;
+        for (int c = 0; c < header.length; c++) {
+            String column = header[c].trim();
+            GraphNode node = graph.getNode(column);
+            if (node instanceof GraphNodeFileIn)
+                fileColumns[c] = (GraphNodeFileIn) node;
+            else if (column.equalsIgnoreCase("name") && nameColumn < 0)
+                nameColumn = c;
+            else if ((propertyColumns[c] = findProperty(graph, column)) == null)
+                throw new IOException("Column \""+column+"\" of "+table.getName()+
+                    " is not a File IN node or a node property");
+        }
+
+        // Nodes that were bound to file lists have to get their files from the table
+        for (GraphNodeFileIn node : getListNodes())
+            if (!Arrays.asList(fileColumns).contains(node))
+                throw new IOException(node.getName()+" is bound to a file list but has no column in "+table.getName());
+
+        File dir = table.getAbsoluteFile().getParentFile();
+        ArrayList<Item> items = new ArrayList<Item>();
+        LinkedHashMap<GraphNodeFileIn, List<File>> columnFiles = new LinkedHashMap<GraphNodeFileIn, List<File>>();
+        HashMap<String, Integer> names = new HashMap<String, Integer>();
+        for (int r = 1; r < rows.size(); r++) {
+            String[] row = rows.get(r);
+            Item item = new Item();
+            for (int c = 0; c < header.length; c++) {
+                String cell = (c < row.length) ? row[c].trim() : "";
+                if (fileColumns[c] != null) {
+                    if (cell.isEmpty())
+                        throw new IOException("Row "+r+" of "+table.getName()+" has no file for "+header[c].trim());
+                    File file = new File(cell);
+                    if (!file.isAbsolute())
+                        file = new File(dir, cell);
+                    item.files.put(fileColumns[c], file);
+                    columnFiles.computeIfAbsent(fileColumns[c], (node) -> new ArrayList<File>()).add(file);
+                }
+                else if (propertyColumns[c] != null && !cell.isEmpty()) {
+                    item.overrides.put(propertyColumns[c], cell);
+                }
+            }
+
+            // Name the item, making sure no two items have the same name
+            String name = (nameColumn >= 0 && nameColumn < row.length) ? row[nameColumn].trim() : "";
+            if (name.isEmpty())
+                name = item.files.isEmpty() ? "row"+r : item.getName();
+            if (names.merge(name, 1, Integer::sum) > 1)
+                name = name+"_"+r;
+            item.name = name;
+            items.add(item);
+        }
+
+        for (Map.Entry<GraphNodeFileIn, List<File>> column : columnFiles.entrySet())
+            bindFileList(column.getKey(), column.getValue());
+        overriddenProperties.clear();
+        for (NodeProperty<?> property : propertyColumns)
+            if (property != null && !overriddenProperties.contains(property))
+                overriddenProperties.add(property);
+        tableItems = items;
+    }
+
+    /**
+     * Make inputs for another graph with the same items as these: each of the other
+     * graph's File IN nodes that has the same name as a node bound here is bound the
+     * same way, and so are the properties overridden by the parameter table (if any).
+     * Nodes and properties the other graph doesn't have are left out. This is used to
+     * run the same batch through several graphs at once (see BatchJob.addGraph())
+     */
+    public BatchInputs copyFor(Graph graph) {
+        BatchInputs copy = new BatchInputs();
+        copy.combineMode = combineMode;
+        HashMap<GraphNodeFileIn, GraphNodeFileIn> nodes = new HashMap<GraphNodeFileIn, GraphNodeFileIn>();
+        for (Map.Entry<GraphNodeFileIn, List<File>> binding : bindings.entrySet()) {
+            GraphNode node = graph.getNode(binding.getKey().getName());
+            if (!(node instanceof GraphNodeFileIn))
+                continue;
+            nodes.put(binding.getKey(), (GraphNodeFileIn) node);
+            if (constants.contains(binding.getKey()))
+                copy.bindConstant((GraphNodeFileIn) node, binding.getValue().get(0));
+            else
+                copy.bindFileList((GraphNodeFileIn) node, binding.getValue());
+        }
+
+        if (tableItems != null) {
+            HashMap<NodeProperty<?>, NodeProperty<?>> properties = new HashMap<NodeProperty<?>, NodeProperty<?>>();
+            for (NodeProperty<?> property : overriddenProperties) {
+                NodeProperty<?> match = findProperty(graph, property.getParentNode().getName()+"."+property.getName());
+                if (match != null) {
+                    properties.put(property, match);
+                    copy.overriddenProperties.add(match);
+                }
+            }
+            copy.tableItems = new ArrayList<Item>();
+            for (Item item : tableItems) {
+                Item copied = new Item();
+                copied.name = item.name;
+                for (Map.Entry<GraphNodeFileIn, File> file : item.files.entrySet())
+                    if (nodes.containsKey(file.getKey()))
+                        copied.files.put(nodes.get(file.getKey()), file.getValue());
+                for (Map.Entry<NodeProperty<?>, String> override : item.overrides.entrySet())
+                    if (properties.containsKey(override.getKey()))
+                        copied.overrides.put(properties.get(override.getKey()), override.getValue());
+                copy.tableItems.add(copied);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Find the property named by the given "nodeName.propertyName" (ignoring case
+     * in the property name) in the given graph. Returns null if there is none
+     */
+    public static NodeProperty<?> findProperty(Graph graph, String column) {
+        int dot = column.lastIndexOf('.');
+        GraphNode node = (dot < 0) ? null : graph.getNode(column.substring(0, dot).trim());
+        if (node == null)
+            return null;
+        return node.getProperty(column.substring(dot + 1).trim());
+    }
+
+    /**
+     * Split a line of a parameter table into its cells
+     */
+    private static String[] splitRow(String line, char delimiter) {
+        ArrayList<String> cells = new ArrayList<String>();
+        StringBuilder cell = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"')
+                    cell.append(c);
+                else if (i + 1 < line.length() && line.charAt(i + 1) == '"')
+                    cell.append(line.charAt(++i));
+                else
+                    quoted = false;
+            }
+            else if (c == '"' && delimiter != '\t') {
+                quoted = true;
+            }
+            else if (c == delimiter) {
+                cells.add(cell.toString());
+                cell.setLength(0);
+            }
+            else {
+                cell.append(c);
+            }
+        }
+        cells.add(cell.toString());
+        return cells.toArray(new String[cells.size()]);
+    }
+
+    /**
+     * Get the name of the given file without its extension
+     */
+    public static String getStem(File file) {
+        return file.getName().replaceFirst("[.][^.]+$", "");
+    }
+
+    /**
+     * One item of a batch: the file each list-bound File IN node loads,
+     * and the values of any properties that are overridden for it
+     */
+    public static class Item {
+        private final LinkedHashMap<GraphNodeFileIn, File> files = new LinkedHashMap<GraphNodeFileIn, File>();
+        private final LinkedHashMap<NodeProperty<?>, String> overrides = new LinkedHashMap<NodeProperty<?>, String>();
+        private String name = null;
+
+        /**
+         * Get the file that each list-bound File IN node loads for this item
+         */
+        public Map<GraphNodeFileIn, File> getFiles() { return files; }
+
+        /**
+         * Get the value (as a string, see NodeProperty.valueFromString()) of
+         * each property that is overridden for this item
+         */
+        public Map<NodeProperty<?>, String> getOverrides() { return overrides; }
+
+        /**
+         * Name the item, e.g. as it was named in the list it was taken from
+         * (see FarmCoordinator)
+         */
+        public void setName(String name) { this.name = name; }
+
+        /**
+         * Get the name of the item, which output file names are made from: the name
+         * given in the parameter table, otherwise the name (without extension) of its
+         * file, or of each of its files joined by underscores if they have different names
+         */
+        public String getName() {
+            if (name != null)
+                return name;
+            ArrayList<String> stems = new ArrayList<String>();
+            for (File file : files.values())
+                if (!stems.contains(getStem(file)))
+                    stems.add(getStem(file));
+            return String.join("_", stems);
+        }
+    }
+}
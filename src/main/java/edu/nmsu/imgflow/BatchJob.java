@@ -0,0 +1,745 @@
+package edu.nmsu.imgflow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.io.File;
+import java.io.IOException;
+import javafx.scene.image.WritableImage;
+
+/**
+ * A batch job: runs each item of a batch (see BatchInputs) through a graph and saves
+ * the images of one or more of the graph's File OUT nodes into an output directory.
+ * This is the work behind the batch process dialog (see BatchProcess), and doesn't
+ * need the dialog (or a display) to run.
+ *
+ * File IN nodes bound to a constant file load it once at the start of the job, so
+ * it is only decoded once however many items there are. For each item, the File IN
+ * nodes bound to file lists load the item's files (unless they already have them
+ * loaded), then the image of every File OUT node is saved to the file named by the
+ * node's batch file name template (see GraphNodeFileOut.getBatchFile()). The graph
+ * is only updated once per item, so nodes that several File OUT nodes depend on
+ * (e.g. everything before a Split RGB whose channels are each saved) are only
+ * processed once, and nodes that only depend on constant files are only processed
+ * once for the whole job.
+ *
+ * Items read from a parameter table can override property values (see
+ * BatchInputs.loadTable()). The overrides are set on the graph's own properties
+ * before the item is processed and the original values are restored once the job is
+ * done, so the graph is only built once however many items there are. A property
+ * that has the same value as for the previous item isn't set again, so only the nodes
+ * down-stream of properties that actually change are processed again.
+ *
+ * A job can run the same items through several graphs (see addGraph()), e.g. web,
+ * print and thumbnail versions of the same photos, each with its own inputs and output
+ * directory. The graphs take the items in step, so each input file is only read and
+ * decoded once for all of them, and nodes that are the same in several graphs (the same
+ * type and property values, with the same files and nodes up-stream, e.g. a shared
+ * File IN -> Resize) are only processed once per item: the other graphs' copies take
+ * the images of the first one that was processed (see BatchManifest.hashNode()).
+ *
+ * Input files are read and decoded ahead of time by a PrefetchDecoder and output images
+ * are saved through a WriteBehindQueue, so reading, processing and saving overlap.
+ *
+ * The output directory's BatchManifest records which outputs are up-to-date, so
+ * running a job again only saves the outputs whose input files or up-stream graph
+ * have changed since they were last saved.
+ *
+ * Errors are reported on standard output rather than thrown, so one bad item doesn't
+ * stop the rest; once the job has run, getFailedItems() says which items failed.
+ */
+public class BatchJob {
+
+    /**
+     * The graphs the items are run through, in the order they were added
+     */
+    private final ArrayList<GraphRun> runs = new ArrayList<GraphRun>();
+
+    /**
+     * The number of this job's output images that are queued or being written
+     */
+    private int writing = 0;
+
+    /**
+     * The number of this job's output images that could not be written
+     */
+    private int writeFailures = 0;
+
+    /**
+     * Create a new BatchJob without any graphs (see addGraph())
+     */
+    public BatchJob() {}
+
+    /**
+     * Create a new BatchJob that runs the items of the given inputs through
+     * the graph and saves the images of the given File OUT nodes into the
+     * given output directory
+     */
+    public BatchJob(BatchInputs inputs, List<GraphNodeFileOut> outputNodes, File outputDir) {
+        addGraph(inputs, outputNodes, outputDir);
+    }
+
+    /**
+     * Create a new BatchJob that loads each of the given input files into the
+     * given File IN node and saves the images of the given File OUT nodes into
+     * the given output directory
+     */
+    public BatchJob(GraphNodeFileIn inputNode, List<File> inputFiles,
+            List<GraphNodeFileOut> outputNodes, File outputDir) {
+        BatchInputs inputs = new BatchInputs();
+        inputs.bindFileList(inputNode, inputFiles);
+        addGraph(inputs, outputNodes, outputDir);
+    }
+
+    /**
+     * Add a graph to the job: the items of the given inputs (which bind the graph's File
+     * IN nodes) are run through the graph, and the images of the given File OUT nodes are
+     * saved into the given output directory. Every graph takes the nth item of its inputs
+     * at the same time, so the inputs of the graphs should have the same items in the same
+     * order (see BatchInputs.copyFor()). Graphs should have different output directories
+     */
+    public void addGraph(BatchInputs inputs, List<GraphNodeFileOut> outputNodes, File outputDir) {
+        runs.add(new GraphRun(inputs, outputNodes, outputDir, null));
+    }
+
+    /**
+     * Add a graph to the job like addGraph(), but record its outputs in the given
+     * (open) manifest instead of opening the output directory's own. The manifest
+     * is left open once the job is done, so it can be used by several jobs
+     */
+    public void addGraph(BatchInputs inputs, List<GraphNodeFileOut> outputNodes, File outputDir,
+            BatchManifest manifest) {
+        runs.add(new GraphRun(inputs, outputNodes, outputDir, manifest));
+    }
+
+    /**
+     * Run the job on this thread, returning once every output has been saved.
+     * Errors are reported on standard output
+     */
+    public void run() {
+        WriteBehindQueue queue = new WriteBehindQueue();
+        try {
+            run(queue);
+        } finally {
+            try {
+                queue.finish();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Same as run(), but save the outputs through the given queue, which is
+     * left running once the job is done so it can be used by several jobs
+     * (even at once, on different threads)
+     */
+    public void run(WriteBehindQueue queue) {
+        try {
+            // Find the outputs that are out of date for each item
+            int upToDate = 0;
+            for (GraphRun run : runs) {
+                try {
+                    upToDate += run.findPending();
+                } catch (IOException e) {
+                    System.out.println("Could not read the batch manifest!");
+                    System.out.println(e.getMessage());
+                    for (GraphRun other : runs)
+                        other.failed.addAll(other.items);
+                    return;
+                }
+            }
+            if (upToDate > 0)
+                System.out.println("Skipping "+upToDate+" up-to-date output file(s).");
+
+            process(queue);
+        } finally {
+            for (GraphRun run : runs)
+                run.close();
+        }
+    }
+
+    /**
+     * Whether every output of every item is already up-to-date, so running the job
+     * would do nothing. Loads the constant files and reads the manifests as run()
+     * does, but doesn't process anything; the job shouldn't be run afterwards
+     */
+    public boolean isUpToDate() {
+        try {
+            for (GraphRun run : runs) {
+                run.findPending();
+                if (!run.failed.isEmpty())
+                    return false;
+                for (PendingItem item : run.pending)
+                    if (item != null)
+                        return false;
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            for (GraphRun run : runs)
+                run.close();
+        }
+    }
+
+    /**
+     * Get the items (of every graph) that had out-of-date outputs which were all
+     * made and saved, once the job has run. Items whose outputs were all up-to-date
+     * aren't included
+     */
+    public List<BatchInputs.Item> getSavedItems() {
+        List<BatchInputs.Item> items = new ArrayList<BatchInputs.Item>();
+        for (GraphRun run : runs)
+            synchronized (run.failed) {
+                for (PendingItem item : run.pending)
+                    if (item != null && !run.failed.contains(item.item))
+                        items.add(item.item);
+            }
+        return items;
+    }
+
+    /**
+     * Get the items (of every graph) that at least one output couldn't be made or
+     * saved for, or that weren't processed at all because of an error, once the job
+     * has run. Items whose outputs were up-to-date haven't failed
+     */
+    public List<BatchInputs.Item> getFailedItems() {
+        List<BatchInputs.Item> items = new ArrayList<BatchInputs.Item>();
+        for (GraphRun run : runs)
+            synchronized (run.failed) {
+                items.addAll(run.failed);
+            }
+        return items;
+    }
+
+    /**
+     * Process the pending items of every graph, saving their out-of-date outputs
+     * through the given queue and recording them in the graphs' manifests
+     */
+    private void process(WriteBehindQueue queue) {
+        int count = 0;
+        for (GraphRun run : runs)
+            count = Math.max(count, run.pending.size());
+
+        // With several graphs, nodes that are the same as one that has already been
+        // processed can take its images. Only the nodes down-stream of a list-bound File IN
+        // node or an overridden property can change between items, so the rest are only
+        // hashed (and grouped by hash) once
+        HashMap<GraphNode, String> fixedHashes = new HashMap<GraphNode, String>();
+        HashMap<String, List<GraphNode>> fixedTwins = new HashMap<String, List<GraphNode>>();
+        ArrayList<GraphNode> varying = new ArrayList<GraphNode>();
+        if (runs.size() > 1)
+            hashFixedNodes(fixedHashes, fixedTwins, varying);
+
+        // Output images are encoded and written on the queue's writer threads
+        // while the next item is being processed
+        HashMap<List<Object>, PrefetchDecoder> prefetchers = null;
+        int i = 0;
+        try {
+            for (; i < count; i++) {
+                ArrayList<GraphRun> active = new ArrayList<GraphRun>();
+                for (GraphRun run : runs)
+                    if (i < run.pending.size() && run.pending.get(i) != null)
+                        active.add(run);
+                if (active.isEmpty())
+                    continue;
+
+                // After the first item, the files of the rest are read and decoded ahead of
+                // time, with the request each File IN node's file was decoded with for the
+                // first item. Graphs that load the same files for the same items share a
+                // prefetcher, which only gives each file once
+                HashSet<PrefetchDecoder> taken = new HashSet<PrefetchDecoder>();
+                for (GraphRun run : active) {
+                    BatchInputs.Item item = run.pending.get(i).item;
+                    applyOverrides(item.getOverrides(), run.originals, item.getName());
+                    for (GraphNodeFileIn node : run.listNodes) {
+                        PrefetchDecoder prefetcher = run.prefetchers.get(node);
+                        if (prefetcher != null && taken.add(prefetcher))
+                            prefetcher.next();
+                        load(node, item.getFiles().get(node));
+                    }
+                }
+
+                HashMap<String, List<GraphNode>> twins = new HashMap<String, List<GraphNode>>();
+                HashMap<GraphNode, String> hashes = new HashMap<GraphNode, String>(fixedHashes);
+                if (runs.size() > 1) {
+                    for (Map.Entry<String, List<GraphNode>> fixed : fixedTwins.entrySet())
+                        twins.put(fixed.getKey(), new ArrayList<GraphNode>(fixed.getValue()));
+                    for (GraphNode node : varying)
+                        twins.computeIfAbsent(BatchManifest.hashNode(node, hashes),
+                            (hash) -> new ArrayList<GraphNode>()).add(node);
+                }
+
+                for (GraphRun run : active) {
+                    if (runs.size() > 1)
+                        for (GraphNode node : run.nodes)
+                            shareImages(node, twins.get(hashes.get(node)));
+                    run.saveOutputs(run.pending.get(i), queue, this);
+                }
+
+                if (prefetchers == null) {
+                    prefetchers = new HashMap<List<Object>, PrefetchDecoder>();
+                    for (GraphRun run : runs)
+                        run.startPrefetching(i + 1, prefetchers);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("An IO Exception occurred!");
+            System.out.println(e.getMessage());
+            for (GraphRun run : runs)
+                run.failFrom(i);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (GraphRun run : runs)
+                run.failFrom(i);
+        } finally {
+            if (prefetchers != null)
+                for (PrefetchDecoder prefetcher : prefetchers.values())
+                    prefetcher.close();
+        }
+
+        // Only wait for this job's images, as other jobs may be using the queue too
+        try {
+            int failures;
+            synchronized (this) {
+                while (writing > 0)
+                    wait();
+                failures = writeFailures;
+            }
+            if (failures > 0)
+                System.out.println(failures+" output file(s) could not be saved!");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Hash the nodes of every graph that are the same for every item (those that aren't
+     * down-stream of a list-bound File IN node or an overridden property) into the first
+     * given map, grouping them by their hashes in the second, and add the other nodes to
+     * the given list, to be hashed for each item
+     */
+    private void hashFixedNodes(Map<GraphNode, String> hashes, Map<String, List<GraphNode>> twins,
+            List<GraphNode> varying) {
+        HashSet<GraphNode> changing = new HashSet<GraphNode>();
+        for (GraphRun run : runs) {
+            changing.addAll(run.listNodes);
+            for (NodeProperty<?> property : run.originals.keySet())
+                changing.add(property.getParentNode());
+        }
+
+        for (GraphRun run : runs) {
+            for (GraphNode node : run.nodes) {
+                if (changing.contains(node) || !Collections.disjoint(getUpstreamNodes(node), changing))
+                    varying.add(node);
+                else
+                    twins.computeIfAbsent(BatchManifest.hashNode(node, hashes),
+                        (hash) -> new ArrayList<GraphNode>()).add(node);
+            }
+        }
+    }
+
+    /**
+     * If the given node's images are out-of-date, give it the images of one of the
+     * given nodes (which have the same hash, so are the same node in another graph or
+     * in the same graph) whose images are up-to-date, if it was asked for the same
+     * regions. The images aren't copied: images aren't written to after they are made
+     */
+    private static void shareImages(GraphNode node, List<GraphNode> twins) {
+        List<NodeSocketOutput> outputs = node.getOutputSockets();
+        boolean outOfDate = false;
+        for (NodeSocketOutput output : outputs)
+            outOfDate |= output.needsUpdate();
+        if (!outOfDate)
+            return;
+
+        for (GraphNode twin : twins) {
+            if (twin == node)
+                continue;
+            boolean usable = true;
+            for (int o = 0; o < outputs.size(); o++) {
+                NodeSocketOutput from = twin.getOutputSockets().get(o);
+                usable &= !from.needsUpdate() && Objects.equals(from.getRequest(), outputs.get(o).getRequest());
+            }
+            if (!usable)
+                continue;
+            for (int o = 0; o < outputs.size(); o++) {
+                NodeSocketOutput from = twin.getOutputSockets().get(o);
+                outputs.get(o).setImage(from.getImage(), from.getImageX(), from.getImageY());
+                outputs.get(o).setNeedsUpdate(false);
+            }
+            return;
+        }
+    }
+
+    /**
+     * One graph of the job: its inputs, its File OUT nodes and output directory,
+     * and which of its outputs are out of date for each item
+     */
+    private static class GraphRun {
+        final BatchInputs            inputs;
+        final List<GraphNodeFileOut> outputNodes;
+        final File                   outputDir;
+
+        /**
+         * The nodes that the File OUT nodes depend on, and the File OUT nodes themselves
+         */
+        final List<GraphNode> nodes;
+
+        final Map<GraphNodeFileIn, File> constants;
+        final List<GraphNodeFileIn>      boundNodes;
+        final List<GraphNodeFileIn>      listNodes;
+        final HashMap<GraphNodeFileOut, String> graphHashes = new HashMap<GraphNodeFileOut, String>();
+        final HashMap<GraphNodeFileOut, List<GraphNodeFileIn>> upstreamInputs = new HashMap<GraphNodeFileOut, List<GraphNodeFileIn>>();
+
+        /**
+         * The values the overridden properties have in the graph, which
+         * are used for items that don't override them and restored at the end
+         */
+        final LinkedHashMap<NodeProperty<?>, String> originals = new LinkedHashMap<NodeProperty<?>, String>();
+
+        /**
+         * The items of the inputs
+         */
+        final List<BatchInputs.Item> items;
+
+        /**
+         * The out-of-date outputs of each item, or null for items that are up-to-date
+         */
+        final ArrayList<PendingItem> pending = new ArrayList<PendingItem>();
+
+        /**
+         * The items that failed (added to on the writer threads too)
+         */
+        final Set<BatchInputs.Item> failed = Collections.synchronizedSet(new LinkedHashSet<BatchInputs.Item>());
+
+        /**
+         * The prefetcher of each list-bound File IN node, once prefetching has started
+         */
+        final HashMap<GraphNodeFileIn, PrefetchDecoder> prefetchers = new HashMap<GraphNodeFileIn, PrefetchDecoder>();
+
+        BatchManifest manifest;
+
+        /**
+         * The output files (absolute) of the items so far, so no two outputs save to the same file
+         */
+        final HashSet<File> claimedFiles = new HashSet<File>();
+
+        /**
+         * Whether outputs that save to the same file have been warned about
+         */
+        boolean warnedCollision = false;
+
+        /**
+         * Whether the manifest was opened by the run, and should be closed with it
+         */
+        final boolean ownsManifest;
+
+        GraphRun(BatchInputs inputs, List<GraphNodeFileOut> outputNodes, File outputDir, BatchManifest manifest) {
+            this.inputs      = inputs;
+            this.outputNodes = outputNodes;
+            this.outputDir   = outputDir;
+            this.manifest    = manifest;
+            ownsManifest = manifest == null;
+            constants  = inputs.getConstants();
+            boundNodes = inputs.getBoundNodes();
+            listNodes  = inputs.getListNodes();
+            items      = inputs.getItems();
+
+            HashSet<GraphNode> upstream = new HashSet<GraphNode>();
+            for (GraphNodeFileOut outputNode : outputNodes) {
+                upstream.add(outputNode);
+                upstream.addAll(getUpstreamNodes(outputNode));
+            }
+            nodes = new ArrayList<GraphNode>(upstream);
+
+            // File IN nodes that aren't bound keep their own file (e.g. a watermark), which is
+            // as much an input as a constant binding: its contents are hashed into the manifest
+            // records rather than just its path into the graph hash, so replacing it in place
+            // makes the outputs out-of-date. A missing file is left to the node to report
+            for (GraphNode node : nodes) {
+                if (node instanceof GraphNodeFileIn && !boundNodes.contains(node)) {
+                    File file = ((GraphNodeFileIn)node).getFile();
+                    if (file != null && file.isFile()) {
+                        constants.put((GraphNodeFileIn)node, file);
+                        boundNodes.add((GraphNodeFileIn)node);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Load the constant files, open the manifest and find the outputs that are
+         * out of date for each item. Returns the number of outputs that are up-to-date
+         */
+        int findPending() throws IOException {
+            // Constant files are loaded once for the whole job
+            for (Map.Entry<GraphNodeFileIn, File> constant : constants.entrySet())
+                load(constant.getKey(), constant.getValue());
+
+            for (GraphNodeFileOut outputNode : outputNodes) {
+                graphHashes.put(outputNode, BatchManifest.hashGraph(outputNode, boundNodes));
+                upstreamInputs.put(outputNode, getUpstreamInputs(outputNode, boundNodes));
+            }
+            for (NodeProperty<?> property : inputs.getOverriddenProperties())
+                originals.put(property, property.serializeValue());
+
+            int upToDate = 0;
+            outputDir.mkdirs();
+            if (ownsManifest)
+                manifest = new BatchManifest(outputDir);
+            for (BatchInputs.Item item : items) {
+                // Overrides can change the output file names and formats as
+                // well as the graph hash, so they are applied first
+                if (!applyOverrides(item.getOverrides(), originals, item.getName())) {
+                    pending.add(null);
+                    failed.add(item);
+                    continue;
+                }
+                PendingItem stale = new PendingItem(item);
+                for (GraphNodeFileOut outputNode : outputNodes) {
+                    // Outputs whose templates give the same file (e.g. File OUT nodes with the
+                    // same name, or items whose given names make the same file name) would
+                    // overwrite each other, so later ones get numbered copies
+                    File outputFile = outputNode.getBatchFile(outputDir, item.getName());
+                    for (int copy = 2; !claimedFiles.add(outputFile.getAbsoluteFile()); copy++) {
+                        if (!warnedCollision) {
+                            System.out.println("Several outputs save to "+outputFile.getName()+
+                                "! Numbering the copies; give the nodes (or items) different names or batch file names.");
+                            warnedCollision = true;
+                        }
+                        outputFile = outputNode.getBatchFile(outputDir, item.getName(), copy);
+                    }
+                    List<File> files = getInputFiles(upstreamInputs.get(outputNode), item, constants);
+                    String graphHash = item.getOverrides().isEmpty() ? graphHashes.get(outputNode)
+                        : BatchManifest.hashGraph(outputNode, boundNodes);
+                    if (manifest.isUpToDate(files, graphHash, outputFile))
+                        upToDate++;
+                    else
+                        stale.add(outputNode, outputFile, files, graphHash);
+                }
+                pending.add(stale.outputNodes.isEmpty() ? null : stale);
+            }
+            return upToDate;
+        }
+
+        /**
+         * Render the given item's out-of-date outputs and queue them to be saved,
+         * recording each in the manifest once it has been saved (and counting it
+         * among the given job's images being written until then)
+         */
+        void saveOutputs(PendingItem outputs, WriteBehindQueue queue, BatchJob job)
+                throws IOException, InterruptedException {
+            for (int o = 0; o < outputs.outputNodes.size(); o++) {
+                GraphNodeFileOut outputNode = outputs.outputNodes.get(o);
+                File outputFile  = outputs.outputFiles.get(o);
+                List<File> files = outputs.inputFiles.get(o);
+                String graphHash = outputs.graphHashes.get(o);
+                outputFile.getParentFile().mkdirs();
+
+                // Queue output file, recording it in the manifest once it's written
+                WritableImage img = outputNode.renderImage();
+                if (img == null) {
+                    System.out.println("No image for "+outputFile.getName()+"! Skipping.");
+                    failed.add(outputs.item);
+                    manifest.record(files, graphHash, outputFile, false);
+                    continue;
+                }
+                queue.submit(img, outputFile, outputNode.getFormat(), outputNode.getProfile(), (written, succeeded) -> {
+                    if (!succeeded)
+                        failed.add(outputs.item);
+                    try {
+                        manifest.record(files, graphHash, written, succeeded);
+                    } catch (IOException e) {
+                        System.out.println("Could not update the batch manifest!");
+                        System.out.println(e.getMessage());
+                    }
+                    synchronized (job) {
+                        job.writing--;
+                        if (!succeeded)
+                            job.writeFailures++;
+                        job.notifyAll();
+                    }
+                });
+                // (The image may already have been written, leaving writing at -1 until now)
+                synchronized (job) {
+                    job.writing++;
+                }
+            }
+        }
+
+        /**
+         * Start prefetching the files of the pending items from the given index on (one
+         * prefetcher per file list), sharing the prefetchers in the given map with other
+         * graphs that load the same files for the same items with the same request
+         */
+        void startPrefetching(int from, Map<List<Object>, PrefetchDecoder> shared) {
+            ArrayList<Integer> indices = new ArrayList<Integer>();
+            for (int i = from; i < pending.size(); i++)
+                if (pending.get(i) != null)
+                    indices.add(i);
+            if (indices.isEmpty())
+                return;
+
+            for (GraphNodeFileIn node : listNodes) {
+                List<File> files = new ArrayList<File>();
+                for (int i : indices)
+                    files.add(pending.get(i).item.getFiles().get(node));
+                List<Object> key = Arrays.asList(indices, files, node.getRequest());
+                prefetchers.put(node, shared.computeIfAbsent(key, (k) -> new PrefetchDecoder(files, node.getRequest())));
+            }
+        }
+
+        /**
+         * Record every pending item from the given index on as failed
+         */
+        void failFrom(int from) {
+            for (int i = from; i < pending.size(); i++)
+                if (pending.get(i) != null)
+                    failed.add(pending.get(i).item);
+        }
+
+        /**
+         * Restore the overridden properties and close the manifest
+         */
+        void close() {
+            restore(originals);
+            if (manifest != null && ownsManifest) {
+                try {
+                    manifest.close();
+                } catch (IOException e) {
+                    System.out.println("Could not update the batch manifest!");
+                    System.out.println(e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Set each of the properties with an original value in the given map to the value it
+     * has in the given overrides, or to its original value if it isn't overridden (e.g. for
+     * a batch item, or a render request) with the given name. Properties that already
+     * have the value are left alone, so the nodes that depend on them aren't updated.
+     * A value the property ignores leaves it at its original value. Returns false (after
+     * restoring the original values) if setting a value fails
+     */
+    public static boolean applyOverrides(Map<NodeProperty<?>, String> overrides, Map<NodeProperty<?>, String> originals,
+            String name) {
+        for (Map.Entry<NodeProperty<?>, String> original : originals.entrySet()) {
+            NodeProperty<?> property = original.getKey();
+            String value = overrides.getOrDefault(property, original.getValue());
+            String before = property.serializeValue();
+            if (value.equals(before))
+                continue;
+            try {
+                property.valueFromString(value);
+                // Most properties ignore values they can't parse, which would leave
+                // the previous item's value, so fall back on the original value
+                if (property.serializeValue().equals(before) && !before.equals(original.getValue())) {
+                    property.valueFromString(original.getValue());
+                    property.valueFromString(value);
+                }
+            } catch (RuntimeException e) {
+                System.out.println("Invalid value \""+value+"\" for "+property.getParentNode().getName()+"."+
+                    property.getName()+" in "+name+"! Skipping.");
+                restore(originals);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Set each of the given properties back to its original value
+     */
+    public static void restore(Map<NodeProperty<?>, String> originals) {
+        for (Map.Entry<NodeProperty<?>, String> original : originals.entrySet())
+            if (!original.getValue().equals(original.getKey().serializeValue()))
+                original.getKey().valueFromString(original.getValue());
+    }
+
+    /**
+     * Load the given file into the given File IN node, unless
+     * the node already has that file loaded
+     */
+    private static void load(GraphNodeFileIn node, File file) {
+        if (!file.equals(node.getFile()))
+            node.loadFile(file);
+    }
+
+    /**
+     * Get the files the given File IN nodes load for the given item: the
+     * item's file for nodes bound to a file list, otherwise the constant file
+     */
+    private static List<File> getInputFiles(List<GraphNodeFileIn> nodes, BatchInputs.Item item,
+            Map<GraphNodeFileIn, File> constants) {
+        List<File> files = new ArrayList<File>();
+        for (GraphNodeFileIn node : nodes) {
+            File file = item.getFiles().get(node);
+            files.add(file != null ? file : constants.get(node));
+        }
+        return files;
+    }
+
+    /**
+     * Get the nodes from the given list that are up-stream of the given node
+     */
+    private static List<GraphNodeFileIn> getUpstreamInputs(GraphNode node, List<GraphNodeFileIn> inputNodes) {
+        HashSet<GraphNode> upstream = getUpstreamNodes(node);
+        List<GraphNodeFileIn> nodes = new ArrayList<GraphNodeFileIn>();
+        for (GraphNodeFileIn inputNode : inputNodes)
+            if (upstream.contains(inputNode))
+                nodes.add(inputNode);
+        return nodes;
+    }
+
+    /**
+     * Get every node up-stream of the given node
+     */
+    static HashSet<GraphNode> getUpstreamNodes(GraphNode node) {
+        HashSet<GraphNode> upstream = new HashSet<GraphNode>();
+        ArrayList<GraphNode> stack = new ArrayList<GraphNode>();
+        stack.add(node);
+        while (!stack.isEmpty()) {
+            GraphNode next = stack.remove(stack.size() - 1);
+            for (NodeSocketInput input : next.getInputSockkets()) {
+                NodeSocketOutput output = input.getConnectingSocket();
+                if (output != null && upstream.add(output.getParentNode()))
+                    stack.add(output.getParentNode());
+            }
+        }
+        return upstream;
+    }
+
+    /**
+     * An item with outputs that are out of date, and for each of those outputs
+     * the output file, the input files and the hash of the graph it's made with
+     */
+    private static class PendingItem {
+        final BatchInputs.Item       item;
+        final List<GraphNodeFileOut> outputNodes = new ArrayList<GraphNodeFileOut>();
+        final List<File>             outputFiles = new ArrayList<File>();
+        final List<List<File>>       inputFiles  = new ArrayList<List<File>>();
+        final List<String>           graphHashes = new ArrayList<String>();
+
+        PendingItem(BatchInputs.Item item) {
+            this.item = item;
+        }
+
+        void add(GraphNodeFileOut outputNode, File outputFile, List<File> files, String graphHash) {
+            outputNodes.add(outputNode);
+            outputFiles.add(outputFile);
+            inputFiles.add(files);
+            graphHashes.add(graphHash);
+        }
+    }
+}
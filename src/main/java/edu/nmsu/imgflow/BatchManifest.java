@@ -0,0 +1,490 @@
+package edu.nmsu.imgflow;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.BufferedWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The manifest of a batch output directory, recording for each output file that has
+ * been saved into that directory from some input files: the inputs' sizes, last-modified
+ * times and content hash, the hash of the graph they were processed with, and whether the
+ * output was saved. This lets a batch that was interrupted (or rerun after editing the
+ * graph) skip the inputs whose outputs are already up-to-date, like make.
+ *
+ * An output is up-to-date if its last record succeeded, its output still exists, the
+ * graph hash is the same and its inputs' contents are the same. The contents are only
+ * hashed again if an input's size or last-modified time have changed.
+ *
+ * The graph hash (see hashGraph()) only covers the nodes up-stream of the File OUT node,
+ * so editing a node that doesn't affect the output doesn't cause a rebuild. The files of
+ * File IN nodes that a batch doesn't bind (e.g. a watermark) are inputs of the records
+ * like any other file (see BatchJob), so replacing one in place makes its outputs
+ * out-of-date.
+ *
+ * The manifest is stored in the output directory as a UTF-8 text file with one tab-separated
+ * line per record. Records are appended (and flushed) as outputs are saved, so a batch
+ * that is killed part-way through loses at most the records of the outputs being saved
+ * at the time. The newest record for each input and output wins; the file is compacted whenever
+ * it is opened.
+ *
+ * Several processes saving into the same directory at once (see ShardedBatch) each
+ * append to their own shard of the manifest instead, which are merged into the
+ * manifest once they are done (see consolidate()).
+ */
+public class BatchManifest implements Closeable {
+
+    /**
+     * The name of the manifest file in the output directory
+     */
+    public static final String FILE_NAME = ".imgflow-manifest";
+
+    /**
+     * The start of the names of the shard files in the output directory; the rest is the shard's name
+     */
+    private static final String SHARD_PREFIX = FILE_NAME+".";
+
+    /**
+     * The name of the file the manifest is compacted into before it replaces the manifest
+     */
+    private static final String TEMP_NAME = FILE_NAME+".tmp";
+
+    /**
+     * The status of a record whose output was saved
+     */
+    private static final String DONE   = "done";
+    /**
+     * The status of a record whose output could not be saved
+     */
+    private static final String FAILED = "failed";
+
+    /**
+     * The newest record of each output file and its input files, by their canonical paths (see Record.getKey())
+     */
+    private final HashMap<String, Record> records = new HashMap<String, Record>();
+
+    /**
+     * The content hash of each file that has been hashed, by its
+     * canonical path, size and last-modified time
+     */
+    private final HashMap<String, String> fileHashes = new HashMap<String, String>();
+
+    /**
+     * The writer appending to the manifest file, or null for a snapshot (see snapshot())
+     */
+    private final Writer out;
+
+    /**
+     * Create a snapshot manifest, whose records are only kept in memory
+     */
+    private BatchManifest() {
+        out = null;
+    }
+
+    /**
+     * Open the manifest of the given output directory, creating it if there is none
+     */
+    public BatchManifest(File outputDir) throws IOException {
+        File file = new File(outputDir, FILE_NAME);
+        if (file.isFile()) {
+            read(file, records);
+            write(outputDir, records.values());
+        }
+        out = openForAppending(file);
+    }
+
+    /**
+     * Open the shard with the given name (e.g. a worker's name) of the manifest of
+     * the given output directory, for one of several processes saving into the
+     * directory at once. Outputs recorded in the directory's manifest (or in the
+     * shard, by an earlier run) are up-to-date as usual, but new records are only
+     * appended to the shard, so the processes don't write over each other
+     */
+    public BatchManifest(File outputDir, String shard) throws IOException {
+        File file = new File(outputDir, FILE_NAME);
+        if (file.isFile())
+            read(file, records);
+        File shardFile = new File(outputDir, SHARD_PREFIX+shard);
+        if (shardFile.isFile())
+            read(shardFile, records);
+        out = openForAppending(shardFile);
+    }
+
+    /**
+     * Merge the shards of the given output directory's manifest into the manifest, and
+     * delete them. The shards shouldn't be open while they are merged. If several shards
+     * have a record of the same output (e.g. an item that was processed twice because
+     * its worker's lease expired), a record of the output being saved wins
+     */
+    public static void consolidate(File outputDir) throws IOException {
+        consolidate(outputDir, listShards(outputDir));
+    }
+
+    /**
+     * Same as consolidate(File), but only merge (and delete) the shards with the given
+     * names, leaving any others (e.g. those of another batch still saving into the
+     * same directory) as they are
+     */
+    public static void consolidate(File outputDir, Collection<String> shardNames) throws IOException {
+        ArrayList<File> shards = new ArrayList<File>();
+        for (String name : shardNames) {
+            File shard = new File(outputDir, SHARD_PREFIX+name);
+            if (shard.isFile())
+                shards.add(shard);
+        }
+        consolidate(outputDir, shards.toArray(new File[shards.size()]));
+    }
+
+    /**
+     * Merge the given shards of the given output directory's manifest into the manifest, and delete them
+     */
+    private static void consolidate(File outputDir, File[] shards) throws IOException {
+        if (shards.length == 0)
+            return;
+
+        HashMap<String, Record> records = new HashMap<String, Record>();
+        readMerged(outputDir, shards, records);
+        write(outputDir, records.values());
+        for (File shard : shards)
+            Files.delete(shard.toPath());
+    }
+
+    /**
+     * Read the manifest of the given output directory and all of its shards (e.g. to see
+     * whether a batch that several processes share has already been done), without opening
+     * any of them for writing. The records of outputs found up-to-date are only updated in
+     * memory. The shards may be being merged (see consolidate()) while they are read
+     */
+    public static BatchManifest snapshot(File outputDir) throws IOException {
+        while (true) {
+            // The manifest is replaced before the shards are deleted, so it is read after
+            // listing them: either it has their records, or they are still there to read
+            File[] shards = listShards(outputDir);
+            BatchManifest manifest = new BatchManifest();
+            try {
+                readMerged(outputDir, shards, manifest.records);
+                return manifest;
+            } catch (FileNotFoundException | NoSuchFileException e) {
+                // A shard was merged and deleted after it was listed, so read them again
+            }
+        }
+    }
+
+    /**
+     * Get the shard files of the given output directory's manifest
+     */
+    private static File[] listShards(File outputDir) {
+        File[] shards = outputDir.listFiles((dir, name) -> name.startsWith(SHARD_PREFIX) && !name.equals(TEMP_NAME));
+        return shards != null ? shards : new File[0];
+    }
+
+    /**
+     * Read the records of the given output directory's manifest and then of the given
+     * shards into the given map. If several shards have a record of the same output,
+     * a record of the output being saved wins
+     */
+    private static void readMerged(File outputDir, File[] shards, Map<String, Record> records) throws IOException {
+        File file = new File(outputDir, FILE_NAME);
+        if (file.isFile())
+            read(file, records);
+        HashMap<String, Record> shardRecords = new HashMap<String, Record>();
+        for (File shard : shards) {
+            HashMap<String, Record> newest = new HashMap<String, Record>();
+            read(shard, newest);
+            for (Record record : newest.values())
+                shardRecords.merge(record.getKey(), record, (old, merged) -> old.status.equals(DONE) ? old : merged);
+        }
+        records.putAll(shardRecords);
+    }
+
+    /**
+     * Read the records of the given manifest (or shard) file into the given map,
+     * by their keys. Later records replace earlier ones
+     */
+    private static void read(File file, Map<String, Record> records) throws IOException {
+        // Malformed lines (e.g. from a manifest written in another charset) are just never up-to-date
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                Record record = Record.parse(line);
+                if (record != null)
+                    records.put(record.getKey(), record);
+            }
+        }
+    }
+
+    /**
+     * Open the given manifest (or shard) file for appending records to, in UTF-8
+     * so the paths read back the same whatever the platform's default charset
+     */
+    private static Writer openForAppending(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Replace the manifest of the given output directory with the given records
+     */
+    private static void write(File outputDir, Collection<Record> records) throws IOException {
+        // Write a new file, then replace the old one, so the manifest is never half-written
+        File temp = new File(outputDir, TEMP_NAME);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+            for (Record record : records)
+                writer.write(record.toString());
+        }
+        Files.move(temp.toPath(), new File(outputDir, FILE_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Whether the given output file, made from the given input files, is
+     * up-to-date with the graph that has the given hash
+     */
+    public boolean isUpToDate(List<File> inputs, String graphHash, File output) throws IOException {
+        Record record;
+        synchronized (this) {
+            record = records.get(getPaths(inputs)+"\t"+output.getCanonicalPath());
+        }
+        if (record == null || !record.status.equals(DONE) || !record.graphHash.equals(graphHash) || !output.isFile())
+            return false;
+        if (record.stamps.equals(getStamps(inputs)))
+            return true;
+
+        // A file has been touched, check whether its contents actually changed
+        if (!record.contentHash.equals(hashFiles(inputs)))
+            return false;
+        record(inputs, graphHash, output, true);
+        return true;
+    }
+
+    /**
+     * Record that the given input files were processed with the graph with the
+     * given hash into the given output file, and whether that succeeded
+     */
+    public void record(List<File> inputs, String graphHash, File output, boolean succeeded) throws IOException {
+        Record record = new Record();
+        record.inputs      = getPaths(inputs);
+        record.stamps      = getStamps(inputs);
+        record.contentHash = hashFiles(inputs);
+        record.graphHash   = graphHash;
+        record.output      = output.getCanonicalPath();
+        record.status      = succeeded ? DONE : FAILED;
+        synchronized (this) {
+            records.put(record.getKey(), record);
+            if (out != null) {
+                out.write(record.toString());
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * Close the manifest file
+     */
+    public synchronized void close() throws IOException {
+        if (out != null)
+            out.close();
+    }
+
+    /**
+     * Hash the part of the graph that the given File OUT node's image depends on:
+     * the type and property values of every node up-stream of it (and of the File OUT
+     * node itself, for its format and profile) and how they are connected. Node names
+     * and positions are left out, and so are the files of the given File IN nodes, since
+     * those are the inputs (whose contents are hashed separately)
+     */
+    public static String hashGraph(GraphNodeFileOut outputNode, Collection<GraphNodeFileIn> inputNodes) {
+        return hashNode(outputNode, inputNodes, new HashMap<GraphNode, String>());
+    }
+
+    /**
+     * Hash the given node and everything up-stream of it like hashGraph(), but including
+     * the files of all File IN nodes, so two nodes (e.g. in different graphs) with the
+     * same hash produce the same images. The hash of each node is remembered in the given map
+     */
+    public static String hashNode(GraphNode node, Map<GraphNode, String> hashes) {
+        return hashNode(node, Collections.<GraphNodeFileIn>emptyList(), hashes);
+    }
+
+    /**
+     * Hash the given node and everything up-stream of it, remembering the
+     * hash of each node in the given map
+     */
+    private static String hashNode(GraphNode node, Collection<GraphNodeFileIn> inputNodes, Map<GraphNode, String> hashes) {
+        String hash = hashes.get(node);
+        if (hash != null)
+            return hash;
+
+        StringBuilder description = new StringBuilder(node.getBaseName());
+        // Skip the name (always the first property)
+        for (int i = 1; i < node.getProperties().size(); i++) {
+            NodeProperty<?> property = node.getProperties().get(i);
+            if (inputNodes.contains(node) && property instanceof NodePropertyFileIn)
+                continue;
+            description.append('\n').append(property.serializeValue());
+        }
+        for (NodeSocketInput input : node.getInputSockkets()) {
+            NodeSocketOutput output = input.getConnectingSocket();
+            description.append("\ninput ").append(input.getIndex()).append(": ");
+            if (output == null)
+                description.append("none");
+            else
+                description.append(hashNode(output.getParentNode(), inputNodes, hashes))
+                    .append(" output ").append(output.getIndex());
+        }
+
+        hash = toHex(sha256().digest(description.toString().getBytes(StandardCharsets.UTF_8)));
+        hashes.put(node, hash);
+        return hash;
+    }
+
+    /**
+     * Get the canonical paths of the given files, separated by '|'
+     */
+    private static String getPaths(List<File> files) throws IOException {
+        StringBuilder paths = new StringBuilder();
+        for (File file : files) {
+            if (paths.length() > 0)
+                paths.append('|');
+            paths.append(file.getCanonicalPath());
+        }
+        return paths.toString();
+    }
+
+    /**
+     * Get the size and last-modified time of each of the given files, as
+     * "size:modified" separated by ','
+     */
+    private static String getStamps(List<File> files) {
+        StringBuilder stamps = new StringBuilder();
+        for (File file : files) {
+            if (stamps.length() > 0)
+                stamps.append(',');
+            stamps.append(file.length()).append(':').append(file.lastModified());
+        }
+        return stamps.toString();
+    }
+
+    /**
+     * Hash the contents of the given files together. The hash of each file is
+     * remembered for as long as its size and last-modified time stay the same,
+     * so a file that is an input to every item (e.g. a watermark) is only read once
+     */
+    private String hashFiles(List<File> files) throws IOException {
+        if (files.size() == 1)
+            return hashFile(files.get(0));
+        StringBuilder hashes = new StringBuilder();
+        for (File file : files)
+            hashes.append(hashFile(file));
+        return toHex(sha256().digest(hashes.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Hash the contents of the given file
+     */
+    private String hashFile(File file) throws IOException {
+        String key = file.getCanonicalPath()+"\t"+file.length()+"\t"+file.lastModified();
+        synchronized (fileHashes) {
+            String hash = fileHashes.get(key);
+            if (hash != null)
+                return hash;
+        }
+
+        MessageDigest digest = sha256();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        String hash = toHex(digest.digest());
+        synchronized (fileHashes) {
+            fileHashes.put(key, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Get a new SHA-256 MessageDigest
+     */
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Convert the given bytes to a hex string
+     */
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return hex.toString();
+    }
+
+    /**
+     * One line of the manifest
+     */
+    private static class Record {
+        String inputs;
+        String stamps;
+        String contentHash;
+        String graphHash;
+        String output;
+        String status;
+
+        /**
+         * Parse a line of the manifest. Returns null if the line is malformed
+         */
+        public static Record parse(String line) {
+            String[] fields = line.split("\t");
+            if (fields.length != 6)
+                return null;
+            Record record = new Record();
+            record.status      = fields[0];
+            record.inputs      = fields[1];
+            record.stamps      = fields[2];
+            record.contentHash = fields[3];
+            record.graphHash   = fields[4];
+            record.output      = fields[5];
+            return record;
+        }
+
+        /**
+         * Get the key identifying the input files and output file of the record
+         */
+        public String getKey() {
+            return inputs+"\t"+output;
+        }
+
+        public String toString() {
+            return status+"\t"+inputs+"\t"+stamps+"\t"+contentHash+"\t"+graphHash+"\t"+output+"\n";
+        }
+    }
+}
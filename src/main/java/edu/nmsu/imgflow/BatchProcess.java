@@ -2,7 +2,8 @@ package edu.nmsu.imgflow;
 
 import java.util.ArrayList;
 import java.util.List;
-import javafx.util.Callback;
+import java.util.HashMap;
+import java.util.Collections;
 import javafx.stage.Stage;
 import javafx.stage.Modality;
 import javafx.stage.FileChooser;
@@ -13,6 +14,7 @@ import javafx.scene.layout.GridPane;
 import javafx.scene.layout.ColumnConstraints;
 import javafx.scene.layout.RowConstraints;
 import javafx.scene.layout.VBox;
+import javafx.scene.layout.HBox;
 import javafx.scene.layout.Priority;
 import javafx.geometry.HPos;
 import javafx.geometry.Insets;
@@ -21,6 +23,8 @@ import javafx.scene.control.ComboBox;
 import javafx.scene.control.ListCell;
 import javafx.scene.control.ListView;
 import javafx.scene.control.Button;
+import javafx.scene.control.SelectionMode;
+import javafx.collections.ListChangeListener;
 import java.io.File;
 import java.io.IOException;
 
@@ -28,10 +32,17 @@ import java.io.IOException;
  * Abstract class to handle the batch processing feature, which allows for
  * running multiple images through the graph in one go.
  * 
- * This class builds a GUI for a dialog box in which the user selects a number
- * of input files, a File IN node, an output directory and a File OUT node. When the
- * process button is pressed, each selected input file is loaded into the selected File IN
- * node and then an image is saved from the selected File OUT node into the output directory.
+ * This class builds a GUI for a dialog box in which the user binds each File IN node
+ * to either a constant file or a list of input files (see BatchInputs), and selects an
+ * output directory and one or more File OUT nodes. When the process button is pressed,
+ * each item of the batch (e.g. each file of the list, if only one node has a list) is
+ * loaded into the File IN nodes and then an image is saved from each selected File OUT
+ * node into the output directory, named after the node's batch file name template. The graph is updated once per item,
+ * so the nodes that several File OUT nodes have in common are only processed once.
+ * Instead of file lists, the items can come from a parameter table, which can also
+ * override property values for each item. The same items can also be run through other
+ * graph files at the same time, so each input file is only decoded once for all of the
+ * graphs. The processing itself is done by a BatchJob.
  */
 public abstract class BatchProcess {
 
@@ -48,10 +59,39 @@ public abstract class BatchProcess {
     private static DirectoryChooser dirChooser;
 
     /**
-     * The List of input files chosen with fileChooser.
-     * Null or empty if no files are selected
+     * The FileChooser that is used for selecting
+     * a parameter table
+     */
+    private static FileChooser tableChooser;
+
+    /**
+     * The FileChooser that is used for selecting
+     * other graphs
+     */
+    private static FileChooser graphChooser;
+
+    /**
+     * How each File IN node is bound: "Constant" or "File List"
+     */
+    private static HashMap<GraphNodeFileIn, String> bindingModes;
+
+    /**
+     * The files chosen with fileChooser for each File IN node: a single
+     * file if the node is bound to a constant, otherwise the file list.
+     * Nodes without chosen files aren't in the map
+     */
+    private static HashMap<GraphNodeFileIn, List<File>> boundFiles;
+
+    /**
+     * How file lists are combined (one of BatchInputs.COMBINE_MODES)
      */
-    private static List<File> inputFiles;
+    private static String combineMode;
+
+    /**
+     * The parameter table chosen with tableChooser (see BatchInputs.loadTable()).
+     * Null if no table is selected
+     */
+    private static File paramTable;
 
     /**
      * The directory chosen with dirChooser.
@@ -60,16 +100,16 @@ public abstract class BatchProcess {
     private static File outputDir;
 
     /**
-     * The selected File IN node. Null if no 
+     * The selected File OUT nodes. Empty if no
      * node is selected
      */
-    private static GraphNodeFileIn inputNode;
+    private static List<GraphNodeFileOut> outputNodes;
 
     /**
-     * The selected File OUT node. Null if no
-     * node is selected
+     * The other graph files chosen with graphChooser, which the same items
+     * are run through. Empty if no other graphs are selected
      */
-    private static GraphNodeFileOut outputNode;
+    private static List<File> otherGraphs;
 
     /**
      * The stage for the dialog box
@@ -83,10 +123,13 @@ public abstract class BatchProcess {
     public static void showDialog() {
         // reset values which may still be
         // set from the last time the dialog was opened
-        inputFiles = null;
+        bindingModes = new HashMap<GraphNodeFileIn, String>();
+        boundFiles = new HashMap<GraphNodeFileIn, List<File>>();
+        combineMode = BatchInputs.COMBINE_MODES[0];
+        paramTable = null;
         outputDir = null;
-        inputNode = null;
-        outputNode = null;
+        outputNodes = new ArrayList<GraphNodeFileOut>();
+        otherGraphs = new ArrayList<File>();
 
         // init stage
         window = new Stage();
@@ -141,7 +184,7 @@ public abstract class BatchProcess {
         grid.add(outputLabel, 1, 1);
 
         // Assemble lists of all of the File IN and File OUT nodes in the active
-        // graph. These are used to populate the combo boxes for selecting the nodes
+        // graph. These are used to build the input bindings and the list of output nodes
         ArrayList<GraphNodeFileIn> fileInNodes  = new ArrayList<GraphNodeFileIn>();
         ArrayList<GraphNodeFileOut> fileOutNodes = new ArrayList<GraphNodeFileOut>();
         for (GraphNode node : Main.getInstance().getActiveGraph().getNodes()) {
@@ -151,33 +194,38 @@ public abstract class BatchProcess {
                 fileOutNodes.add((GraphNodeFileOut)node);
         }
 
-        // Create and add the VBox containing all the input options
+        // Create and add the VBox containing all the input options: how each
+        // File IN node is bound, and how the file lists are combined
         VBox inputBox = new VBox(10.0);
         inputBox.getStyleClass().add("control-box");
         inputBox.setPadding(new Insets(8.0));
-        Label inputFilesLabel = new Label("Select Input files");
-        Label inputFilesReadout = new Label("No files selected");
-        // Add browse button to summon fileChooser
-        Button inputFilesBrowse = new Button("Browse...");
-        inputFilesBrowse.setOnAction((actionEvent) -> {
-            if (fileChooser == null)
-                initFileChooser();
-            inputFiles = fileChooser.showOpenMultipleDialog(window);
-            if (inputFiles == null)
-                inputFilesReadout.setText("No files selected");
-            else
-                inputFilesReadout.setText(inputFiles.size() + " file(s) selected");
+        for (int i = 0; i < fileInNodes.size(); i++) {
+            // The first node loads a list of files by default, the rest keep their file
+            GraphNodeFileIn node = fileInNodes.get(i);
+            bindingModes.put(node, i == 0 ? "File List" : "Constant");
+            inputBox.getChildren().add(buildBindingBox(node));
+        }
+        Label combineLabel = new Label("Combine File Lists");
+        ComboBox<String> combineSelect = new ComboBox<String>();
+        combineSelect.getItems().addAll(BatchInputs.COMBINE_MODES);
+        combineSelect.getSelectionModel().select(combineMode);
+        combineSelect.getSelectionModel().selectedItemProperty().addListener((obs, oldVal, newVal) -> {
+            combineMode = newVal;
         });
-        Label inputNodeLabel = new Label("Select Input Node");
-        // Create combobox from list of File IN nodes
-        ComboBox<GraphNode> inputSelect = createNodeComboBox(fileInNodes);
-        inputSelect.getSelectionModel().selectedItemProperty().addListener((oldVal, newVal, obs) -> {
-            inputNode = (GraphNodeFileIn) newVal;
+        // A parameter table replaces the file lists, and can override properties per item
+        Label tableLabel = new Label("Parameter Table");
+        Label tableReadout = new Label("No table selected");
+        Button tableBrowse = new Button("Browse...");
+        tableBrowse.setOnAction((actionEvent) -> {
+            if (tableChooser == null)
+                initTableChooser();
+            paramTable = tableChooser.showOpenDialog(window);
+            if (paramTable == null)
+                tableReadout.setText("No table selected");
+            else
+                tableReadout.setText(paramTable.getName());
         });
-        // Select first node in the list (if there is one)
-        if (fileInNodes.size() > 0)
-            inputNode = fileInNodes.get(0);
-        inputBox.getChildren().addAll(inputFilesLabel, inputFilesBrowse, inputFilesReadout, inputNodeLabel, inputSelect);
+        inputBox.getChildren().addAll(combineLabel, combineSelect, tableLabel, tableBrowse, tableReadout);
         grid.add(inputBox, 0, 2);
 
         // Create and add the VBox containing all the output options
@@ -197,50 +245,98 @@ public abstract class BatchProcess {
             else
                 outputDirReadout.setText(outputDir.getName());
         });
-        Label outputNodeLabel = new Label("Select Output Node");
-        // Create combobox from list of File OUT nodes
-        ComboBox<GraphNode> outputSelect = createNodeComboBox(fileOutNodes);
-        outputSelect.getSelectionModel().selectedItemProperty().addListener((oldVal, newVal, obs) -> {
-            outputNode = (GraphNodeFileOut) newVal;
+        Label outputNodeLabel = new Label("Select Output Nodes");
+        // Create list of File OUT nodes, any number of which can be selected
+        ListView<GraphNode> outputSelect = createNodeListView(fileOutNodes);
+        outputSelect.getSelectionModel().getSelectedItems().addListener((ListChangeListener.Change<? extends GraphNode> change) -> {
+            outputNodes.clear();
+            for (GraphNode node : outputSelect.getSelectionModel().getSelectedItems())
+                outputNodes.add((GraphNodeFileOut) node);
+        });
+        // Select every node in the list
+        outputSelect.getSelectionModel().selectAll();
+        // Other graphs to run the same items through, each saving into its own sub-directory
+        Label otherGraphLabel = new Label("Also Run Graphs");
+        Label otherGraphReadout = new Label("No graphs selected");
+        Button otherGraphBrowse = new Button("Browse...");
+        otherGraphBrowse.setOnAction((actionEvent) -> {
+            if (graphChooser == null)
+                initGraphChooser();
+            List<File> files = graphChooser.showOpenMultipleDialog(window);
+            otherGraphs = (files == null) ? new ArrayList<File>() : files;
+            if (otherGraphs.isEmpty())
+                otherGraphReadout.setText("No graphs selected");
+            else
+                otherGraphReadout.setText(otherGraphs.size() + " graph(s) selected");
         });
-        // Select first node in the list (if there is one)
-        if (fileOutNodes.size() > 0)
-            outputNode = fileOutNodes.get(0);
-        outputBox.getChildren().addAll(outputDirLabel, outputDirBrowse, outputDirReadout, outputNodeLabel, outputSelect);
+        outputBox.getChildren().addAll(outputDirLabel, outputDirBrowse, outputDirReadout, outputNodeLabel, outputSelect,
+            otherGraphLabel, otherGraphBrowse, otherGraphReadout);
         grid.add(outputBox, 1, 2);
 
         // Create and add process button
         Button processButton = new Button("Process!");
         GridPane.setHalignment(processButton, HPos.CENTER);
         processButton.setOnAction((actionEvent) -> {
+            // Bind each File IN node. Constant nodes without a chosen file keep their own.
+            // With a parameter table, the file lists come from the table instead
+            BatchInputs inputs = new BatchInputs();
+            inputs.setCombineMode(combineMode);
+            boolean missingFiles = false;
+            for (GraphNodeFileIn node : fileInNodes) {
+                List<File> files = boundFiles.get(node);
+                if (bindingModes.get(node).equals("File List")) {
+                    if (paramTable != null)
+                        continue;
+                    if (files == null)
+                        missingFiles = true;
+                    else
+                        inputs.bindFileList(node, files);
+                }
+                else if (files != null) {
+                    inputs.bindConstant(node, files.get(0));
+                }
+                else if (node.getFile() != null) {
+                    inputs.bindConstant(node, node.getFile());
+                }
+            }
+
+            if (paramTable != null) {
+                try {
+                    inputs.loadTable(paramTable, Main.getInstance().getActiveGraph());
+                } catch (IOException e) {
+                    System.out.println("Could not read the parameter table!");
+                    System.out.println(e.getMessage());
+                    return;
+                }
+            }
+
             // Immediately return if any necessary parts haven't been selected/chosen
             if (
-                inputFiles == null || inputFiles.size() == 0 ||
+                inputs.getItems().isEmpty() || missingFiles ||
                 outputDir == null ||
-                inputNode == null ||
-                outputNode == null
+                outputNodes.isEmpty()
             ) {
-                System.out.println("Could not process! Please make sure an input and output node"+
-                    " is selected and that some input files and output directory have been chosen.");
+                System.out.println("Could not process! Please make sure an output node is selected, that"+
+                    " every File List input has some files (or the parameter table has some rows)"+
+                    " and that an output directory has been chosen.");
                 return;
             }
 
-            try {
-                // Iterate through input files
-                for (File file : inputFiles) {
-                    // load file
-                    inputNode.loadFile(file);
-                    // Get path for the output file
-                    String outputFilename = file.getName().replaceFirst("[.][^.]+$", ""); // filename without extension
-                    String outputPath = outputDir.getCanonicalPath()+File.separator+outputFilename+"_out.png";
-                    File outputFile = new File(outputPath);
-                    // Save output file
-                    outputNode.saveToFile(outputFile);
-                }
-            } catch (IOException e) {
-                System.out.println("An IO Exception occurred!");
-                System.out.println(e.getMessage());
+            BatchJob job = new BatchJob(inputs, new ArrayList<GraphNodeFileOut>(outputNodes), outputDir);
+            // Each other graph gets the files bound to its File IN nodes of the same names,
+            // and saves all of its File OUT nodes into a sub-directory named after the graph
+            for (File graphFile : otherGraphs) {
+                Graph graph = GraphSaveLoad.loadGraph(graphFile);
+                if (graph == null)
+                    return;
+                ArrayList<GraphNodeFileOut> graphOutputs = new ArrayList<GraphNodeFileOut>();
+                for (GraphNode node : graph.getNodes())
+                    if (node instanceof GraphNodeFileOut)
+                        graphOutputs.add((GraphNodeFileOut)node);
+                job.addGraph(inputs.copyFor(graph), graphOutputs,
+                    new File(outputDir, BatchInputs.getStem(graphFile)));
             }
+            job.run();
         });
         grid.add(processButton, 0, 3, 2, 1);
 
@@ -259,6 +355,30 @@ public abstract class BatchProcess {
         );
     }
 
+    /**
+     * Initialize the FileChooser for parameter
+     * tables and set to only load CSV and TSV files
+     */
+    private static void initTableChooser() {
+        tableChooser = new FileChooser();
+        tableChooser.setTitle("Parameter Table");
+        tableChooser.getExtensionFilters().add(
+            new ExtensionFilter("Parameter tables", "*.csv", "*.tsv")
+        );
+    }
+
+    /**
+     * Initialize the FileChooser for other graphs
+     * and set to only load graph files
+     */
+    private static void initGraphChooser() {
+        graphChooser = new FileChooser();
+        graphChooser.setTitle("Other Graphs");
+        graphChooser.getExtensionFilters().add(
+            new ExtensionFilter("Imgflow Graphs", "*.imgflow")
+        );
+    }
+
     /**
      * Initialize the directory chooser
      */
@@ -268,29 +388,69 @@ public abstract class BatchProcess {
     }
 
     /**
-     * Create a custom combo box that selects a GraphNode from the given list of nodes.
-     * The text in the combo box is the (custom) name of each node.
+     * Build the controls for binding the given File IN node: whether it loads
+     * a constant file or a list of files, and a button to choose the file(s)
      */
-    private static ComboBox<GraphNode> createNodeComboBox(ArrayList<? extends GraphNode> nodes) {
-        ComboBox<GraphNode> cmb = new ComboBox<GraphNode>();
-        cmb.getItems().addAll(nodes);
+    private static VBox buildBindingBox(GraphNodeFileIn node) {
+        Label nameLabel = new Label(node.getName());
+        ComboBox<String> modeSelect = new ComboBox<String>();
+        modeSelect.getItems().addAll("Constant", "File List");
+        modeSelect.getSelectionModel().select(bindingModes.get(node));
+        Button browse = new Button("Browse...");
+        Label readout = new Label();
 
-        cmb.setCellFactory(new Callback<ListView<GraphNode>, ListCell<GraphNode>>() {
-            public ListCell<GraphNode> call(ListView<GraphNode> list) {
-                return new GraphNodeCell();
+        // Show the chosen file(s), or the node's own file for a constant without one
+        Runnable updateReadout = () -> {
+            List<File> files = boundFiles.get(node);
+            if (bindingModes.get(node).equals("File List"))
+                readout.setText(files == null ? "No files selected" : files.size() + " file(s) selected");
+            else if (files != null)
+                readout.setText(files.get(0).getName());
+            else
+                readout.setText(node.getFile() == null ? "No file selected" : node.getFile().getName());
+        };
+        updateReadout.run();
+
+        modeSelect.getSelectionModel().selectedItemProperty().addListener((obs, oldVal, newVal) -> {
+            bindingModes.put(node, newVal);
+            boundFiles.remove(node);
+            updateReadout.run();
+        });
+        browse.setOnAction((actionEvent) -> {
+            if (fileChooser == null)
+                initFileChooser();
+            List<File> files;
+            if (bindingModes.get(node).equals("File List")) {
+                files = fileChooser.showOpenMultipleDialog(window);
+            }
+            else {
+                File file = fileChooser.showOpenDialog(window);
+                files = (file == null) ? null : Collections.singletonList(file);
             }
+            if (files != null && !files.isEmpty())
+                boundFiles.put(node, files);
+            updateReadout.run();
         });
-        cmb.setButtonCell(new GraphNodeCell());
 
-        // Start with the first node selected (if there is one)
-        if (nodes.size() > 0)
-            cmb.getSelectionModel().select(0);
+        HBox controls = new HBox(5.0, modeSelect, browse);
+        return new VBox(5.0, nameLabel, controls, readout);
+    }
 
-        return cmb;
+    /**
+     * Create a list view from which any number of GraphNodes from the given list
+     * can be selected. The text in the list is the (custom) name of each node.
+     */
+    private static ListView<GraphNode> createNodeListView(ArrayList<? extends GraphNode> nodes) {
+        ListView<GraphNode> list = new ListView<GraphNode>();
+        list.getItems().addAll(nodes);
+        list.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+        list.setCellFactory((listView) -> new GraphNodeCell());
+        list.setPrefHeight(100.0);
+        return list;
     }
 
     /**
-     * A custom ListCell (for a ComboBox) that contains a GraphNode and
+     * A custom ListCell (for a ListView) that contains a GraphNode and
      * displays its (custom) name
      */
     private static class GraphNodeCell extends ListCell<GraphNode> {
@@ -0,0 +1,678 @@
+package edu.nmsu.imgflow;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+
+/**
+ * The coordinator of a render farm: accepts batch jobs from clients and hands their items
+ * out to worker processes (see FarmWorker), on this or other machines, over TCP. Doesn't
+ * need the application (or a display) to be running.
+ *
+ * A job is a graph file, a list of input files and an output directory, which the workers
+ * must all be able to reach by the same paths (e.g. on shared storage): each item loads
+ * one input file into the graph's input File IN node (see ShardedBatch.findInputNode())
+ * and saves the images of all of its File OUT nodes into the output directory, just like
+ * a BatchJob would. Each graph file is only sent to a worker once, however many items
+ * it gets, and the worker keeps it parsed.
+ *
+ * Workers announce how many items they can process at once (their capacity) when they
+ * connect. Each item goes to the worker with the shortest queue for its capacity, and a
+ * worker is never given more than QUEUE_DEPTH items per unit of capacity, so the items
+ * are spread out as the workers finish them rather than all at once. Workers send a
+ * heartbeat every heartbeatMillis / 3; a worker that hasn't been heard from for
+ * heartbeatMillis (e.g. its process crashed or its machine went away) is dropped, and
+ * its unfinished items are given to other workers.
+ *
+ * Workers record their outputs in their own shards of the output directory's
+ * BatchManifest. Once every item of a job is done, the coordinator has the workers close
+ * their shards and merges them into the manifest (leaving the shards of other jobs saving
+ * into the same directory alone), so the result is the same as if the
+ * batch had been run by one process, and then tells the client how many items were
+ * processed. Outputs that are already up-to-date are skipped as usual.
+ *
+ * The coordinator only listens on the loopback address unless it is given another
+ * address to bind to (e.g. to take workers on other machines), since anyone who can
+ * reach it can submit jobs that read and write any path its workers can.
+ *
+ * The protocol is a stream of messages, each a type byte followed by its fields, written
+ * with a DataOutputStream (strings with writeUTF(), byte arrays with their length first):
+ *
+ *   worker -> coordinator   HELLO name capacity, HEARTBEAT, DONE itemId succeeded message,
+ *                           CLOSED jobId
+ *   coordinator -> worker   WELCOME heartbeatMillis, GRAPH graphId bytes,
+ *                           ITEM itemId jobId graphId inputPath itemName outputPath, CLOSE jobId
+ *   client -> coordinator   SUBMIT graphBytes outputPath count inputPath...
+ *   coordinator -> client   JOB_DONE processed failed
+ */
+public class FarmCoordinator {
+
+    /**
+     * The default port the coordinator listens on
+     */
+    public static final int DEFAULT_PORT = 8766;
+
+    /**
+     * The default time (in milliseconds) a worker can go without a heartbeat
+     */
+    public static final long DEFAULT_HEARTBEAT_MILLIS = 10000;
+
+    /**
+     * The most items given to a worker at a time, per unit of its capacity. More
+     * than one, so a worker doesn't sit idle while its next item is on the way
+     */
+    private static final int QUEUE_DEPTH = 2;
+
+    // Message types (see the class comment)
+    static final byte HELLO     = 1;
+    static final byte HEARTBEAT = 2;
+    static final byte DONE      = 3;
+    static final byte CLOSED    = 4;
+    static final byte WELCOME   = 5;
+    static final byte GRAPH     = 6;
+    static final byte ITEM      = 7;
+    static final byte CLOSE     = 8;
+    static final byte SUBMIT    = 9;
+    static final byte JOB_DONE  = 10;
+
+    private final ServerSocket    server;
+    private final long            heartbeatMillis;
+    private final ExecutorService connections;
+
+    /**
+     * The items waiting to be given to a worker, in the order they are given out
+     */
+    private final ArrayDeque<Item> queue = new ArrayDeque<Item>();
+
+    /**
+     * The connected workers
+     */
+    private final ArrayList<WorkerConnection> workers = new ArrayList<WorkerConnection>();
+
+    /**
+     * The jobs that haven't finished, by their ids
+     */
+    private final HashMap<Long, Job> jobs = new HashMap<Long, Job>();
+
+    private long nextItemId = 0;
+
+    /**
+     * The id of the next job. Started from the time, so that a restarted coordinator
+     * doesn't reuse the ids (which name manifest shards) of an earlier run
+     */
+    private long nextJobId = System.currentTimeMillis();
+
+    private volatile boolean running = false;
+
+    /**
+     * Create a new FarmCoordinator on the given port of the loopback address, dropping
+     * workers that haven't sent a heartbeat for heartbeatMillis. The coordinator isn't
+     * started until start() is called
+     */
+    public FarmCoordinator(int port, long heartbeatMillis) throws IOException {
+        this(InetAddress.getLoopbackAddress(), port, heartbeatMillis);
+    }
+
+    /**
+     * Same as FarmCoordinator(int, long), but listening on the given address
+     * (or on every address, if it is the wildcard address)
+     */
+    public FarmCoordinator(InetAddress address, int port, long heartbeatMillis) throws IOException {
+        server = new ServerSocket(port, 50, address);
+        this.heartbeatMillis = heartbeatMillis;
+        connections = Executors.newCachedThreadPool((runnable) -> {
+            Thread thread = new Thread(runnable, "Farm connection");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start accepting workers and jobs
+     */
+    public void start() {
+        running = true;
+        // Not a daemon, so the process keeps running until the coordinator is stopped
+        new Thread(this::accept, "Farm coordinator").start();
+        Thread dispatcher = new Thread(this::dispatch, "Farm dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Stop the coordinator and disconnect its workers. Unfinished jobs are abandoned
+     */
+    public void stop() {
+        running = false;
+        try {
+            server.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        synchronized (this) {
+            for (WorkerConnection worker : workers)
+                worker.close();
+            notifyAll();
+        }
+        connections.shutdownNow();
+    }
+
+    /**
+     * Get the port the coordinator is listening on
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Accept connections until the coordinator is stopped, serving each on its own thread
+     */
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = server.accept();
+                connections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                // Stopped, unless it was a connection that went wrong
+            }
+        }
+    }
+
+    /**
+     * Serve the given connection, as a worker or a client depending on its first message
+     */
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            byte type = in.readByte();
+            if (type == HELLO)
+                serveWorker(new WorkerConnection(socket, in.readUTF(), in.readInt()), in);
+            else if (type == SUBMIT)
+                serveClient(socket, in);
+        } catch (IOException e) {
+            // The other end went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    /**
+     * Read the messages of the given worker until it disconnects or misses its heartbeat
+     */
+    private void serveWorker(WorkerConnection worker, DataInputStream in) throws IOException {
+        worker.send((out) -> {
+            out.writeByte(WELCOME);
+            out.writeLong(heartbeatMillis);
+        });
+        worker.socket.setSoTimeout((int)heartbeatMillis);
+        synchronized (this) {
+            workers.add(worker);
+            notifyAll();
+        }
+        System.out.println("Worker "+worker.name+" joined with capacity "+worker.capacity);
+
+        try {
+            while (running) {
+                byte type = in.readByte();
+                if (type == DONE)
+                    finishItem(worker, in.readLong(), in.readBoolean(), in.readUTF());
+                else if (type == CLOSED)
+                    closed(worker, in.readLong());
+                else if (type != HEARTBEAT)
+                    throw new IOException("Unexpected message "+type+" from "+worker.name);
+            }
+        } catch (SocketTimeoutException e) {
+            System.out.println("Worker "+worker.name+" missed its heartbeat");
+        } catch (IOException e) {
+            System.out.println("Worker "+worker.name+" disconnected");
+        } finally {
+            lost(worker);
+        }
+    }
+
+    /**
+     * Read a job from the given client, run it, and tell the client once it is done
+     */
+    private void serveClient(Socket socket, DataInputStream in) throws IOException {
+        byte[] source = new byte[in.readInt()];
+        in.readFully(source);
+        File outputDir = new File(in.readUTF());
+        int count = in.readInt();
+        List<File> inputFiles = new ArrayList<File>(count);
+        for (int i = 0; i < count; i++)
+            inputFiles.add(new File(in.readUTF()));
+
+        Job job = submit(source, inputFiles, outputDir);
+        job.finished.join();
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeByte(JOB_DONE);
+        synchronized (this) {
+            out.writeInt(job.processed);
+            out.writeInt(job.failed);
+        }
+        out.flush();
+    }
+
+    /**
+     * Queue a job that runs the given input files through the given graph file,
+     * saving into the given output directory. The job's finished future completes
+     * once every item is done and the manifest has been merged
+     */
+    private Job submit(byte[] source, List<File> inputFiles, File outputDir) {
+        outputDir.mkdirs();
+        Job job;
+        synchronized (this) {
+            job = new Job(nextJobId++, RenderServer.hash(source), source, outputDir, inputFiles.size());
+            jobs.put(job.id, job);
+            // Items are named here, from the whole list, so input files with the same
+            // name (e.g. a.jpg and a.png) don't save to the same outputs on different workers
+            List<String> names = new ArrayList<String>();
+            for (File file : inputFiles)
+                names.add(BatchInputs.getStem(file));
+            names = BatchInputs.makeUnique(names);
+            for (int i = 0; i < inputFiles.size(); i++)
+                queue.add(new Item(nextItemId++, job, inputFiles.get(i).getAbsoluteFile(), names.get(i)));
+            notifyAll();
+        }
+        System.out.println("Job "+job.id+": "+inputFiles.size()+" item(s) into "+outputDir.getPath());
+        if (inputFiles.isEmpty())
+            finishJob(job);
+        return job;
+    }
+
+    /**
+     * Give queued items to workers until the coordinator is stopped: each to the worker
+     * with the shortest queue for its capacity, as long as one has room for it
+     */
+    private void dispatch() {
+        while (running) {
+            WorkerConnection worker = null;
+            Item item;
+            boolean sendGraph;
+            synchronized (this) {
+                while (running) {
+                    worker = null;
+                    if (!queue.isEmpty()) {
+                        for (WorkerConnection candidate : workers) {
+                            if (candidate.outstanding.size() >= candidate.capacity * QUEUE_DEPTH)
+                                continue;
+                            if (worker == null || (double)candidate.outstanding.size() / candidate.capacity <
+                                    (double)worker.outstanding.size() / worker.capacity)
+                                worker = candidate;
+                        }
+                    }
+                    if (worker != null)
+                        break;
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (worker == null)
+                    return;
+                item = queue.poll();
+                worker.outstanding.put(item.id, item);
+                item.job.participants.add(worker);
+                item.job.shards.add(FarmWorker.getShardName(worker.name, item.job.id));
+                sendGraph = worker.graphs.add(item.job.graphId);
+            }
+
+            // Sent outside the lock, so a slow worker doesn't hold up the others
+            WorkerConnection to = worker;
+            try {
+                to.send((out) -> {
+                    if (sendGraph) {
+                        out.writeByte(GRAPH);
+                        out.writeUTF(item.job.graphId);
+                        out.writeInt(item.job.source.length);
+                        out.write(item.job.source);
+                    }
+                    out.writeByte(ITEM);
+                    out.writeLong(item.id);
+                    out.writeLong(item.job.id);
+                    out.writeUTF(item.job.graphId);
+                    out.writeUTF(item.file.getPath());
+                    out.writeUTF(item.name);
+                    out.writeUTF(item.job.outputDir.getAbsolutePath());
+                });
+            } catch (IOException e) {
+                // Its reader thread finds out too, and gives its items to other workers
+                to.close();
+            }
+        }
+    }
+
+    /**
+     * Record that the given worker has finished the item with the given id
+     */
+    private void finishItem(WorkerConnection worker, long itemId, boolean succeeded, String message) {
+        Job finished = null;
+        synchronized (this) {
+            Item item = worker.outstanding.remove(itemId);
+            if (item == null)
+                return;
+            if (succeeded) {
+                item.job.processed++;
+            }
+            else {
+                item.job.failed++;
+                System.out.println("Job "+item.job.id+": "+item.file.getPath()+" failed on "+worker.name+": "+message);
+            }
+            if (--item.job.remaining == 0)
+                finished = item.job;
+            notifyAll();
+        }
+        if (finished != null)
+            closeShards(finished);
+    }
+
+    /**
+     * Ask every worker that took part in the given (finished) job to close its
+     * manifest shard, or finish the job straight away if there are none left
+     */
+    private void closeShards(Job job) {
+        List<WorkerConnection> closing;
+        synchronized (this) {
+            closing = new ArrayList<WorkerConnection>(job.participants);
+            job.closing = true;
+        }
+        for (WorkerConnection worker : closing) {
+            try {
+                worker.send((out) -> {
+                    out.writeByte(CLOSE);
+                    out.writeLong(job.id);
+                });
+            } catch (IOException e) {
+                worker.close();
+            }
+        }
+        if (closing.isEmpty())
+            finishJob(job);
+    }
+
+    /**
+     * Record that the given worker has closed its manifest shard of the job with the given id
+     */
+    private void closed(WorkerConnection worker, long jobId) {
+        Job job;
+        synchronized (this) {
+            job = jobs.get(jobId);
+            if (job == null || !job.closing || !job.participants.remove(worker) || !job.participants.isEmpty())
+                return;
+        }
+        finishJob(job);
+    }
+
+    /**
+     * Drop the given worker, giving its unfinished items to other workers
+     */
+    private void lost(WorkerConnection worker) {
+        worker.close();
+        ArrayList<Job> closable = new ArrayList<Job>();
+        synchronized (this) {
+            if (!workers.remove(worker))
+                return;
+            ArrayList<Item> items = new ArrayList<Item>(worker.outstanding.values());
+            for (int i = items.size() - 1; i >= 0; i--)
+                queue.addFirst(items.get(i));
+            worker.outstanding.clear();
+            if (!items.isEmpty())
+                System.out.println("Giving "+items.size()+" item(s) of "+worker.name+" to other workers");
+            // Jobs waiting for it to close its shard can't wait any longer
+            for (Job job : jobs.values())
+                if (job.participants.remove(worker) && job.closing && job.participants.isEmpty())
+                    closable.add(job);
+            notifyAll();
+        }
+        for (Job job : closable)
+            finishJob(job);
+    }
+
+    /**
+     * Merge the given job's manifest shards in its output directory and complete
+     * the job, unless that has already been done
+     */
+    private void finishJob(Job job) {
+        ArrayList<String> shards;
+        synchronized (this) {
+            if (jobs.remove(job.id) == null)
+                return;
+            shards = new ArrayList<String>(job.shards);
+        }
+        try {
+            BatchManifest.consolidate(job.outputDir, shards);
+        } catch (IOException e) {
+            System.out.println("Could not merge the batch manifest of "+job.outputDir.getPath()+"!");
+            System.out.println(e.getMessage());
+        }
+        synchronized (this) {
+            System.out.println("Job "+job.id+" done: "+job.processed+" processed, "+job.failed+" failed");
+        }
+        job.finished.complete(null);
+    }
+
+    /**
+     * Submit a job to the coordinator at the given host and port and wait for it to finish.
+     * Returns the number of items processed and the number that failed
+     */
+    public static int[] submitRemote(String host, int port, byte[] source, List<File> inputFiles, File outputDir)
+            throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeByte(SUBMIT);
+            out.writeInt(source.length);
+            out.write(source);
+            out.writeUTF(outputDir.getAbsolutePath());
+            out.writeInt(inputFiles.size());
+            for (File file : inputFiles)
+                out.writeUTF(file.getAbsolutePath());
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            if (in.readByte() != JOB_DONE)
+                throw new IOException("Unexpected reply from the coordinator");
+            return new int[] { in.readInt(), in.readInt() };
+        }
+    }
+
+    /**
+     * Launch the given number of FarmWorker processes on this machine, with the
+     * given number of threads each, connected to this coordinator. They are
+     * killed when this process exits
+     */
+    public List<Process> launchLocalWorkers(int count, int threads) throws IOException {
+        String java = System.getProperty("java.home")+File.separator+"bin"+File.separator+"java";
+        InetAddress address = server.getInetAddress();
+        String host = (address.isAnyLocalAddress() ? InetAddress.getLoopbackAddress() : address).getHostAddress();
+        List<Process> processes = new ArrayList<Process>();
+        for (int i = 0; i < count; i++) {
+            ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                FarmWorker.class.getName(), host, Integer.toString(getPort()), Integer.toString(threads),
+                "local-"+i);
+            builder.inheritIO();
+            processes.add(builder.start());
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (Process process : processes)
+                process.destroy();
+        }));
+        return processes;
+    }
+
+    /**
+     * Writes a message to a worker
+     */
+    private interface Message {
+        public void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * A connected worker, the items it has been given and the graphs it has been sent
+     */
+    private static class WorkerConnection {
+        final Socket           socket;
+        final DataOutputStream out;
+        final String           name;
+        final int              capacity;
+
+        /**
+         * The items the worker has been given but hasn't finished, by their ids
+         */
+        final LinkedHashMap<Long, Item> outstanding = new LinkedHashMap<Long, Item>();
+
+        /**
+         * The ids of the graphs the worker has been sent
+         */
+        final HashSet<String> graphs = new HashSet<String>();
+
+        WorkerConnection(Socket socket, String name, int capacity) throws IOException {
+            this.socket   = socket;
+            this.name     = name;
+            this.capacity = Math.max(1, capacity);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        /**
+         * Write the given message to the worker
+         */
+        void send(Message message) throws IOException {
+            synchronized (out) {
+                message.write(out);
+                out.flush();
+            }
+        }
+
+        /**
+         * Disconnect the worker
+         */
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    /**
+     * A job that has been submitted
+     */
+    private static class Job {
+        final long   id;
+        final String graphId;
+        final byte[] source;
+        final File   outputDir;
+
+        /**
+         * The number of items that haven't been finished, and that have been processed
+         * or failed (with the coordinator locked)
+         */
+        int remaining, processed = 0, failed = 0;
+
+        /**
+         * The workers that have been given items of the job (and, once it is
+         * closing, haven't yet closed their manifest shards)
+         */
+        final HashSet<WorkerConnection> participants = new HashSet<WorkerConnection>();
+
+        /**
+         * The names of the manifest shards of the workers that have been given items of the job
+         */
+        final HashSet<String> shards = new HashSet<String>();
+
+        /**
+         * Whether every item is done and the workers have been asked to close their shards
+         */
+        boolean closing = false;
+
+        /**
+         * Completes once the job is done
+         */
+        final CompletableFuture<Void> finished = new CompletableFuture<Void>();
+
+        Job(long id, String graphId, byte[] source, File outputDir, int count) {
+            this.id        = id;
+            this.graphId   = graphId;
+            this.source    = source;
+            this.outputDir = outputDir;
+            remaining = count;
+        }
+    }
+
+    /**
+     * An input file of a job, and the name of its item (see BatchInputs.Item.getName())
+     */
+    private static class Item {
+        final long   id;
+        final Job    job;
+        final File   file;
+        final String name;
+
+        Item(long id, Job job, File file, String name) {
+            this.id   = id;
+            this.job  = job;
+            this.file = file;
+            this.name = name;
+        }
+    }
+
+    /**
+     * Main method: runs a coordinator until the process is killed, or submits a job to one.
+     * To run a coordinator, the optional arguments are the port (DEFAULT_PORT by default),
+     * the heartbeat time in seconds, a number of worker processes to launch on this machine
+     * (none by default), each with as many threads as there are processors divided between
+     * them, and the address to listen on (the loopback address by default; 0.0.0.0 for
+     * every address, so workers on other machines can connect). To submit a job: submit <host> <port> <graph file> <input directory or
+     * list file> <output directory> (see ShardedBatch.listInputFiles())
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("submit")) {
+            if (args.length < 6) {
+                System.out.println("Usage: FarmCoordinator submit <host> <port> <graph file> "+
+                    "<input directory or list file> <output directory>");
+                return;
+            }
+            byte[] source = Files.readAllBytes(new File(args[3]).toPath());
+            List<File> inputFiles = ShardedBatch.listInputFiles(new File(args[4]));
+            long start = System.nanoTime();
+            int[] result = submitRemote(args[1], Integer.parseInt(args[2]), source, inputFiles, new File(args[5]));
+            System.out.printf("%d of %d file(s) processed, %d failed, in %.1f s%n", result[0], inputFiles.size(),
+                result[1], (System.nanoTime() - start) / 1e9);
+            return;
+        }
+
+        int port        = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        long heartbeat  = args.length > 1 ? (long)(Double.parseDouble(args[1]) * 1000) : DEFAULT_HEARTBEAT_MILLIS;
+        int localWorkers = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        InetAddress address = args.length > 3 ? InetAddress.getByName(args[3]) : InetAddress.getLoopbackAddress();
+        FarmCoordinator coordinator = new FarmCoordinator(address, port, heartbeat);
+        coordinator.start();
+        System.out.println("Coordinating on "+address.getHostAddress()+" port "+coordinator.getPort());
+        if (localWorkers > 0)
+            coordinator.launchLocalWorkers(localWorkers,
+                Math.max(1, Runtime.getRuntime().availableProcessors() / localWorkers));
+    }
+}
@@ -0,0 +1,322 @@
+package edu.nmsu.imgflow;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * A worker of a render farm: connects to a FarmCoordinator and processes the items it is
+ * given, on a fixed number of threads, until the coordinator goes away. Doesn't need the
+ * application (or a display) to be running. See FarmCoordinator for the protocol.
+ *
+ * Each item is run through its graph by a BatchJob (so up-to-date outputs are skipped
+ * and input files are decoded through the shared ImageDecodeCache), recording its outputs
+ * in this worker's shard of the output directory's BatchManifest for the item's job. Graph
+ * files are kept for as long as the worker runs, by their ids, and each parsed copy of a
+ * graph is reused for later items of the same graph, so nodes that only depend on constant
+ * files (e.g. a watermark) aren't processed again. A graph is only used by one thread at
+ * a time; threads processing the same graph at the same time each parse their own copy.
+ * The outputs of every item are saved through one WriteBehindQueue, so the number of
+ * writer threads doesn't grow with the number of items.
+ */
+public class FarmWorker {
+
+    private final String host;
+    private final int    port;
+    private final int    threads;
+    private final String name;
+
+    /**
+     * The graph files the coordinator has sent, by their ids
+     */
+    private final HashMap<String, byte[]> sources = new HashMap<String, byte[]>();
+
+    /**
+     * The parsed copies of each graph that are not in use, by the graph's id
+     */
+    private final HashMap<String, ArrayDeque<ParsedGraph>> idle = new HashMap<String, ArrayDeque<ParsedGraph>>();
+
+    /**
+     * The open manifest shards, by the id of the job they are for
+     */
+    private final HashMap<Long, BatchManifest> manifests = new HashMap<Long, BatchManifest>();
+
+    private DataOutputStream out;
+
+    /**
+     * Create a new FarmWorker that processes items on the given number of threads for
+     * the coordinator at the given host and port. The name must be different for each
+     * worker (and only use characters that can be in a file name); it names the worker's
+     * manifest shards
+     */
+    public FarmWorker(String host, int port, int threads, String name) {
+        this.host    = host;
+        this.port    = port;
+        this.threads = threads;
+        this.name    = name;
+    }
+
+    /**
+     * Connect to the coordinator and process the items it gives until it
+     * disconnects. Returns once the coordinator has gone away
+     */
+    public void run() throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, (runnable) -> {
+            Thread thread = new Thread(runnable, "Farm worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        WriteBehindQueue queue = new WriteBehindQueue();
+        Thread heartbeat = null;
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            send((out) -> {
+                out.writeByte(FarmCoordinator.HELLO);
+                out.writeUTF(name);
+                out.writeInt(threads);
+            });
+            if (in.readByte() != FarmCoordinator.WELCOME)
+                throw new IOException("Unexpected reply from the coordinator");
+            long heartbeatMillis = in.readLong();
+            heartbeat = new Thread(() -> heartbeat(heartbeatMillis), "Farm heartbeat");
+            heartbeat.setDaemon(true);
+            heartbeat.start();
+
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (IOException e) {
+                    // The coordinator has gone away
+                    break;
+                }
+                if (type == FarmCoordinator.GRAPH) {
+                    String id = in.readUTF();
+                    byte[] source = new byte[in.readInt()];
+                    in.readFully(source);
+                    synchronized (sources) {
+                        sources.put(id, source);
+                    }
+                }
+                else if (type == FarmCoordinator.ITEM) {
+                    long itemId   = in.readLong();
+                    long jobId    = in.readLong();
+                    String graphId = in.readUTF();
+                    File input     = new File(in.readUTF());
+                    String itemName = in.readUTF();
+                    File outputDir = new File(in.readUTF());
+                    pool.execute(() -> process(itemId, jobId, graphId, input, itemName, outputDir, queue));
+                }
+                else if (type == FarmCoordinator.CLOSE) {
+                    long jobId = in.readLong();
+                    closeManifest(jobId);
+                    send((out) -> {
+                        out.writeByte(FarmCoordinator.CLOSED);
+                        out.writeLong(jobId);
+                    });
+                }
+                else {
+                    throw new IOException("Unexpected message "+type+" from the coordinator");
+                }
+            }
+        } finally {
+            if (heartbeat != null)
+                heartbeat.interrupt();
+            pool.shutdownNow();
+            // The manifests are only closed once the outputs still being written are recorded
+            try {
+                queue.finish();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (manifests) {
+                for (BatchManifest manifest : manifests.values())
+                    manifest.close();
+                manifests.clear();
+            }
+        }
+    }
+
+    /**
+     * Process an item: run the given input file through the graph with the given id,
+     * naming its outputs after the given item name and saving them into the given
+     * output directory through the given queue, and tell the coordinator it is done
+     */
+    private void process(long itemId, long jobId, String graphId, File input, String itemName, File outputDir,
+            WriteBehindQueue queue) {
+        String error = null;
+        ParsedGraph graph = null;
+        try {
+            graph = acquire(graphId);
+            BatchInputs inputs = new BatchInputs();
+            inputs.bindFileList(graph.inputNode, Collections.singletonList(input));
+            BatchInputs.Item item = inputs.getItems().get(0);
+            item.setName(itemName);
+            BatchJob job = new BatchJob();
+            job.addGraph(inputs.select(Collections.singletonList(item)), graph.outputNodes, outputDir,
+                getManifest(jobId, outputDir));
+            job.run(queue);
+            // Errors are only reported on standard output, so say where to look
+            if (!job.getFailedItems().isEmpty())
+                error = "Some outputs could not be made or saved (see the output of "+name+")";
+        } catch (Exception e) {
+            error = e.getMessage() != null ? e.getMessage() : e.toString();
+        } finally {
+            if (graph != null)
+                release(graphId, graph);
+        }
+
+        String message = error;
+        try {
+            send((out) -> {
+                out.writeByte(FarmCoordinator.DONE);
+                out.writeLong(itemId);
+                out.writeBoolean(message == null);
+                out.writeUTF(message == null ? "" : message);
+            });
+        } catch (IOException e) {
+            // The coordinator has gone away, and will give the item to another worker
+        }
+    }
+
+    /**
+     * Get a parsed copy of the graph with the given id that no other thread is using
+     */
+    private ParsedGraph acquire(String id) throws IOException {
+        byte[] source;
+        synchronized (sources) {
+            ArrayDeque<ParsedGraph> copies = idle.get(id);
+            if (copies != null && !copies.isEmpty())
+                return copies.pop();
+            source = sources.get(id);
+        }
+        if (source == null)
+            throw new IOException("No graph with id "+id);
+
+        Graph graph = GraphSaveLoad.loadGraph(new ByteArrayInputStream(source));
+        if (graph == null)
+            throw new IOException("Could not parse the graph");
+        ParsedGraph parsed = new ParsedGraph(graph);
+        if (parsed.inputNode == null || parsed.outputNodes.isEmpty())
+            throw new IOException("The graph needs a File IN node and a File OUT node");
+        return parsed;
+    }
+
+    /**
+     * Give back a parsed copy of the graph with the given id, for later items to use
+     */
+    private void release(String id, ParsedGraph graph) {
+        synchronized (sources) {
+            idle.computeIfAbsent(id, (key) -> new ArrayDeque<ParsedGraph>()).push(graph);
+        }
+    }
+
+    /**
+     * Get this worker's manifest shard for the job with the given id, opening it if needed
+     */
+    private BatchManifest getManifest(long jobId, File outputDir) throws IOException {
+        synchronized (manifests) {
+            BatchManifest manifest = manifests.get(jobId);
+            if (manifest == null) {
+                manifest = new BatchManifest(outputDir, getShardName(name, jobId));
+                manifests.put(jobId, manifest);
+            }
+            return manifest;
+        }
+    }
+
+    /**
+     * Get the name of the manifest shard that the worker with the given name
+     * records the outputs of the job with the given id in
+     */
+    static String getShardName(String worker, long jobId) {
+        return worker+"-"+jobId;
+    }
+
+    /**
+     * Close this worker's manifest shard for the job with the given id, if it has one
+     */
+    private void closeManifest(long jobId) throws IOException {
+        BatchManifest manifest;
+        synchronized (manifests) {
+            manifest = manifests.remove(jobId);
+        }
+        if (manifest != null)
+            manifest.close();
+    }
+
+    /**
+     * Send a heartbeat every heartbeatMillis / 3, until interrupted or the coordinator goes away
+     */
+    private void heartbeat(long heartbeatMillis) {
+        try {
+            while (true) {
+                Thread.sleep(heartbeatMillis / 3);
+                send((out) -> out.writeByte(FarmCoordinator.HEARTBEAT));
+            }
+        } catch (InterruptedException | IOException e) {
+            // Stopped
+        }
+    }
+
+    /**
+     * Write the given message to the coordinator
+     */
+    private void send(Message message) throws IOException {
+        synchronized (out) {
+            message.write(out);
+            out.flush();
+        }
+    }
+
+    /**
+     * Writes a message to the coordinator
+     */
+    private interface Message {
+        public void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * A parsed copy of a graph file, and its input File IN node and File OUT nodes
+     */
+    private static class ParsedGraph {
+        final Graph                  graph;
+        final GraphNodeFileIn        inputNode;
+        final List<GraphNodeFileOut> outputNodes;
+
+        ParsedGraph(Graph graph) {
+            this.graph  = graph;
+            inputNode   = ShardedBatch.findInputNode(graph);
+            outputNodes = ShardedBatch.findOutputNodes(graph);
+        }
+    }
+
+    /**
+     * Main method: runs a worker until its coordinator goes away. The arguments are the
+     * coordinator's host and port, and optionally the number of threads (the number of
+     * processors by default) and the worker name (by default the process id and host name)
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: FarmWorker <host> <port> [threads] [worker name]");
+            return;
+        }
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        String name = args.length > 3 ? args[3] : ShardedBatch.getDefaultWorkerName();
+        System.out.println("Worker "+name+" processing for "+args[0]+":"+args[1]+" on "+threads+" thread(s)");
+        new FarmWorker(args[0], Integer.parseInt(args[1]), threads, name).run();
+    }
+}
@@ -1,6 +1,12 @@
 package edu.nmsu.imgflow;
 
 import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
 
 import javafx.geometry.Point2D;
 
@@ -16,6 +22,14 @@ public class Graph {
      */
     private ArrayList<GraphNode> nodes;
 
+    /**
+     * The nodes of the graph in topological order, meaning that every node comes
+     * after all of the nodes that are connected to its inputs. This is kept
+     * up-to-date as nodes are added, removed and connected.
+     * (Each node's position in this list is stored in the node's topologicalIndex)
+     */
+    private ArrayList<GraphNode> order;
+
     /**
      * The node that is currently selected, or null if no node is selected
      */
@@ -27,12 +41,28 @@ public class Graph {
      */
     private ArrayList<NodeSelectListener> nodeSelectListeners;
 
+    /**
+     * The list of registered node update listeners, triggered
+     * when a node's image data becomes out-of-date.
+     */
+    private ArrayList<NodeUpdateListener> nodeUpdateListeners;
+
+    /**
+     * A counter that is incremented whenever anything about the graph changes
+     * that would change how it looks (nodes being added, removed, moved, renamed,
+     * connected, etc.). Viewers can compare this against the revision they last
+     * drew to know whether or not they need to draw again.
+     */
+    private long revision;
+
     /**
      * Create a new, empty graph
      */
     public Graph() {
         nodes = new ArrayList<GraphNode>();
+        order = new ArrayList<GraphNode>();
         nodeSelectListeners = new ArrayList<NodeSelectListener>();
+        nodeUpdateListeners = new ArrayList<NodeUpdateListener>();
     }
 
     /**
@@ -53,47 +83,180 @@ public class Graph {
         invert.setPosition(new Point2D(0.0, 1.5));
         opacity.setPosition(new Point2D(0.0,-1.5));
 
-        graph.getNodes().add(in);
-        graph.getNodes().add(out);
-        graph.getNodes().add(colorEffects);
-        graph.getNodes().add(invert);
-        graph.getNodes().add(opacity);
+        graph.addNode(in);
+        graph.addNode(out);
+        graph.addNode(colorEffects);
+        graph.addNode(invert);
+        graph.addNode(opacity);
 
         return graph;
     }
 
+    /**
+     * Add the given node to the graph
+     */
+    public void addNode(GraphNode node) {
+        nodes.add(node);
+        node.setGraph(this);
+        // A new node isn't connected to anything, so it can go anywhere in the order
+        node.topologicalIndex = order.size();
+        order.add(node);
+        markChanged();
+    }
+
+    /**
+     * Remove the given node from the graph. If the node is selected,
+     * it is deselected first. This does NOT disconnect the node's sockets
+     */
+    public void removeNode(GraphNode node) {
+        if (selectedNode == node)
+            selectNode(null);
+        if (nodes.remove(node)) {
+            node.setGraph(null);
+            // Removing a node can't invalidate the order, it just shifts the nodes after it
+            order.remove(node.topologicalIndex);
+            for (int i = node.topologicalIndex; i < order.size(); i++)
+                order.get(i).topologicalIndex = i;
+            markChanged();
+            notifyNodeUpdate(node);
+        }
+    }
+
+    /**
+     * Indicate that something about the graph has changed which would
+     * change how it looks. See getRevision()
+     */
+    public void markChanged() { revision++; }
+
+    /**
+     * Get the graph's current revision. This changes every time something
+     * about the graph changes that would change how it looks
+     */
+    public long getRevision() { return revision; }
+
     /**
      * Determine whether or connecting the two given sockets would be safe (as in
      * not creating a loop in the graph)
+     * 
+     * If the output's node already comes before the input's node in the topological
+     * order, the connection is safe without looking any further. Otherwise, only the
+     * nodes between the two in the order need to be searched.
      */
     public boolean isConnectionSafe(NodeSocketOutput output, NodeSocketInput input) {
         GraphNode fromNode = output.getParentNode();
         GraphNode toNode = input.getParentNode();
 
+        if (fromNode == toNode)
+            return false;
+        // If either node isn't in this graph, there is no order to go by,
+        // so search everything downstream
+        if (fromNode.getGraph() != this || toNode.getGraph() != this)
+            return !(searchDownstream(toNode, fromNode, Integer.MAX_VALUE, new HashSet<GraphNode>()));
+        if (fromNode.topologicalIndex < toNode.topologicalIndex)
+            return true;
+
         // Search for the first node from the second. If it is found,
         // there is a loop
-        return !(searchForNode(toNode, fromNode));
+        return !(searchDownstream(toNode, fromNode, fromNode.topologicalIndex, new HashSet<GraphNode>()));
+    }
+
+    /**
+     * Walk through the graph (downstream) from the given starting node, adding every
+     * node that is visited to the given set. Nodes whose topological index is greater
+     * than maxIndex are not visited (when walking from a node in a valid order, the
+     * target node can't be past its own index). Returns whether or not the target node
+     * was found.
+     */
+    private boolean searchDownstream(GraphNode start, GraphNode target, int maxIndex, HashSet<GraphNode> visited) {
+        ArrayDeque<GraphNode> stack = new ArrayDeque<GraphNode>();
+        stack.push(start);
+        visited.add(start);
+        while (!stack.isEmpty()) {
+            GraphNode node = stack.pop();
+            for (NodeSocketOutput output : node.getOutputSockets()) {
+                NodeSocketInput otherSocket = output.getConnectingSocket();
+                if (otherSocket == null) continue;
+                GraphNode otherNode = otherSocket.getParentNode();
+                if (otherNode == target)
+                    return true;
+                if (otherNode.topologicalIndex <= maxIndex && visited.add(otherNode))
+                    stack.push(otherNode);
+            }
+        }
+        return false;
     }
 
     /**
-     * Recursively walk through the graph (downstream) from the given starting
-     * node to find the given target node. Returns whether or not the target node
-     * was found
+     * Walk through the graph (upstream) from the given starting node, adding every node
+     * that is visited to the given set. Nodes whose topological index is less than
+     * minIndex are not visited.
      */
-    private boolean searchForNode(GraphNode start, GraphNode target) {
-        boolean found = false;
-        for (NodeSocketOutput output : start.getOutputSockets()) {
-            NodeSocketInput otherSocket = output.getConnectingSocket();
-            if (otherSocket != null) {
+    private void searchUpstream(GraphNode start, int minIndex, HashSet<GraphNode> visited) {
+        ArrayDeque<GraphNode> stack = new ArrayDeque<GraphNode>();
+        stack.push(start);
+        visited.add(start);
+        while (!stack.isEmpty()) {
+            GraphNode node = stack.pop();
+            for (NodeSocketInput input : node.getInputSockkets()) {
+                NodeSocketOutput otherSocket = input.getConnectingSocket();
+                if (otherSocket == null) continue;
                 GraphNode otherNode = otherSocket.getParentNode();
-                if (otherNode == target) {
-                    found = true;
-                    break;
-                }
-                found = found || searchForNode(otherNode, target);
+                if (otherNode.topologicalIndex >= minIndex && visited.add(otherNode))
+                    stack.push(otherNode);
             }
         }
-        return found;
+    }
+
+    /**
+     * Update the topological order of the graph after a connection was made
+     * from one node to another. This is called by the input socket when it connects.
+     * 
+     * This uses the algorithm by Pearce and Kelly: if the nodes are already in order,
+     * nothing changes. Otherwise only the nodes between them in the order that are
+     * affected by the new connection (downstream of the 'to' node or upstream of the
+     * 'from' node) get shuffled around, re-using their own positions in the order.
+     */
+    public void connectionAdded(GraphNode fromNode, GraphNode toNode) {
+        if (fromNode.getGraph() != this || toNode.getGraph() != this) return;
+        int lower = toNode.topologicalIndex;
+        int upper = fromNode.topologicalIndex;
+        if (upper < lower) return;
+
+        // Find the affected nodes on either side
+        HashSet<GraphNode> downstream = new HashSet<GraphNode>();
+        if (searchDownstream(toNode, fromNode, upper, downstream)) {
+            System.out.println("Connection created a loop in the graph! Unable to order nodes!");
+            return;
+        }
+        HashSet<GraphNode> upstream = new HashSet<GraphNode>();
+        searchUpstream(fromNode, lower, upstream);
+
+        // Sort both sets by their current order
+        ArrayList<GraphNode> upstreamList   = new ArrayList<GraphNode>(upstream);
+        ArrayList<GraphNode> downstreamList = new ArrayList<GraphNode>(downstream);
+        Comparator<GraphNode> byIndex = (a, b) -> Integer.compare(a.topologicalIndex, b.topologicalIndex);
+        upstreamList.sort(byIndex);
+        downstreamList.sort(byIndex);
+
+        // Gather the positions in the order that the nodes occupy
+        int[] positions = new int[upstreamList.size() + downstreamList.size()];
+        int i = 0;
+        for (GraphNode node : upstreamList)   positions[i++] = node.topologicalIndex;
+        for (GraphNode node : downstreamList) positions[i++] = node.topologicalIndex;
+        Arrays.sort(positions);
+
+        // Place the upstream nodes first, then the downstream nodes, in those positions
+        i = 0;
+        for (GraphNode node : upstreamList)   placeInOrder(node, positions[i++]);
+        for (GraphNode node : downstreamList) placeInOrder(node, positions[i++]);
+    }
+
+    /**
+     * Put the given node at the given index of the topological order
+     */
+    private void placeInOrder(GraphNode node, int index) {
+        node.topologicalIndex = index;
+        order.set(index, node);
     }
 
     /**
@@ -107,11 +270,13 @@ public class Graph {
 
         if (node == null) {
             selectedNode = null;
+            markChanged();
             for (NodeSelectListener listener : nodeSelectListeners)
                 listener.handle(selectedNode);
         }
         else if (nodes.contains(node)) {
             selectedNode = node;
+            markChanged();
             for (NodeSelectListener listener : nodeSelectListeners)
                 listener.handle(selectedNode);
         }
@@ -126,14 +291,50 @@ public class Graph {
         nodeSelectListeners.add(listener);
     }
 
+    /**
+     * Add a node update listener to this graph. It will be invoked
+     * whenever the image data of a node in the graph becomes out-of-date
+     * (or when a node is removed from the graph)
+     */
+    public void addNodeUpdateListener(NodeUpdateListener listener) {
+        nodeUpdateListeners.add(listener);
+    }
+
+    /**
+     * Indicate that the image data of the given node has become out-of-date.
+     * This is called by the node's sockets as updates propagate through the graph.
+     */
+    public void notifyNodeUpdate(GraphNode node) {
+        for (NodeUpdateListener listener : nodeUpdateListeners)
+            listener.handle(node);
+    }
+
     /**
      * Get the currently selected node, or null if no node
      * in the graph is selected
      */
     public GraphNode getSelectedNode() { return selectedNode;}
 
+    /**
+     * Get the nodes in the graph in topological order, meaning that every node
+     * comes after all of the nodes connected to its inputs. Processing the nodes in
+     * this order guarantees that each node's inputs are processed before it is.
+     */
+    public List<GraphNode> getTopologicalOrder() { return Collections.unmodifiableList(order); }
+
     /**
      * Get the list of nodes in the graph
      */
     public ArrayList<GraphNode> getNodes() { return nodes; }
-}
\ No newline at end of file
+
+    /**
+     * Get the node with the given (custom) name, or null if there is none.
+     * If several nodes have the name, the first one added is returned
+     */
+    public GraphNode getNode(String name) {
+        for (GraphNode node : nodes)
+            if (node.getName().equals(name))
+                return node;
+        return null;
+    }
+}
@@ -2,10 +2,11 @@ package edu.nmsu.imgflow;
 
 import java.util.ArrayList;
 
+import javafx.geometry.Bounds;
 import javafx.geometry.Point2D;
 import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.Image;
 import javafx.scene.paint.Color;
-import javafx.scene.text.Font;
 
 /**
  * Represents a single node on the image pipeline graph.
@@ -39,6 +40,17 @@ public abstract class GraphNode {
     // to the beginning of the baseline for the node title text
     public static final Point2D NODE_TITLE_POS = new Point2D(NODE_ROW_PADDING, NODE_ROW_HEIGHT - NODE_ROW_PADDING);
     public static final double  NODE_TITLE_SIZE = 0.2;
+    // Below the rows, nodes with a thumbnail socket have an area this tall
+    // where a thumbnail of their image is drawn
+    public static final double  NODE_THUMBNAIL_HEIGHT = 1.2;
+
+    // Level-of-detail thresholds for drawing nodes.
+    // Note that these are in PIXELS (on the canvas), not graph units!
+    // If a row would be drawn smaller than this, the node is drawn as a single
+    // rectangle without its rows or sockets
+    public static final double  LOD_MIN_ROW_PIXELS  = 6.0;
+    // If the title text would be drawn smaller than this, it is skipped entirely
+    public static final double  LOD_MIN_TEXT_PIXELS = 7.0;
 
 
     // ################################
@@ -79,6 +91,18 @@ public abstract class GraphNode {
      */
     protected ArrayList<NodeSocket> allSockets;
 
+    /**
+     * The graph that this node has been added to. Null if the node
+     * is not in a graph
+     */
+    protected Graph graph;
+
+    /**
+     * This node's position in its graph's topological order.
+     * This is managed by the graph (see Graph.getTopologicalOrder())
+     */
+    protected int topologicalIndex;
+
     // ################################
     // # CONSTRUCTOR
     // ################################
@@ -160,6 +184,63 @@ public abstract class GraphNode {
         return null;
     }
 
+    /**
+     * Get the ImageRequest that this node makes of the node connected to the
+     * given input socket, i.e. how much of that input's image this node needs
+     * to produce its outputs. This is set on the connected output socket whenever
+     * the input socket requests an update.
+     * 
+     * By default, this returns the combined request of this node's output sockets
+     * if the node passes requests through (see passesImageRequests()),
+     * and null (the full image) otherwise.
+     */
+    public ImageRequest getInputRequest(NodeSocketInput input) {
+        if (passesImageRequests())
+            return getOutputRequest();
+        return null;
+    }
+
+    /**
+     * Whether the images requested from this node's output sockets can simply be
+     * requested from its inputs. This is true for nodes that work on each pixel
+     * independently and output an image the same size as their input: each output
+     * pixel only depends on the same input pixel, so when a smaller output is
+     * requested (e.g. for a preview), only a smaller input is needed. By default,
+     * this returns false.
+     */
+    protected boolean passesImageRequests() { return false; }
+
+    /**
+     * Whether the images this node outputs depend on the ImageRequests set on its
+     * output sockets. If they do, an output socket is marked as needing an update
+     * when its request changes. By default, this is the same as passesImageRequests().
+     */
+    public boolean usesImageRequests() { return passesImageRequests(); }
+
+    /**
+     * Get the smallest ImageRequest that satisfies the requests of all of this
+     * node's connected output sockets. Returns null (the full image) if any of
+     * them needs the full image, or if no output socket is connected.
+     */
+    protected ImageRequest getOutputRequest() {
+        ImageRequest combined = null;
+        boolean connected = false;
+        for (NodeSocketOutput output : outputSockets) {
+            if (output.getConnectingSocket() == null)
+                continue;
+            if (!connected) {
+                combined  = output.getRequest();
+                connected = true;
+            }
+            else {
+                combined = ImageRequest.union(combined, output.getRequest());
+            }
+            if (combined == null)
+                return null;
+        }
+        return combined;
+    }
+
     /**
      * Process the image from the input(s) and write new image data
      * to the output(s). This function should not be called directly and is
@@ -182,15 +263,15 @@ public abstract class GraphNode {
     public void onPropertyUpdate(NodeProperty<?> updatedProperty) {
         if (updatedProperty == nameProperty) {
             name = nameProperty.getValue();
+            if (graph != null)
+                graph.markChanged();
         }
         else {
             for (NodeSocketOutput output : outputSockets) {
                 output.propagateUpdate();
             }
-            if (Main.getInstance().getActiveGraph().getSelectedNode() == this) {
-                update();
+            if (graph != null && graph.getSelectedNode() == this)
                 Main.getInstance().getPropertyPanel().refreshPreview();
-            }
         }
     }
 
@@ -239,13 +320,29 @@ public abstract class GraphNode {
      * Draw this node in the given viewport.
      * This assumes that the graphics context in the viewport
      * has already been transformed to graph space!!
+     * 
+     * How much of the node is drawn depends on the viewport's zoom level. When zoomed
+     * far out, the title text is skipped and the node is drawn as a single rectangle
+     * (see LOD_MIN_ROW_PIXELS and LOD_MIN_TEXT_PIXELS). Connections are not drawn here,
+     * see traceConnections()
      */
     public void draw(Viewport viewport) {
         GraphicsContext ctx = viewport.getGraphicsContext();
+        double height = getHeight();
+
         // transform the canvas context to draw relative to the node's position
         ctx.save();
         ctx.translate(position.getX(), position.getY());
 
+        // If rows would be too small to make out, just draw the node as a single rectangle
+        if (viewport.graphUnitsToPixels(NODE_ROW_HEIGHT) < LOD_MIN_ROW_PIXELS) {
+            ctx.setFill(Color.web("#439be8"));
+            ctx.fillRect(0.0, 0.0, NODE_WIDTH, height);
+            drawOutline(viewport, height);
+            ctx.restore();
+            return;
+        }
+
         // keep track of how far down the node we're drawing
         double cursorY      = 0.0;
 
@@ -254,20 +351,22 @@ public abstract class GraphNode {
         ctx.fillRect(0.0, cursorY, NODE_WIDTH, NODE_ROW_HEIGHT);
         cursorY += NODE_ROW_HEIGHT;
 
-        // When drawing the title, we scale back to viewport size because text rendering
-        // may break otherwise.
-        ctx.save();
-        ctx.translate(-position.getX(), -position.getY());
-        viewport.transformContextToCanvasSpace(ctx);
-
-        Font font =   new Font(viewport.graphUnitsToPixels(NODE_TITLE_SIZE));
-        Point2D pos = viewport.graphCoordToCanvasCoord(position.add(NODE_TITLE_POS));
-        ctx.setFill(Color.BLACK);
-        ctx.setFont(font);
-        ctx.fillText(getName(), pos.getX(), pos.getY());
-
-        // return to drawing relative to node posittion (in graph units)
-        ctx.restore();
+        // Only draw the title if it would be large enough to read
+        if (viewport.graphUnitsToPixels(NODE_TITLE_SIZE) >= LOD_MIN_TEXT_PIXELS) {
+            // When drawing the title, we scale back to viewport size because text rendering
+            // may break otherwise.
+            ctx.save();
+            ctx.translate(-position.getX(), -position.getY());
+            viewport.transformContextToCanvasSpace(ctx);
+
+            Point2D pos = viewport.graphCoordToCanvasCoord(position.add(NODE_TITLE_POS));
+            ctx.setFill(Color.BLACK);
+            ctx.setFont(viewport.getTitleFont());
+            ctx.fillText(getName(), pos.getX(), pos.getY());
+
+            // return to drawing relative to node posittion (in graph units)
+            ctx.restore();
+        }
 
         // Draw rows
         int rowsToDraw   = Math.max(getNumInputSockets(), getNumOutputSockets());
@@ -278,36 +377,74 @@ public abstract class GraphNode {
             cursorY += NODE_ROW_HEIGHT;
         }
 
+        // Draw thumbnail
+        if (getThumbnailSocket() != null) {
+            ctx.setFill(Color.web("black",0.7));
+            ctx.fillRect(0.0, cursorY, NODE_WIDTH, NODE_THUMBNAIL_HEIGHT);
+            Image thumbnail = Main.getInstance().getThumbnailCache().get(this);
+            if (thumbnail != null) {
+                // Fit the thumbnail inside the area (with padding), keeping its aspect ratio
+                double maxWidth  = NODE_WIDTH - (2 * NODE_ROW_PADDING);
+                double maxHeight = NODE_THUMBNAIL_HEIGHT - (2 * NODE_ROW_PADDING);
+                double scale  = Math.min(maxWidth / thumbnail.getWidth(), maxHeight / thumbnail.getHeight());
+                double thumbWidth  = thumbnail.getWidth()  * scale;
+                double thumbHeight = thumbnail.getHeight() * scale;
+                ctx.drawImage(thumbnail,
+                    (NODE_WIDTH - thumbWidth) / 2.0, cursorY + (NODE_THUMBNAIL_HEIGHT - thumbHeight) / 2.0,
+                    thumbWidth, thumbHeight);
+            }
+            cursorY += NODE_THUMBNAIL_HEIGHT;
+        }
+
         // Draw sockets
         ctx.setFill(Color.web("#5dc9ea"));
-        ctx.setStroke(Color.web("#85d8f2"));
-        ctx.setLineWidth(viewport.pixelsToGraphUnits(2.5));
-        for (NodeSocket socket : allSockets) {
+        for (NodeSocket socket : allSockets)
             ctx.fillRect(socket.getPosition().getX(), socket.getPosition().getY(), NODE_SOCKET_SIZE, NODE_SOCKET_SIZE);
-            // If the socket is an output socket with a connection, draw the connection line
-            if (socket instanceof NodeSocketOutput) {
-                NodeSocketOutput out = (NodeSocketOutput)socket;
-                NodeSocketInput  in  = out.getConnectingSocket();
-                if (in != null) {
-                    // Get position of other socket relative to this socket's parent node
-                    Point2D inPos = in.getParentNode().getPosition().subtract(position).add(in.getConnectingPosition());
-                    Point2D outPos = out.getConnectingPosition();
-                    ctx.strokeLine(outPos.getX(), outPos.getY(), inPos.getX(), inPos.getY());
-                } 
-            }
-        }
 
-        // Draw outline if node is being hovered over or selected
+        drawOutline(viewport, cursorY);
+
+        // return drawing relative to graph origin (in graph units)
+        ctx.restore();
+    }
+
+    /**
+     * Draw an outline around the node if it is being hovered over or selected.
+     * This assumes that the graphics context has already been transformed to
+     * draw relative to the node's position
+     */
+    private void drawOutline(Viewport viewport, double height) {
+        GraphicsContext ctx = viewport.getGraphicsContext();
         boolean isSelected = Main.getInstance().getActiveGraph().getSelectedNode() == this;
         if (viewport.getHoverQuery().getHoveringNode() == this || isSelected) {
             ctx.setLineWidth(viewport.pixelsToGraphUnits(3.0));
             // outline color depends on if this node is selected or not
             ctx.setStroke(isSelected ? Color.YELLOW : Color.WHITE);
-            ctx.strokeRect(0.0, 0.0, NODE_WIDTH, cursorY);
+            ctx.strokeRect(0.0, 0.0, NODE_WIDTH, height);
         }
+    }
 
-        // return drawing relative to graph origin (in graph units)
-        ctx.restore();
+    /**
+     * Add a line segment for each of this node's outgoing connections to the current
+     * path of the given graphics context (in graph units). Nothing is stroked here, so
+     * that the viewport can draw the connections of every node with a single stroke.
+     */
+    public void traceConnections(GraphicsContext ctx) {
+        for (NodeSocketOutput out : outputSockets) {
+            NodeSocketInput in = out.getConnectingSocket();
+            if (in != null) {
+                Point2D outPos = position.add(out.getConnectingPosition());
+                Point2D inPos  = in.getParentNode().getPosition().add(in.getConnectingPosition());
+                ctx.moveTo(outPos.getX(), outPos.getY());
+                ctx.lineTo(inPos.getX(), inPos.getY());
+            }
+        }
+    }
+
+    /**
+     * Get whether or not any part of this node lies within the given bounds (in graph units)
+     */
+    public boolean intersects(Bounds bounds) {
+        return bounds.intersects(position.getX(), position.getY(), NODE_WIDTH, getHeight());
     }
 
     // ################################
@@ -321,7 +458,22 @@ public abstract class GraphNode {
     /**
      * Set the position of this node in the graph view.
      */
-    public void     setPosition(Point2D pos) { position = pos; }
+    public void     setPosition(Point2D pos) {
+        position = pos;
+        if (graph != null)
+            graph.markChanged();
+    }
+
+    /**
+     * Get the height of this node when drawn in the graph view (in graph units).
+     * (The width is always NODE_WIDTH)
+     */
+    public double   getHeight() {
+        double height = (Math.max(getNumInputSockets(), getNumOutputSockets()) + 1) * NODE_ROW_HEIGHT;
+        if (getThumbnailSocket() != null)
+            height += NODE_THUMBNAIL_HEIGHT;
+        return height;
+    }
 
     /**
      * Get the name of this individual node.
@@ -332,11 +484,32 @@ public abstract class GraphNode {
      */
     public void     setName(String name) { this.name = name; }
 
+    /**
+     * Get the graph that this node has been added to, or null if it is not in a graph
+     */
+    public Graph    getGraph() { return graph; }
+    /**
+     * Set the graph that this node belongs to.
+     * This is called by the graph itself when adding or removing nodes.
+     */
+    public void     setGraph(Graph graph) { this.graph = graph; }
+
     /**
      * Get the list of this node's properties
      */
     public ArrayList<NodeProperty<?>> getProperties() { return properties; }
 
+    /**
+     * Get this node's property with the given name (ignoring case), or
+     * null if there is none. The name property itself isn't included
+     */
+    public NodeProperty<?> getProperty(String name) {
+        for (NodeProperty<?> property : properties)
+            if (property != nameProperty && property.getName() != null && property.getName().equalsIgnoreCase(name))
+                return property;
+        return null;
+    }
+
     /**
      * Get the list of this node's input sockets
      */
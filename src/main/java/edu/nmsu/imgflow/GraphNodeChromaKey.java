@@ -34,6 +34,8 @@ public class GraphNodeChromaKey extends GraphNode {
         return "Select a color to make transparent and adjust threshold for similar colors";
     }
     
+    protected boolean passesImageRequests() { return true; }
+
     /**
      * Overright processImage to set all pixels within the threshold of
      * the user's RGB to clear
@@ -90,7 +92,7 @@ public class GraphNodeChromaKey extends GraphNode {
             }
         }        
         // Send to output socket
-        out.setImage(outImg);
+        out.setImage(outImg, in.getImageX(), in.getImageY());
     }   
     public int getNumInputSockets()  { return 1; }
     public int getNumOutputSockets() { return 1; }
@@ -34,6 +34,8 @@ public class GraphNodeColorEffects extends GraphNode {
 
     public String getDescription() { return "Modify the hue, saturation, and brightness of the image."; }
 
+    protected boolean passesImageRequests() { return true; }
+
     /**
      * Override processImage to modify the colors of the input image
      * and send it to the output.
@@ -70,6 +72,6 @@ public class GraphNodeColorEffects extends GraphNode {
         }
 
         // Send to output socket
-        out.setImage(outImg);
+        out.setImage(outImg, in.getImageX(), in.getImageY());
     }
 }
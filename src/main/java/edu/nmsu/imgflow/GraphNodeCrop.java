@@ -37,6 +37,45 @@ public class GraphNodeCrop extends GraphNode {
                                             + " output image. The pixel width and height are the dimensions of the"
                                             + " output"; }
 
+    /**
+     * Get the rectangle (x, y, width, height) of the input image that the output
+     * is cut from. This is the crop rectangle, narrowed down to the region that
+     * is requested from the output (if a region is requested)
+     */
+    private int[] getInputRegion() {
+        int x      = spinnerOriginX.getValue();
+        int y      = spinnerOriginY.getValue();
+        int width  = spinnerWidth.getValue();
+        int height = spinnerHeight.getValue();
+
+        ImageRequest request = out.getRequest();
+        if (request != null && request.hasRegion()) {
+            // The requested region is in the output's coordinates, which start at the crop origin
+            int left   = Math.max(x, x + request.getRegionX());
+            int top    = Math.max(y, y + request.getRegionY());
+            int right  = Math.min(x + width,  x + request.getRegionX() + request.getRegionWidth());
+            int bottom = Math.min(y + height, y + request.getRegionY() + request.getRegionHeight());
+            x      = left;
+            y      = top;
+            width  = Math.max(0, right - left);
+            height = Math.max(0, bottom - top);
+        }
+        return new int[] { x, y, width, height };
+    }
+
+    /**
+     * Only the cropped region of the input is needed
+     */
+    public ImageRequest getInputRequest(NodeSocketInput input) {
+        int[] region = getInputRegion();
+        return ImageRequest.forRegion(region[0], region[1], region[2], region[3]);
+    }
+
+    /**
+     * Only the requested region of the output is cut out
+     */
+    public boolean usesImageRequests() { return true; }
+
     /**
      * Override processImage to crop the input image
      * and send it to the output.
@@ -57,15 +96,18 @@ public class GraphNodeCrop extends GraphNode {
         //create outImg to be sent to output
         WritableImage outImg;
 
-        //get the spinner values to be used in creation of the ouput
-        int originX = spinnerOriginX.getValue();
-        int originY = spinnerOriginY.getValue();
-        int newWidth = spinnerWidth.getValue();
-        int newHeight = spinnerHeight.getValue();
-
+        //get the region of the input to be used in creation of the output
+        int[] region = getInputRegion();
+        int newWidth  = region[2];
+        int newHeight = region[3];
+        //the input image may itself be just a region of the full input, so
+        //find the position of the region within the input image
+        int originX = region[0] - in.getImageX();
+        int originY = region[1] - in.getImageY();
 
         //image entirely outside of original bounds
-        if(originX >= inImg.getWidth() || originY >= inImg.getHeight())
+        if(originX < 0 || originY < 0 || originX >= inImg.getWidth() || originY >= inImg.getHeight()
+            || newWidth <= 0 || newHeight <= 0)
             outImg = null;
         else{
             //error checking, default image dimensions to as large as can be 
@@ -78,8 +120,8 @@ public class GraphNodeCrop extends GraphNode {
             outImg = new WritableImage(inImg.getPixelReader(), originX, originY, newWidth, newHeight);
         }
 
-        // Send to output socket
-        out.setImage(outImg);
+        // Send to output socket, positioned relative to the crop origin
+        out.setImage(outImg, region[0] - spinnerOriginX.getValue(), region[1] - spinnerOriginY.getValue());
     }
 
 
@@ -26,10 +26,32 @@ public class GraphNodeFileIn extends GraphNode {
         return "Load an image from a file and send it to the output.";
     }
 
+    /**
+     * The image is decoded at a lower resolution when only a smaller
+     * image is requested from the output, and only the requested region
+     * is decoded when a region is requested
+     */
+    public boolean usesImageRequests() { return true; }
+
+    /**
+     * Get the ImageRequest currently set on the node's output, i.e. how much
+     * of the file's image was needed the last time the graph was updated
+     */
+    public ImageRequest getRequest() { return socket.getRequest(); }
+
     public void processImage() {
-        socket.setImage(prop.getValue());
+        ImageRequest request = socket.getRequest();
+        if (request != null && request.hasRegion())
+            socket.setImage(prop.getImage(request), request.getRegionX(), request.getRegionY());
+        else
+            socket.setImage(prop.getImage(request));
     }
 
+    /**
+     * Get the file that the node loads its image from. Null if no file is selected
+     */
+    public File getFile() { return prop.getFile(); }
+
     /**
      * Load the given file and send to the output socket.
      * If an error occurs loading the image, the new output
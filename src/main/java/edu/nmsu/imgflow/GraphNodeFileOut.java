@@ -1,6 +1,7 @@
 package edu.nmsu.imgflow;
 
 import java.io.File;
+import javafx.scene.image.WritableImage;
 
 /**
  * A type of graph node that writes the image data
@@ -9,11 +10,26 @@ import java.io.File;
 public class GraphNodeFileOut extends GraphNode {
 
     private NodePropertyFileOut prop;
+    private NodePropertyDropDown formatMenu;
+    private NodePropertyDropDown profileMenu;
+    private NodePropertyText     batchNameField;
+
+    /**
+     * The default batch file name template. It includes the node's name, so
+     * that File OUT nodes with different names save to different files
+     */
+    public static final String DEFAULT_BATCH_NAME = "{name}_{node}";
 
     public GraphNodeFileOut() {
         super();
         prop = new NodePropertyFileOut(this);
+        formatMenu  = new NodePropertyDropDown(this, "Format", ImageEncoder.FORMATS);
+        profileMenu = new NodePropertyDropDown(this, "Encoder Profile", ImageEncoder.PROFILES);
+        batchNameField = new NodePropertyText(this, "Batch File Name", DEFAULT_BATCH_NAME);
         properties.add(prop);
+        properties.add(formatMenu);
+        properties.add(profileMenu);
+        properties.add(batchNameField);
     }
 
     public NodeSocketInput getInputSocket() {
@@ -28,8 +44,62 @@ public class GraphNodeFileOut extends GraphNode {
         return "Save the input image to a file.";
     }
 
+    /**
+     * Get the format that images are saved in ("PNG", "JPEG", etc.)
+     */
+    public String getFormat() { return formatMenu.getValue(); }
+
+    /**
+     * Get the encoder profile that images are saved with ("Balanced", "Fast", etc.)
+     */
+    public String getProfile() { return profileMenu.getValue(); }
+
+    /**
+     * Get the file extension (without the dot) for the format that images are saved in
+     */
+    public String getFileExtension() { return ImageEncoder.getExtension(getFormat()); }
+
+    /**
+     * Get the file that a batch process saves this node's image to for the batch item
+     * with the given name (see BatchInputs.Item.getName()), in the given output directory.
+     * The file's name is the node's batch file name template with "{name}" replaced by
+     * the item's name and "{node}" by the node's name (in lower case, with anything but
+     * letters and digits replaced by underscores), plus the extension of the node's format.
+     * The template can include sub-directories (e.g. "thumbnails/{name}"), so that different
+     * File OUT nodes can save to different directories
+     */
+    public File getBatchFile(File outputDir, String itemName) {
+        return getBatchFile(outputDir, itemName, 1);
+    }
+
+    /**
+     * Same as getBatchFile(File, String), but for the given copy (counting from 1) of a
+     * file that several File OUT nodes would save to: copies after the first have their
+     * number added to the name (e.g. "photo_out_2.png"), so they don't overwrite each other
+     */
+    public File getBatchFile(File outputDir, String itemName, int copy) {
+        String template = batchNameField.getValue().trim();
+        if (template.isEmpty())
+            template = DEFAULT_BATCH_NAME;
+        String nodeName = getName().trim().toLowerCase().replaceAll("[^a-z0-9]+", "_").replaceAll("^_|_$", "");
+        String name = template.replace("{name}", itemName).replace("{node}", nodeName.isEmpty() ? "out" : nodeName);
+        if (copy > 1)
+            name += "_"+copy;
+        return new File(outputDir, name+"."+getFileExtension());
+    }
+
+    /**
+     * Update everything up-stream of the node and get its input image
+     * (the image that would be saved). Returns null if there is none
+     */
+    public WritableImage renderImage() {
+        getInputSocket().requestUpdate();
+        return getInputSocket().getImage();
+    }
+
     /**
      * Save the node's input image to the given file
+     * in the node's format
      */
     public void saveToFile(File file) {
         prop.saveToFile(file);
@@ -36,6 +36,25 @@ public class GraphNodeFlip extends GraphNode {
     public int getNumInputSockets()  { return 1; }
     public int getNumOutputSockets() { return 1; }
 
+    /**
+     * The output is just the input mirrored, at the same size, so a
+     * smaller image can be requested from the input when a smaller
+     * output is requested
+     */
+    protected boolean passesImageRequests() { return true; }
+
+    /**
+     * A region of the output maps to the mirrored region of the input,
+     * which can't be known without the input's size, so only the size
+     * of the output request is passed on
+     */
+    public ImageRequest getInputRequest(NodeSocketInput input) {
+        ImageRequest request = getOutputRequest();
+        if (request == null)
+            return null;
+        return request.withoutRegion();
+    }
+
     /**
      * Override processImage to reflect the image as specified
      * by the user's dropdown selection
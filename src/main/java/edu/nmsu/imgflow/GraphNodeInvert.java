@@ -25,6 +25,8 @@ public class GraphNodeInvert extends GraphNode {
         return "Invert the colors of an image.";
     }
 
+    protected boolean passesImageRequests() { return true; }
+
     /**
      * Override processImage to invert the colors of the input image
      * and send it to the output.
@@ -54,6 +56,6 @@ public class GraphNodeInvert extends GraphNode {
         }
 
         // Send to output socket
-        out.setImage(outImg);
+        out.setImage(outImg, in.getImageX(), in.getImageY());
     }
 }
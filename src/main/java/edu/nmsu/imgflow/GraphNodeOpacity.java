@@ -29,6 +29,8 @@ public class GraphNodeOpacity extends GraphNode {
 
     public String getDescription() { return "Adjust the opacity of the image as a percentage."; }
 
+    protected boolean passesImageRequests() { return true; }
+
     /**
      * Override processImage to modify the opacity of the input image
      * and send it to the output.
@@ -61,6 +63,6 @@ public class GraphNodeOpacity extends GraphNode {
         }
 
         // Send to output socket
-        out.setImage(outImg);
+        out.setImage(outImg, in.getImageX(), in.getImageY());
     }
 }
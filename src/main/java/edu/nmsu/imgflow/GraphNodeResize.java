@@ -1,10 +1,6 @@
 package edu.nmsu.imgflow;
 
-import javafx.scene.paint.Color;
-import javafx.scene.image.WritableImage;
 import javafx.scene.image.Image;
-import javafx.scene.image.PixelWriter;
-import javafx.scene.image.PixelReader;
 import javafx.scene.control.Spinner;
 
 
@@ -36,9 +32,19 @@ public class GraphNodeResize extends GraphNode {
 
     public String getDescription() { return "Resize the image to a specified width and height as a number of pixels."; }
 
+    /**
+     * The input image is only needed at the size it's resized to, so request
+     * an image of that size (the File IN node, for example, can then decode
+     * a large file at a lower resolution)
+     */
+    public ImageRequest getInputRequest(NodeSocketInput input) {
+        return new ImageRequest(newWidthSpinner.getValue(), newHeightSpinner.getValue());
+    }
+
     /**
      * Override processImage to resize the input image
-     * and send it to the output.
+     * and send it to the output. When shrinking, each output pixel
+     * is an average of the input pixels it covers.
      */
     public void processImage() {
         //not sure why, but if requestUpdate is not called, getValue on the
@@ -53,29 +59,11 @@ public class GraphNodeResize extends GraphNode {
             return;
         }
 
-        PixelReader reader = inImg.getPixelReader();
-
         int newWidth   = newWidthSpinner.getValue();
         int newHeight  = newHeightSpinner.getValue();
 
-        // Create a new writable image for the output
-        WritableImage   outImg = new WritableImage(newWidth, newHeight);
-        PixelWriter     writer = outImg.getPixelWriter();
-
-        //create a scale that will be used to map the pixels to the new image
-        double widthScale = inImg.getWidth() / newWidth;
-        double heightScale = inImg.getHeight() / newHeight;
-
-        // Selectively move pixels from input to output based on a scale
-        for (int x = 0; x < newWidth; x++) {
-            for (int y = 0; y < newHeight; y++) {
-                Color inColor = reader.getColor( (int)(x * widthScale) ,(int)( y * heightScale) );
-                writer.setColor(x, y, inColor);
-            }
-        }
-
-        // Send to output socket
-        out.setImage(outImg);
+        // Resample and send to output socket
+        out.setImage(ImageScaler.resample(inImg, newWidth, newHeight));
     }
     
 
@@ -34,6 +34,9 @@ public class GraphNodeSplitColor extends GraphNode {
     
     public int getNumInputSockets() { return 1; }
     public int getNumOutputSockets() { return 3; }
+
+    protected boolean passesImageRequests() { return true; }
+
     /**
      * Override processImage to split the colors of the input image
      * and send it to the corresponding outputs.
@@ -84,8 +87,8 @@ public class GraphNodeSplitColor extends GraphNode {
       }
       
       //send to respective output sockets
-      outR.setImage(rImg);
-      outG.setImage(gImg);
-      outB.setImage(bImg);    
+      outR.setImage(rImg, in.getImageX(), in.getImageY());
+      outG.setImage(gImg, in.getImageX(), in.getImageY());
+      outB.setImage(bImg, in.getImageX(), in.getImageY());    
    }
 }
\ No newline at end of file
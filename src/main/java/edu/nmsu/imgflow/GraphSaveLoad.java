@@ -1,15 +1,29 @@
 package edu.nmsu.imgflow;
 
-import java.util.Scanner;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.InputMismatchException;
 import java.util.NoSuchElementException;
 import java.io.IOException;
 import java.io.Writer;
-import java.io.BufferedWriter;
+import java.io.Reader;
+import java.io.BufferedReader;
 import java.io.OutputStreamWriter;
+import java.io.InputStreamReader;
 import java.io.FileOutputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
+import java.nio.charset.StandardCharsets;
 
 import javafx.stage.FileChooser;
 import javafx.stage.FileChooser.ExtensionFilter;
@@ -40,9 +54,52 @@ import javafx.geometry.Point2D;
  * is connected to (index within the result of the other node's getInputSockets() call).
  * If an output socket is not connected to anything, the first integer will be -1 and the
  * second integer will be 0
+ * 
+ * Graphs can also be saved in a compact binary encoding (with the .imgflowb extension),
+ * which loads faster and is smaller for large graphs. Loading detects which encoding a file
+ * uses from its first bytes, whatever its extension. A binary file is laid out like so, where "varint" is an unsigned
+ * LEB128 integer (7 bits per byte, high bit set on every byte but the last):
+ * 
+ * [magic bytes 'I' 'M' 'G' 'F' 0x00]
+ * [format version (varint)]
+ * [number of strings (varint)] then for each string: [byte length (varint)][UTF-8 bytes]
+ * [number of nodes (varint)] then for each node:
+ *     [type name (varint index into the string table)]
+ *     [X-position (8-byte double)]
+ *     [Y-position (8-byte double)]
+ *     [number of output sockets (varint)] then for each socket:
+ *         [UID of the connected node + 1, or 0 if not connected (varint)]
+ *         [index of the connected input socket (varint)]
+ *     [number of properties (varint)] then for each property:
+ *         [property value (varint index into the string table)]
+ * 
+ * The UID of a node in a binary file is its position in the list of nodes. Nodes are always
+ * written in topological order so connections only ever point further down the list.
  */
 public abstract class GraphSaveLoad {
 
+    /**
+     * The bytes at the start of every binary graph file. The zero byte can never
+     * appear at the start of a text graph file, so the two can be told apart
+     */
+    private static final byte[] BINARY_MAGIC = { 'I', 'M', 'G', 'F', 0 };
+
+    /**
+     * The version of the binary format written by this class. Files with a newer
+     * version are rejected rather than misread
+     */
+    private static final int BINARY_VERSION = 1;
+
+    /**
+     * The extension of plaintext graph files
+     */
+    public static final String TEXT_EXTENSION = ".imgflow";
+
+    /**
+     * The extension of binary graph files
+     */
+    public static final String BINARY_EXTENSION = ".imgflowb";
+
     /**
      * The FileChooser that saving/loading uses.
      * This must be initialized with initChooser() before
@@ -50,15 +107,23 @@ public abstract class GraphSaveLoad {
      */
     private static FileChooser chooser;
 
+    /**
+     * The FileChooser filter for binary graph files
+     */
+    private static ExtensionFilter binaryFilter;
+
     /**
      * Initialize the FileChooser and set to only
-     * load .imgflow files
+     * load .imgflow and .imgflowb files
      */
     private static void initChooser() {
         chooser = new FileChooser();
         chooser.setTitle("Imgflow Graph");
-        chooser.getExtensionFilters().add(
-            new ExtensionFilter("Imgflow Graphs", "*.imgflow")
+        binaryFilter = new ExtensionFilter("Imgflow Graphs (binary)", "*"+BINARY_EXTENSION);
+        chooser.getExtensionFilters().addAll(
+            new ExtensionFilter("Imgflow Graphs", "*"+TEXT_EXTENSION, "*"+BINARY_EXTENSION),
+            new ExtensionFilter("Imgflow Graphs (text)", "*"+TEXT_EXTENSION),
+            binaryFilter
         );
     }
 
@@ -74,7 +139,18 @@ public abstract class GraphSaveLoad {
         File file = chooser.showSaveDialog(Main.getInstance().getStage());
         if (file == null) return false;
         String path = file.getAbsolutePath();
-        return saveGraph(graph, path);
+        // Add the extension of the selected filter's format if the file has neither
+        if (!isBinaryFile(path) && !path.toLowerCase().endsWith(TEXT_EXTENSION))
+            path += (chooser.getSelectedExtensionFilter() == binaryFilter ? BINARY_EXTENSION : TEXT_EXTENSION);
+        // Save in the binary format if the file has the binary extension
+        return saveGraph(graph, path, isBinaryFile(path));
+    }
+
+    /**
+     * Whether the file at the given path is named like a binary graph file
+     */
+    public static boolean isBinaryFile(String path) {
+        return path.toLowerCase().endsWith(BINARY_EXTENSION);
     }
 
     /**
@@ -96,28 +172,27 @@ public abstract class GraphSaveLoad {
      * Returns a boolean representing whether or not saving succeeded.
      */
     public static boolean saveGraph(Graph graph, String path) {
-        // Create a list of node summaries for each node in the graph
-        NodeSummary[] summaries = new NodeSummary[graph.getNodes().size()];
-        for (int i = 0; i < summaries.length; i++)
-            summaries[i] = NodeSummary.fromNode(graph.getNodes().get(i), i);
-        // Set the connections in the node summaries
-        NodeSummary.summarizeConnections(summaries);
+        return saveGraph(graph, path, false);
+    }
 
-        // Concat all the node summaries together to get the text
-        // that will be saved to the file
-        String serializedGraph = "";
-        for (NodeSummary summary : summaries)
-            serializedGraph += summary.toString() + "\n";
-        try {
-            // Open writer for file
-            Writer writer = new BufferedWriter(
-                new OutputStreamWriter(
-                    new FileOutputStream(path),
-                    "UTF-8"
-                ));
+    /**
+     * Save the given graph to the file at the given path, either in the
+     * binary format or in the plaintext format.
+     * Returns a boolean representing whether or not saving succeeded.
+     */
+    public static boolean saveGraph(Graph graph, String path, boolean binary) {
+        try (
+            // Open stream for file
+            OutputStream stream = new BufferedOutputStream(new FileOutputStream(path))
+        ) {
             // Write to file
-            writer.write(serializedGraph);
-            writer.close();
+            if (binary) {
+                saveGraphBinary(graph, stream);
+            }
+            else {
+                Writer writer = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+                saveGraph(graph, writer);
+            }
             System.out.println("Successfully saved graph!");
             return true;
         } catch (IOException e) {
@@ -128,42 +203,95 @@ public abstract class GraphSaveLoad {
     }
 
     /**
-     * Load a graph from the given file. Returns null
-     * if the file could not be loaded as a graph.
+     * Write the given graph to the given writer. Each node is
+     * written out as soon as it has been summarized, so nothing
+     * is built up in memory.
      */
-    public static Graph loadGraph(File file) {
-        try {
-            Scanner scanner = new Scanner(file);
-            // Parse the individual node summaries from the file
-            ArrayList<NodeSummary> summaries = new ArrayList<NodeSummary>();
-            // summaryString keeps track of the contents of the current summary parsed so far
-            String summaryString = "";
-            while (scanner.hasNextLine()) {
-                String nextLine = scanner.nextLine();
-                // Summaries are deliminated by blank lines, so once we see
-                // a blank line, we know we have a complete summary to add to the list
-                if (nextLine.equals("")) {
-                    // Create summary from the string
-                    NodeSummary newSummary = NodeSummary.fromString(summaryString);
-                    summaries.add(newSummary);
-                    summaryString = "";
-                }
-                else {
-                    summaryString += nextLine + "\n";
-                }
-            }
-            // Done reading the file, so close the scanner
-            scanner.close();
+    public static void saveGraph(Graph graph, Writer writer) throws IOException {
+        // Nodes are saved in topological order, so every connection in
+        // the file points to a node further down in the file
+        saveNodes(graph.getTopologicalOrder(), writer);
+    }
 
-            // Add the nodes created in each summary to a new graph
-            Graph graph = new Graph();
-            for (NodeSummary summary : summaries) {
-                graph.getNodes().add(summary.node);
-            }
+    /**
+     * Write the given nodes (in topological order) to the given writer as a graph
+     * of their own, e.g. to copy part of a graph. Connections to other nodes are
+     * left out. The UID of each node is its index in the list, so loading the
+     * text gives a graph whose getNodes() are in the same order
+     */
+    public static void saveNodes(List<GraphNode> nodes, Writer writer) throws IOException {
+        HashMap<GraphNode, Integer> uids = new HashMap<GraphNode, Integer>(nodes.size() * 2);
+        for (int i = 0; i < nodes.size(); i++)
+            uids.put(nodes.get(i), i);
+
+        for (int i = 0; i < nodes.size(); i++) {
+            NodeSummary.fromNode(nodes.get(i), i, uids).write(writer);
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    /**
+     * Write the given graph to the given stream in the binary format.
+     */
+    public static void saveGraphBinary(Graph graph, OutputStream stream) throws IOException {
+        // Summarize every node first, so that the string table
+        // can be written before any of the nodes
+        List<GraphNode> nodes = graph.getTopologicalOrder();
+        HashMap<GraphNode, Integer> uids = new HashMap<GraphNode, Integer>(nodes.size() * 2);
+        for (int i = 0; i < nodes.size(); i++)
+            uids.put(nodes.get(i), i);
+        NodeSummary[] summaries = new NodeSummary[nodes.size()];
+        for (int i = 0; i < summaries.length; i++)
+            summaries[i] = NodeSummary.fromNode(nodes.get(i), i, uids);
+
+        // Build string table of type names and property values. Each distinct
+        // string is stored once, no matter how many nodes use it
+        HashMap<String, Integer> stringIndices = new HashMap<String, Integer>();
+        ArrayList<String> strings = new ArrayList<String>();
+        for (NodeSummary summary : summaries) {
+            addString(summary.typeName, strings, stringIndices);
+            for (String value : summary.propertyValues)
+                addString(value, strings, stringIndices);
+        }
+
+        DataOutputStream out = new DataOutputStream(stream);
+        // Header
+        out.write(BINARY_MAGIC);
+        writeVarInt(out, BINARY_VERSION);
+        // String table
+        writeVarInt(out, strings.size());
+        for (String string : strings) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(out, bytes.length);
+            out.write(bytes);
+        }
+        // Nodes
+        writeVarInt(out, summaries.length);
+        for (NodeSummary summary : summaries)
+            summary.writeBinary(out, stringIndices);
+        out.flush();
+    }
 
-            // Set the connections among the nodes
-            NodeSummary.setConnections(summaries.toArray(new NodeSummary[summaries.size()]));
+    /**
+     * Add the given string to the string table if it isn't already in it
+     */
+    private static void addString(String string, List<String> strings, Map<String, Integer> stringIndices) {
+        if (!stringIndices.containsKey(string)) {
+            stringIndices.put(string, strings.size());
+            strings.add(string);
+        }
+    }
 
+    /**
+     * Load a graph from the given file. Returns null
+     * if the file could not be loaded as a graph.
+     */
+    public static Graph loadGraph(File file) {
+        try (
+            InputStream stream = new FileInputStream(file)
+        ) {
+            Graph graph = loadGraph(stream);
             System.out.println("Successfully loaded graph!");
             return graph;
         } catch (Exception e) {
@@ -172,9 +300,123 @@ public abstract class GraphSaveLoad {
         }
     }
 
+    /**
+     * Read a graph from the given stream, which may be in either
+     * the binary or the plaintext format.
+     * Throws an exception if the stream does not contain a valid graph.
+     */
+    public static Graph loadGraph(InputStream stream) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(stream);
+
+        // Check for the magic bytes that start a binary file
+        in.mark(BINARY_MAGIC.length);
+        boolean binary = true;
+        for (byte b : BINARY_MAGIC) {
+            if (in.read() != b) {
+                binary = false;
+                break;
+            }
+        }
+        if (binary)
+            return loadGraphBinary(new DataInputStream(in));
+
+        // Otherwise, go back to the start and read as text
+        in.reset();
+        return loadGraph(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read a graph in the binary format from the given stream, just after
+     * the magic bytes at the start of the file.
+     * Throws an exception if the stream does not contain a valid graph.
+     */
+    private static Graph loadGraphBinary(DataInputStream in) throws IOException {
+        int version = readVarInt(in);
+        if (version < 1 || version > BINARY_VERSION)
+            throw new IOException("Unsupported graph format version "+version);
+
+        // Read string table
+        String[] strings = new String[readVarInt(in)];
+        for (int i = 0; i < strings.length; i++) {
+            byte[] bytes = new byte[readVarInt(in)];
+            in.readFully(bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        // Read nodes, adding each to a new graph as soon as it's read.
+        // The UID of each node is its position in the file
+        Graph graph = new Graph();
+        int numNodes = readVarInt(in);
+        ArrayList<NodeSummary> summaries = new ArrayList<NodeSummary>(numNodes);
+        HashMap<Integer, NodeSummary> summariesByUID = new HashMap<Integer, NodeSummary>(numNodes * 2);
+        for (int i = 0; i < numNodes; i++) {
+            NodeSummary summary = NodeSummary.readBinary(in, i, strings);
+            summaries.add(summary);
+            summariesByUID.put(i, summary);
+            graph.addNode(summary.node);
+        }
+
+        // Set the connections among the nodes
+        NodeSummary.setConnections(graph, summaries, summariesByUID);
+        return graph;
+    }
+
+    /**
+     * Write a non-negative integer as an unsigned LEB128 varint
+     */
+    private static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Read a non-negative integer written with writeVarInt()
+     */
+    private static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0)
+                    throw new IOException("Invalid varint");
+                return value;
+            }
+        }
+        throw new IOException("Invalid varint");
+    }
+
+    /**
+     * Read a graph from the given reader.
+     * Throws an exception if the text is not a valid graph.
+     */
+    public static Graph loadGraph(Reader reader) throws IOException {
+        BufferedReader lines = (reader instanceof BufferedReader) ?
+            (BufferedReader)reader : new BufferedReader(reader);
+
+        // Parse the individual node summaries from the file. Each node
+        // is added to a new graph as soon as it's parsed
+        Graph graph = new Graph();
+        ArrayList<NodeSummary> summaries = new ArrayList<NodeSummary>();
+        HashMap<Integer, NodeSummary> summariesByUID = new HashMap<Integer, NodeSummary>();
+        NodeSummary summary;
+        while ((summary = NodeSummary.read(lines)) != null) {
+            summaries.add(summary);
+            summariesByUID.put(summary.index, summary);
+            graph.addNode(summary.node);
+        }
+
+        // Set the connections among the nodes
+        NodeSummary.setConnections(graph, summaries, summariesByUID);
+        return graph;
+    }
+
     /**
      * An internal class used to summarize all of the information
-     * for a GraphNode that can be written to or parsed from a string.
+     * for a GraphNode that can be written to or parsed from a file.
      */
     private static class NodeSummary {
 
@@ -210,18 +452,16 @@ public abstract class GraphSaveLoad {
 
         /**
          * Private constructor. Use either the fromNode() or
-         * fromString() factory methods
+         * read() factory methods
          */
         private NodeSummary() {}
 
         /**
          * Create a new NodeSummary summarizing the given node and with
-         * the given index. Note that when created, the connections in the 
-         * summary will all be as if the none of the node's output sockets
-         * are connected to anything. The connections must be set for a whole
-         * list of summaries using the summarizeConnections() method
+         * the given index. The connections of the node's output sockets are
+         * looked up in the given map of the UIDs of every node in the graph
          */
-        public static NodeSummary fromNode(GraphNode node, int index) {
+        public static NodeSummary fromNode(GraphNode node, int index, Map<GraphNode, Integer> uids) {
             // Create summary and set fields
             NodeSummary summary = new NodeSummary();
             summary.node        = node;
@@ -231,10 +471,21 @@ public abstract class GraphSaveLoad {
             summary.yPosition   = node.getPosition().getY();
 
             // Create a new NodeConnection for each of the node's output sockets
-            // These connections will be disconnected (nodeIndex of -1)
             summary.connections = new NodeConnection[node.getNumOutputSockets()];
-            for (int i = 0; i < summary.connections.length; i++)
-                summary.connections[i] = new NodeConnection();
+            for (int i = 0; i < summary.connections.length; i++) {
+                NodeConnection connection = new NodeConnection();
+                NodeSocketInput otherSocket = node.getOutputSockets().get(i).getConnectingSocket();
+                // If the socket is connected to a node in the graph, set the connection
+                // Otherwise it stays disconnected (nodeIndex of -1)
+                if (otherSocket != null) {
+                    Integer otherIndex = uids.get(otherSocket.getParentNode());
+                    if (otherIndex != null) {
+                        connection.nodeIndex   = otherIndex;
+                        connection.socketIndex = otherSocket.getIndex();
+                    }
+                }
+                summary.connections[i] = connection;
+            }
 
             // Create a string for the value of each of the node's properties
             summary.propertyValues = new String[node.getProperties().size()];
@@ -245,89 +496,143 @@ public abstract class GraphSaveLoad {
         }
 
         /**
-         * Create a new summary along with an associated node for the given string
-         * representation of a summary. The node in the summary's 'node' field will be
-         * fully instantiated with a node of the right type and properties all set according
-         * to the values in the summary. However, the node's output sockets will not be connected
-         * to anything. Call setConnections() on a list of summaries to set the connections for all
+         * Read the next summary from the given reader and create its associated node.
+         * The node in the summary's 'node' field will be fully instantiated with a node
+         * of the right type and properties all set according to the values in the summary.
+         * However, the node's output sockets will not be connected to anything. Call
+         * setConnections() on a list of summaries to set the connections for all
          * of the nodes in that list.
+         * 
+         * Returns null if there are no more summaries to read.
          */
-        public static NodeSummary fromString(String str) throws InputMismatchException, NoSuchElementException {
-            Scanner scanner = new Scanner(str);
+        public static NodeSummary read(BufferedReader reader) throws IOException {
+            // Skip any blank lines before the summary
+            String line = reader.readLine();
+            while (line != null && line.isEmpty())
+                line = reader.readLine();
+            if (line == null)
+                return null;
+
             NodeSummary summary = new NodeSummary();
 
-            // Read index and typeName from string
-            summary.index = scanner.nextInt();
-            summary.typeName = scanner.next();
-            // Create node using the given type name
-            GraphNode node = NodeFactory.createNode(summary.typeName);
-            if (node == null) {
-                scanner.close();
-                throw new InputMismatchException("Invalid node type '"+summary.typeName+"''");
-            }
-            summary.node = node;
-            // Read and set node's position
-            summary.xPosition = scanner.nextDouble();
-            summary.yPosition = scanner.nextDouble();
-            // Consume rest of line
-            scanner.nextLine();
-            node.setPosition(new Point2D(summary.xPosition, summary.yPosition));
-
-            // Iterate through connections listed in string and create
-            // connections for the summary
+            // Read index and typeName
+            summary.index = Integer.parseInt(line.trim());
+            summary.typeName = requireLine(reader).trim();
+            // Read node's position and create node
+            summary.xPosition = Double.parseDouble(requireLine(reader).trim());
+            summary.yPosition = Double.parseDouble(requireLine(reader).trim());
+            GraphNode node = summary.createNode();
+
+            // Read connections listed for each of the node's output sockets
             summary.connections = new NodeConnection[node.getNumOutputSockets()];
             for (int i = 0; i < summary.connections.length; i++) {
+                String connectionLine = requireLine(reader).trim();
+                int split = connectionLine.indexOf(' ');
+                if (split < 0)
+                    throw new InputMismatchException("Invalid connection '"+connectionLine+"'");
                 NodeConnection connection = new NodeConnection();
-                connection.nodeIndex = scanner.nextInt();
-                connection.socketIndex = scanner.nextInt();
-                scanner.nextLine();
+                connection.nodeIndex   = Integer.parseInt(connectionLine.substring(0, split));
+                connection.socketIndex = Integer.parseInt(connectionLine.substring(split + 1).trim());
                 summary.connections[i] = connection;
             }
 
-            // Iterate through property valuees and set associated
-            // properties in node
-            for (int i = 0; i < node.getProperties().size(); i++) {
-                String valueString = scanner.nextLine();
-                node.getProperties().get(i).valueFromString(valueString);
+            // Read property values up until the blank line ending the summary and set
+            // associated properties in node. If the summary has fewer values than the
+            // node has properties (for example, if it was saved before a property was added)
+            // the remaining properties keep their default values.
+            ArrayList<NodeProperty<?>> properties = node.getProperties();
+            int i = 0;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                if (i < properties.size())
+                    properties.get(i).valueFromString(line);
+                i++;
             }
 
-            scanner.close();
             return summary;
         }
 
         /**
-         * For a list of node summaries, set the connections in each summary
-         * so that each of the nodes' connections are represented in the summaries
-         * according to the way their sockets are connected.
+         * Read the next summary in the binary format from the given stream and
+         * create its associated node, the same as read(). The summary is given
+         * the given index and its strings are looked up in the given string table.
          */
-        public static void summarizeConnections(NodeSummary[] summaries) {
-            // Iterate through given summaries
-            for (NodeSummary summary : summaries) {
-                GraphNode thisNode = summary.node;
-                // For each connection in the summary, find the socket and node
-                // that it should be connected to
-                for (int i = 0; i < summary.connections.length; i++) {
-                    NodeSocketInput otherSocket = thisNode.getOutputSockets().get(i).getConnectingSocket();
-                    if (otherSocket == null) continue;
-                    GraphNode otherNode     = otherSocket.getParentNode();
-                    int otherSocketIndex    = otherNode.getInputSockkets().indexOf(otherSocket);
-                    // Find the other socket/node in the list of summaries and set the connection
-                    // accordingly if it is found
-                    for (NodeSummary search : summaries) {
-                        if (search.node != thisNode && search.node == otherNode) {
-                            summary.connections[i].nodeIndex =   search.index;
-                            summary.connections[i].socketIndex = otherSocketIndex;
-                        }
-                    } // end for (search : summaries)
-                } // end for (i : summary.connections)
-            } // end for (summary : summaries)
+        public static NodeSummary readBinary(DataInputStream in, int index, String[] strings) throws IOException {
+            NodeSummary summary = new NodeSummary();
+
+            // Read typeName and position and create node
+            summary.index = index;
+            summary.typeName = lookupString(strings, readVarInt(in));
+            summary.xPosition = in.readDouble();
+            summary.yPosition = in.readDouble();
+            GraphNode node = summary.createNode();
+
+            // Read connections. Any listed for sockets the node doesn't
+            // have are skipped
+            int numConnections = readVarInt(in);
+            summary.connections = new NodeConnection[node.getNumOutputSockets()];
+            for (int i = 0; i < numConnections; i++) {
+                NodeConnection connection = new NodeConnection();
+                connection.nodeIndex   = readVarInt(in) - 1;
+                connection.socketIndex = readVarInt(in);
+                if (i < summary.connections.length)
+                    summary.connections[i] = connection;
+            }
+            for (int i = numConnections; i < summary.connections.length; i++)
+                summary.connections[i] = new NodeConnection();
+
+            // Read and set property values. As with the plaintext format, any
+            // properties without a value keep their default values
+            ArrayList<NodeProperty<?>> properties = node.getProperties();
+            int numProperties = readVarInt(in);
+            for (int i = 0; i < numProperties; i++) {
+                String value = lookupString(strings, readVarInt(in));
+                if (i < properties.size())
+                    properties.get(i).valueFromString(value);
+            }
+
+            return summary;
+        }
+
+        /**
+         * Get the string at the given index in the string table, throwing an
+         * exception if the index is out of range
+         */
+        private static String lookupString(String[] strings, int index) throws IOException {
+            if (index >= strings.length)
+                throw new IOException("Invalid string index "+index);
+            return strings[index];
+        }
+
+        /**
+         * Create the node for this summary from its typeName and position
+         * and store it in the 'node' field. Returns the created node
+         */
+        private GraphNode createNode() {
+            node = NodeFactory.createNode(typeName);
+            if (node == null)
+                throw new InputMismatchException("Invalid node type '"+typeName+"'");
+            node.setPosition(new Point2D(xPosition, yPosition));
+            return node;
+        }
+
+        /**
+         * Read a line from the given reader, throwing an exception
+         * if the end of the file or the end of the summary is reached
+         */
+        private static String requireLine(BufferedReader reader) throws IOException {
+            String line = reader.readLine();
+            if (line == null || line.isEmpty())
+                throw new NoSuchElementException("Unexpected end of node");
+            return line;
         }
 
         /**
          * For a list of node summaries, set the connections in each of the nodes
          * so that summaries' connections are represented in the nodes' sockets.
+         * Connections are looked up in the given map of summaries by their UID.
+         * Any connection that would create a loop in the graph is skipped.
          */
-        public static void setConnections(NodeSummary[] summaries) {
+        public static void setConnections(Graph graph, List<NodeSummary> summaries, Map<Integer, NodeSummary> summariesByUID) {
             // Iterate through given summaries
             for (NodeSummary summary : summaries) {
                 GraphNode thisNode = summary.node;
@@ -336,32 +641,62 @@ public abstract class GraphSaveLoad {
                 for (int i = 0; i < summary.connections.length; i++) {
                     NodeConnection      thisConnection = summary.connections[i];
                     NodeSocketOutput    thisSocket = thisNode.getOutputSockets().get(i);
-                    // Find the other node/socket in the list of summaries and
-                    // set the connection accordingly if found
-                    for (NodeSummary search : summaries) {
-                        if (search.index == thisConnection.nodeIndex) {
-                            GraphNode otherNode = search.node;
-                            if (otherNode.getNumInputSockets() > thisConnection.socketIndex) {
-                                NodeSocketInput otherSocket = otherNode.getInputSockkets().get(thisConnection.socketIndex);
-                                thisSocket.connect(otherSocket);
-                            }
-                        }
-                    } // end for (search : summaries)
+                    // Find the other node/socket and set the connection accordingly if found
+                    NodeSummary other = summariesByUID.get(thisConnection.nodeIndex);
+                    if (other == null) continue;
+                    GraphNode otherNode = other.node;
+                    if (otherNode.getNumInputSockets() > thisConnection.socketIndex) {
+                        NodeSocketInput otherSocket = otherNode.getInputSockkets().get(thisConnection.socketIndex);
+                        if (graph.isConnectionSafe(thisSocket, otherSocket))
+                            thisSocket.connect(otherSocket);
+                        else
+                            System.out.println("Skipped a connection that would create a loop in the graph!");
+                    }
                 } // end for (i : summary.connections)
             } // end for (summary : summaries)
         }
 
         /**
-         * Get the string representation of this node summary.
+         * Write the text representation of this node summary to the given writer.
          * This is what will be written into files
          */
-        public String toString() {
-            String string = index + "\n" + typeName + "\n" + xPosition + "\n" + yPosition + "\n";
-            for (NodeConnection connection : connections)
-                string += connection.nodeIndex + " " + connection.socketIndex + "\n";
+        public void write(Writer writer) throws IOException {
+            writer.write(Integer.toString(index));
+            writer.write('\n');
+            writer.write(typeName);
+            writer.write('\n');
+            writer.write(Double.toString(xPosition));
+            writer.write('\n');
+            writer.write(Double.toString(yPosition));
+            writer.write('\n');
+            for (NodeConnection connection : connections) {
+                writer.write(Integer.toString(connection.nodeIndex));
+                writer.write(' ');
+                writer.write(Integer.toString(connection.socketIndex));
+                writer.write('\n');
+            }
+            for (String value : propertyValues) {
+                writer.write(value);
+                writer.write('\n');
+            }
+        }
+
+        /**
+         * Write this node summary to the given stream in the binary format. Strings
+         * are written as their indices in the given string table
+         */
+        public void writeBinary(DataOutputStream out, Map<String, Integer> stringIndices) throws IOException {
+            writeVarInt(out, stringIndices.get(typeName));
+            out.writeDouble(xPosition);
+            out.writeDouble(yPosition);
+            writeVarInt(out, connections.length);
+            for (NodeConnection connection : connections) {
+                writeVarInt(out, connection.nodeIndex + 1);
+                writeVarInt(out, connection.socketIndex);
+            }
+            writeVarInt(out, propertyValues.length);
             for (String value : propertyValues)
-                string += value + "\n";
-            return string;
+                writeVarInt(out, stringIndices.get(value));
         }
 
         /**
@@ -374,4 +709,4 @@ public abstract class GraphSaveLoad {
             public int socketIndex  = 0;
         }
     }
-}
\ No newline at end of file
+}
@@ -60,7 +60,7 @@ public class HoverQuery {
         // Iterate through nodes and check if the point is over each one
         for (GraphNode node : graph.getNodes()) {
             // Get the height of the node in graph units (the width is constant)
-            double nodeHeight = (Math.max(node.getNumInputSockets(), node.getNumOutputSockets()) + 1) * GraphNode.NODE_ROW_HEIGHT;
+            double nodeHeight = node.getHeight();
             // Get the position relative to the position of the node
             Point2D relPos = pos.subtract(node.position);
             // test if the point is overlapping the node's bounding box
@@ -0,0 +1,338 @@
+package edu.nmsu.imgflow;
+
+import java.util.LinkedHashMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ExecutionException;
+import java.io.File;
+import java.io.IOException;
+import java.io.ByteArrayInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageReadParam;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.image.WritableImage;
+
+/**
+ * Abstract class holding a cache of decoded image files shared by the
+ * whole application.
+ *
+ * Images are keyed by the file's path, size and last-modified time, so a file
+ * that hasn't changed on disk is only ever decoded once (as long as it stays in
+ * the cache), no matter how many File IN nodes or graphs refer to it. A file
+ * that has changed is decoded again.
+ *
+ * When only a smaller image is requested (see ImageRequest), the file is decoded
+ * with subsampling: only every n-th pixel of every n-th row is kept, which is much
+ * faster and smaller than decoding the whole image just to shrink it afterwards.
+ * The subsampled image is still kept at least twice as large as the request along
+ * each axis, so that it can then be resampled to the final size without aliasing.
+ * Each subsampling factor of a file is cached separately.
+ *
+ * When only a region of the image is requested, just that region is decoded (with
+ * ImageReadParam.setSourceRegion), so a small patch of a huge scan doesn't need
+ * the whole scan to be held in memory. Each region of a file is cached separately.
+ *
+ * The least recently used images are evicted once the cache holds
+ * more than MAX_BYTES of pixel data.
+ *
+ * A file's contents can also be handed to the cache after they have already been read
+ * into memory (see get(File, ImageRequest, byte[], int)), e.g. by a PrefetchDecoder
+ * that reads files ahead of time, so that decoding doesn't read the file again.
+ *
+ * Decoding uses ImageIO, so it does not need the JavaFX application to be running.
+ * The cache can be used from any thread: if two threads ask for the same file at
+ * the same time, one decodes it while the other waits for the result.
+ *
+ * The cached images are shared, so they must never be written to.
+ */
+public abstract class ImageDecodeCache {
+
+    /**
+     * The maximum number of bytes of pixel data (4 bytes per pixel)
+     * held in the cache
+     */
+    private static final long MAX_BYTES = 512L * 1024 * 1024;
+
+    /**
+     * The maximum number of files whose full sizes are remembered
+     */
+    private static final int MAX_SIZES = 4096;
+
+    /**
+     * The decoded images, in least- to most-recently used order
+     */
+    private static final LinkedHashMap<Key, WritableImage> images =
+        new LinkedHashMap<Key, WritableImage>(16, 0.75f, true);
+
+    /**
+     * The decodes that are currently running, so that other
+     * threads asking for the same file can wait on them
+     */
+    private static final HashMap<Key, FutureTask<WritableImage>> pending =
+        new HashMap<Key, FutureTask<WritableImage>>();
+
+    /**
+     * The full (not subsampled) width and height of each file that
+     * has been decoded with subsampling, so the header doesn't have
+     * to be read again each time, in least- to most-recently used order.
+     * Only the MAX_SIZES most recently used are kept, as the versions of
+     * files that have changed (or are no longer used) are never asked for again
+     */
+    private static final LinkedHashMap<Key, int[]> sizes = new LinkedHashMap<Key, int[]>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<Key, int[]> eldest) {
+            return size() > MAX_SIZES;
+        }
+    };
+
+    /**
+     * The number of bytes of pixel data currently in the cache
+     */
+    private static long bytes = 0;
+
+    /**
+     * Get the full decoded image for the given file, decoding it
+     * if it isn't already in the cache.
+     * Throws an IOException if the file could not be decoded.
+     */
+    public static WritableImage get(File file) throws IOException {
+        return get(file, null);
+    }
+
+    /**
+     * Get the decoded image for the given file, as small as the given request
+     * allows (or the full image if the request is null), decoding it if it
+     * isn't already in the cache. If the request has a region, the returned
+     * image is just that region (cut off at the image's edges) and its top-left
+     * pixel is the pixel at the region's x and y coordinates. Returns null if
+     * the requested region lies entirely outside of the image.
+     * Throws an IOException if the file could not be decoded.
+     */
+    public static WritableImage get(File file, ImageRequest request) throws IOException {
+        return get(file, request, () -> ImageIO.createImageInputStream(file));
+    }
+
+    /**
+     * Same as get(File, ImageRequest), except that if the image has to be decoded,
+     * it is decoded from the given contents of the file (the first length bytes of
+     * the given array) instead of reading the file again. The array is not used
+     * after this returns, so it can be reused
+     */
+    public static WritableImage get(File file, ImageRequest request, byte[] contents, int length) throws IOException {
+        return get(file, request, () ->
+            new MemoryCacheImageInputStream(new ByteArrayInputStream(contents, 0, length)));
+    }
+
+    /**
+     * Get the decoded image for the given file and request,
+     * decoding it from the given source if needed
+     */
+    private static WritableImage get(File file, ImageRequest request, Source source) throws IOException {
+        int subsampling = 1;
+        int[] region = null;
+        if (request != null) {
+            int[] size = getSize(file, source);
+            if (request.hasRegion()) {
+                // Cut the region off at the edges of the image
+                int x = request.getRegionX();
+                int y = request.getRegionY();
+                int width  = Math.min(request.getRegionWidth(),  size[0] - x);
+                int height = Math.min(request.getRegionHeight(), size[1] - y);
+                if (width <= 0 || height <= 0)
+                    return null;
+                region = new int[] { x, y, width, height };
+            }
+            else if (request.hasSize()) {
+                int scale = Math.min(size[0] / request.getWidth(), size[1] / request.getHeight());
+                subsampling = Math.max(1, scale / 2);
+            }
+        }
+        final int n = subsampling;
+        final int[] r = region;
+        Key key = new Key(file, subsampling, region);
+
+        FutureTask<WritableImage> task;
+        boolean decodeHere = false;
+        synchronized (ImageDecodeCache.class) {
+            WritableImage image = images.get(key);
+            if (image != null)
+                return image;
+            // Wait on the decode if another thread has started it,
+            // otherwise start it on this thread
+            task = pending.get(key);
+            if (task == null) {
+                task = new FutureTask<WritableImage>(() -> decode(file, source, n, r));
+                pending.put(key, task);
+                decodeHere = true;
+            }
+        }
+
+        if (decodeHere)
+            task.run();
+        try {
+            WritableImage image = task.get();
+            if (decodeHere)
+                put(key, image);
+            return image;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decoding "+file.getName());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            if (decodeHere) {
+                synchronized (ImageDecodeCache.class) {
+                    pending.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove every image from the cache
+     */
+    public static synchronized void clear() {
+        images.clear();
+        sizes.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Add a decoded image to the cache and evict the least recently
+     * used images until the cache is within its budget again
+     */
+    private static synchronized void put(Key key, WritableImage image) {
+        WritableImage old = images.put(key, image);
+        if (old != null)
+            bytes -= sizeOf(old);
+        bytes += sizeOf(image);
+
+        // Evict (but always keep the image that was just added)
+        Iterator<Map.Entry<Key, WritableImage>> it = images.entrySet().iterator();
+        while (bytes > MAX_BYTES && images.size() > 1) {
+            Map.Entry<Key, WritableImage> eldest = it.next();
+            bytes -= sizeOf(eldest.getValue());
+            it.remove();
+        }
+    }
+
+    /**
+     * Get the full width and height of the given file's image,
+     * reading just the file's header if it isn't known already
+     */
+    private static int[] getSize(File file, Source source) throws IOException {
+        Key key = new Key(file, 0, null);
+        synchronized (ImageDecodeCache.class) {
+            int[] size = sizes.get(key);
+            if (size != null)
+                return size;
+        }
+
+        int[] size;
+        try (ImageInputStream in = source.open()) {
+            ImageReader reader = openReader(in, file);
+            try {
+                size = new int[] { reader.getWidth(0), reader.getHeight(0) };
+            } finally {
+                reader.dispose();
+            }
+        }
+        synchronized (ImageDecodeCache.class) {
+            sizes.put(key, size);
+        }
+        return size;
+    }
+
+    /**
+     * Decode the given file from the given source, keeping only every n-th pixel
+     * of every n-th row for the given subsampling factor n. If the given region is
+     * not null, only that rectangle (x, y, width, height) of the image is decoded
+     */
+    private static WritableImage decode(File file, Source source, int subsampling, int[] region) throws IOException {
+        try (ImageInputStream in = source.open()) {
+            ImageReader reader = openReader(in, file);
+            try {
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (subsampling > 1)
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                if (region != null)
+                    param.setSourceRegion(new Rectangle(region[0], region[1], region[2], region[3]));
+                BufferedImage image = reader.read(0, param);
+                return SwingFXUtils.toFXImage(image, null);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Get an ImageReader for the given stream (opened from the given
+     * file), throwing an IOException if the format isn't supported
+     */
+    private static ImageReader openReader(ImageInputStream in, File file) throws IOException {
+        if (in == null || !file.isFile())
+            throw new IOException("Could not open "+file.getName());
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext())
+            throw new IOException("Unsupported image format: "+file.getName());
+        ImageReader reader = readers.next();
+        reader.setInput(in, true, true);
+        return reader;
+    }
+
+    /**
+     * Get the number of bytes of pixel data in the given image
+     */
+    private static long sizeOf(WritableImage image) {
+        return 4L * (long)image.getWidth() * (long)image.getHeight();
+    }
+
+    /**
+     * Opens a stream of a file's contents
+     */
+    private interface Source {
+        public ImageInputStream open() throws IOException;
+    }
+
+    /**
+     * The key identifying a decoded version of a file on disk: its path, size
+     * in bytes and last-modified time, and the subsampling factor and region
+     */
+    private static class Key {
+        private final String path;
+        private final long   size;
+        private final long   modified;
+        private final int    subsampling;
+        private final int[]  region;
+
+        public Key(File file, int subsampling, int[] region) throws IOException {
+            path     = file.getCanonicalPath();
+            size     = file.length();
+            modified = file.lastModified();
+            this.subsampling = subsampling;
+            this.region      = region;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key)o;
+            return path.equals(other.path) && size == other.size &&
+                modified == other.modified && subsampling == other.subsampling &&
+                Arrays.equals(region, other.region);
+        }
+
+        public int hashCode() {
+            int hash = path.hashCode() * 31 + Long.hashCode(size * 31 + modified);
+            return (hash * 31 + subsampling) * 31 + Arrays.hashCode(region);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package edu.nmsu.imgflow;
+
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.util.Iterator;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.awt.image.BufferedImage;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.WritablePixelFormat;
+
+/**
+ * Abstract class for writing images to files in one of the supported
+ * output formats, with one of the encoder profiles.
+ *
+ * The profiles trade encoding time against file size (and, for JPEG, quality):
+ *
+ * Balanced:     PNG deflate level 6, adaptive filters.  JPEG quality 85, 4:2:0 chroma
+ * Fast:         PNG deflate level 1, Sub filter.        JPEG quality 80, 4:2:0 chroma
+ * Smallest:     PNG deflate level 9, adaptive filters.  JPEG quality 75, 4:2:0 chroma, optimized Huffman tables
+ * Best Quality: PNG deflate level 6, adaptive filters.  JPEG quality 95, 4:4:4 chroma (no subsampling)
+ *
+ * PNG files are written with a PngEncoder. JPEG and BMP files are written with ImageIO,
+ * and since neither format has an alpha channel, transparent pixels are blended onto white.
+ *
+ * The "PNG (256 colors)" formats write an indexed-color PNG with a palette chosen by a
+ * PaletteQuantizer, optionally with ordered dithering. These are usually several times
+ * smaller than truecolor PNGs for flat graphics, diagrams and screenshots.
+ */
+public abstract class ImageEncoder {
+
+    /**
+     * The names of the supported output formats
+     */
+    public static final String[] FORMATS = { "PNG", "PNG (256 colors)", "PNG (256 colors, dithered)", "JPEG", "BMP" };
+
+    /**
+     * The names of the encoder profiles
+     */
+    public static final String[] PROFILES = { "Balanced", "Fast", "Smallest", "Best Quality" };
+
+    /**
+     * Get the file extension (without the dot) for the given format
+     */
+    public static String getExtension(String format) {
+        switch (format) {
+            case "JPEG":    return "jpg";
+            case "BMP":     return "bmp";
+            default:        return "png";
+        }
+    }
+
+    /**
+     * Get the MIME type (e.g. for an HTTP response) of the given format
+     */
+    public static String getMimeType(String format) {
+        switch (format) {
+            case "JPEG":    return "image/jpeg";
+            case "BMP":     return "image/bmp";
+            default:        return "image/png";
+        }
+    }
+
+    /**
+     * Write the given image to the given stream in the given format with the
+     * given encoder profile. The stream is flushed, but not closed
+     */
+    public static void write(Image image, OutputStream stream, String format, String profile) throws IOException {
+        switch (format) {
+            case "JPEG":
+                writeJpeg(image, stream, profile);
+                break;
+            case "BMP":
+                if (!ImageIO.write(toOpaqueBufferedImage(image), "bmp", stream))
+                    throw new IOException("No BMP writer available");
+                break;
+            case "PNG (256 colors)":
+                createPngEncoder(profile).writeIndexed(image, Channels.newChannel(stream), false);
+                break;
+            case "PNG (256 colors, dithered)":
+                createPngEncoder(profile).writeIndexed(image, Channels.newChannel(stream), true);
+                break;
+            default:
+                createPngEncoder(profile).write(image, Channels.newChannel(stream));
+                break;
+        }
+        stream.flush();
+    }
+
+    /**
+     * Write the given image to the given file in the given
+     * format with the given encoder profile
+     */
+    public static void write(Image image, File file, String format, String profile) throws IOException {
+        switch (format) {
+            case "JPEG":
+                writeJpeg(image, file, profile);
+                break;
+            case "BMP":
+                if (!ImageIO.write(toOpaqueBufferedImage(image), "bmp", file))
+                    throw new IOException("No BMP writer available");
+                break;
+            case "PNG (256 colors)":
+                createPngEncoder(profile).writeIndexed(image, file, false);
+                break;
+            case "PNG (256 colors, dithered)":
+                createPngEncoder(profile).writeIndexed(image, file, true);
+                break;
+            default:
+                createPngEncoder(profile).write(image, file);
+                break;
+        }
+    }
+
+    /**
+     * Create the PngEncoder for the given profile
+     */
+    public static PngEncoder createPngEncoder(String profile) {
+        switch (profile) {
+            case "Fast":        return new PngEncoder(1, PngEncoder.FILTER_SUB);
+            case "Smallest":    return new PngEncoder(9, PngEncoder.FILTER_ADAPTIVE);
+            default:            return new PngEncoder(6, PngEncoder.FILTER_ADAPTIVE);
+        }
+    }
+
+    /**
+     * Write the given image to the given file as a JPEG with the
+     * quality and chroma subsampling of the given profile
+     */
+    private static void writeJpeg(Image image, File file, String profile) throws IOException {
+        try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(file))) {
+            writeJpeg(image, stream, profile);
+        }
+    }
+
+    /**
+     * Write the given image to the given stream as a JPEG with the
+     * quality and chroma subsampling of the given profile
+     */
+    private static void writeJpeg(Image image, OutputStream stream, String profile) throws IOException {
+        float   quality;
+        boolean subsampleChroma = true;
+        boolean optimizeHuffman = false;
+        switch (profile) {
+            case "Fast":
+                quality = 0.80f;
+                break;
+            case "Smallest":
+                quality = 0.75f;
+                optimizeHuffman = true;
+                break;
+            case "Best Quality":
+                quality = 0.95f;
+                subsampleChroma = false;
+                break;
+            default:
+                quality = 0.85f;
+                break;
+        }
+
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext())
+            throw new IOException("No JPEG writer available");
+        ImageWriter writer = writers.next();
+
+        BufferedImage buffered = toOpaqueBufferedImage(image);
+        try (ImageOutputStream out = new MemoryCacheImageOutputStream(stream)) {
+            writer.setOutput(out);
+
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            if (param instanceof JPEGImageWriteParam)
+                ((JPEGImageWriteParam)param).setOptimizeHuffmanTables(optimizeHuffman);
+
+            // Chroma subsampling is set through the image metadata: the luma component
+            // gets twice the sampling factor of the chroma components for 4:2:0
+            IIOMetadata metadata = writer.getDefaultImageMetadata(
+                ImageTypeSpecifier.createFromRenderedImage(buffered), param);
+            String formatName = "javax_imageio_jpeg_image_1.0";
+            Element tree = (Element)metadata.getAsTree(formatName);
+            NodeList components = tree.getElementsByTagName("componentSpec");
+            for (int i = 0; i < components.getLength(); i++) {
+                Element component = (Element)components.item(i);
+                String factor = (i == 0 && subsampleChroma) ? "2" : "1";
+                component.setAttribute("HsamplingFactor", factor);
+                component.setAttribute("VsamplingFactor", factor);
+            }
+            metadata.setFromTree(formatName, tree);
+
+            writer.write(null, new IIOImage(buffered, null, metadata), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Copy the given image into an RGB BufferedImage, blending
+     * any transparent pixels onto a white background
+     */
+    private static BufferedImage toOpaqueBufferedImage(Image image) {
+        int width  = (int)image.getWidth();
+        int height = (int)image.getHeight();
+        PixelReader reader = image.getPixelReader();
+        WritablePixelFormat<IntBuffer> format = PixelFormat.getIntArgbInstance();
+
+        BufferedImage buffered = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            reader.getPixels(0, y, width, 1, format, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                int argb = row[x];
+                int a = argb >>> 24;
+                if (a != 0xff) {
+                    int r = ((argb >> 16) & 0xff) * a / 255 + (255 - a);
+                    int g = ((argb >> 8)  & 0xff) * a / 255 + (255 - a);
+                    int b = ( argb        & 0xff) * a / 255 + (255 - a);
+                    argb = (r << 16) | (g << 8) | b;
+                }
+                row[x] = argb & 0xffffff;
+            }
+            buffered.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return buffered;
+    }
+}
@@ -0,0 +1,161 @@
+package edu.nmsu.imgflow;
+
+/**
+ * An ImageRequest describes how much of an image a node actually needs from
+ * one of its inputs, so that up-stream nodes can avoid producing more than that.
+ *
+ * A request is set on an output socket by the node connected to it (see
+ * GraphNode.getInputRequest()) each time that node updates. A null request means
+ * that the full image is needed. Otherwise, a request can limit the image in two ways:
+ *
+ * A size means that the image will only be used at (at most) that size, so any image
+ * with at least that many pixels along each axis will do. For example, a File IN node
+ * can decode a large file at a lower resolution when the image is about to be shrunk anyway.
+ *
+ * A region means that only the pixels inside that rectangle (in the coordinates of the
+ * full image) are needed. A node that produces only part of its image says where that
+ * part is with the image's origin (see NodeSocketOutput.getImageX() and getImageY()).
+ *
+ * ImageRequests are immutable.
+ */
+public class ImageRequest {
+
+    /**
+     * The width and height (in pixels) that the image will be
+     * used at, or 0 if the image is needed at full resolution
+     */
+    private final int width, height;
+    /**
+     * The rectangle of the image that is needed. The region's
+     * width and height are 0 if the whole image is needed
+     */
+    private final int regionX, regionY, regionWidth, regionHeight;
+
+    /**
+     * Create a new ImageRequest for a whole image that will be
+     * used at (at most) the given width and height
+     */
+    public ImageRequest(int width, int height) {
+        this(Math.max(1, width), Math.max(1, height), 0, 0, 0, 0);
+    }
+
+    /**
+     * Private constructor setting every field
+     */
+    private ImageRequest(int width, int height, int regionX, int regionY, int regionWidth, int regionHeight) {
+        this.width        = width;
+        this.height       = height;
+        this.regionX      = regionX;
+        this.regionY      = regionY;
+        this.regionWidth  = regionWidth;
+        this.regionHeight = regionHeight;
+    }
+
+    /**
+     * Create a new ImageRequest for the given rectangle of
+     * an image at full resolution
+     */
+    public static ImageRequest forRegion(int x, int y, int width, int height) {
+        return new ImageRequest(0, 0, Math.max(0, x), Math.max(0, y), Math.max(1, width), Math.max(1, height));
+    }
+
+    /**
+     * Combine two requests into the smallest request that satisfies both.
+     * If either request is null (the full image), the result is null
+     */
+    public static ImageRequest union(ImageRequest a, ImageRequest b) {
+        if (a == null || b == null)
+            return null;
+
+        int width = 0, height = 0;
+        if (a.hasSize() && b.hasSize()) {
+            width  = Math.max(a.width, b.width);
+            height = Math.max(a.height, b.height);
+        }
+        int regionX = 0, regionY = 0, regionWidth = 0, regionHeight = 0;
+        if (a.hasRegion() && b.hasRegion()) {
+            regionX      = Math.min(a.regionX, b.regionX);
+            regionY      = Math.min(a.regionY, b.regionY);
+            regionWidth  = Math.max(a.regionX + a.regionWidth,  b.regionX + b.regionWidth)  - regionX;
+            regionHeight = Math.max(a.regionY + a.regionHeight, b.regionY + b.regionHeight) - regionY;
+        }
+        if (width == 0 && regionWidth == 0)
+            return null;
+        return new ImageRequest(width, height, regionX, regionY, regionWidth, regionHeight);
+    }
+
+    /**
+     * Get a copy of this request for the whole image (keeping the size, if any).
+     * Returns null if this request has no size
+     */
+    public ImageRequest withoutRegion() {
+        if (!hasSize())
+            return null;
+        return new ImageRequest(width, height);
+    }
+
+    /**
+     * Whether the image will only be used at a limited size
+     */
+    public boolean hasSize() { return width > 0; }
+
+    /**
+     * Whether only a region of the image is needed
+     */
+    public boolean hasRegion() { return regionWidth > 0; }
+
+    /**
+     * Get the width (in pixels) that the image will be used at,
+     * or 0 if it's needed at full resolution
+     */
+    public int getWidth() { return width; }
+
+    /**
+     * Get the height (in pixels) that the image will be used at,
+     * or 0 if it's needed at full resolution
+     */
+    public int getHeight() { return height; }
+
+    /**
+     * Get the x-coordinate of the needed region
+     */
+    public int getRegionX() { return regionX; }
+
+    /**
+     * Get the y-coordinate of the needed region
+     */
+    public int getRegionY() { return regionY; }
+
+    /**
+     * Get the width of the needed region, or 0 if the whole image is needed
+     */
+    public int getRegionWidth() { return regionWidth; }
+
+    /**
+     * Get the height of the needed region, or 0 if the whole image is needed
+     */
+    public int getRegionHeight() { return regionHeight; }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof ImageRequest)) return false;
+        ImageRequest other = (ImageRequest)o;
+        return width == other.width && height == other.height &&
+            regionX == other.regionX && regionY == other.regionY &&
+            regionWidth == other.regionWidth && regionHeight == other.regionHeight;
+    }
+
+    public int hashCode() {
+        int hash = width * 31 + height;
+        hash = hash * 31 + regionX;
+        hash = hash * 31 + regionY;
+        hash = hash * 31 + regionWidth;
+        return hash * 31 + regionHeight;
+    }
+
+    public String toString() {
+        String string = hasSize() ? (width + "x" + height) : "full size";
+        if (hasRegion())
+            string += " of " + regionWidth + "x" + regionHeight + "+" + regionX + "+" + regionY;
+        return string;
+    }
+}
@@ -0,0 +1,127 @@
+package edu.nmsu.imgflow;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.WritableImage;
+import javafx.scene.image.WritablePixelFormat;
+
+/**
+ * Abstract class with helper functions for scaling images.
+ */
+public abstract class ImageScaler {
+
+    /**
+     * The most source pixels (along each axis) that are averaged together
+     * for a single destination pixel when downsampling. Larger reductions
+     * sample this many evenly-spaced pixels instead of every one, so that
+     * downsampling a huge image only reads a small fraction of it.
+     */
+    private static final int MAX_SAMPLES = 4;
+
+    /**
+     * Create a smaller copy of the given image that fits within the given
+     * width and height while keeping the image's aspect ratio. Each pixel
+     * is an average of the source pixels it covers. If the image already
+     * fits, it is returned as-is.
+     * 
+     * This only reads from the source image, so it is safe to call
+     * from a background thread as long as nothing is writing to the image.
+     */
+    public static Image downsample(Image src, int maxWidth, int maxHeight) {
+        int srcWidth  = (int)src.getWidth();
+        int srcHeight = (int)src.getHeight();
+        double scale = Math.max((double)srcWidth / maxWidth, (double)srcHeight / maxHeight);
+        if (scale <= 1.0)
+            return src;
+
+        int dstWidth  = Math.max(1, (int)Math.round(srcWidth / scale));
+        int dstHeight = Math.max(1, (int)Math.round(srcHeight / scale));
+        return resample(src, dstWidth, dstHeight);
+    }
+
+    /**
+     * Create a copy of the given image scaled to exactly the given width and height.
+     * When shrinking, each pixel is an average of the source pixels it covers.
+     * When enlarging, the nearest source pixel is used.
+     */
+    public static WritableImage resample(Image src, int dstWidth, int dstHeight) {
+        int srcWidth  = (int)src.getWidth();
+        int srcHeight = (int)src.getHeight();
+        PixelReader reader = src.getPixelReader();
+        WritablePixelFormat<IntBuffer> format = PixelFormat.getIntArgbInstance();
+
+        double scaleX = (double)srcWidth  / dstWidth;
+        double scaleY = (double)srcHeight / dstHeight;
+
+        // Work out which source columns are sampled for each destination column
+        int[][] columns = new int[dstWidth][];
+        for (int x = 0; x < dstWidth; x++)
+            columns[x] = samplePositions(x, scaleX, srcWidth);
+
+        int[] srcRow = new int[srcWidth];
+        int[] dstRow = new int[dstWidth];
+        // Premultiplied sums for each destination pixel in the current row
+        long[] sumA = new long[dstWidth];
+        long[] sumR = new long[dstWidth];
+        long[] sumG = new long[dstWidth];
+        long[] sumB = new long[dstWidth];
+
+        WritableImage dst = new WritableImage(dstWidth, dstHeight);
+        for (int y = 0; y < dstHeight; y++) {
+            Arrays.fill(sumA, 0);
+            Arrays.fill(sumR, 0);
+            Arrays.fill(sumG, 0);
+            Arrays.fill(sumB, 0);
+
+            int[] rows = samplePositions(y, scaleY, srcHeight);
+            for (int row : rows) {
+                reader.getPixels(0, row, srcWidth, 1, format, srcRow, 0, srcWidth);
+                for (int x = 0; x < dstWidth; x++) {
+                    for (int col : columns[x]) {
+                        int argb = srcRow[col];
+                        int a = argb >>> 24;
+                        sumA[x] += a;
+                        sumR[x] += ((argb >> 16) & 0xff) * a;
+                        sumG[x] += ((argb >> 8)  & 0xff) * a;
+                        sumB[x] += ( argb        & 0xff) * a;
+                    }
+                }
+            }
+
+            // Average the sums and un-premultiply
+            for (int x = 0; x < dstWidth; x++) {
+                int count = rows.length * columns[x].length;
+                long a = sumA[x];
+                if (a == 0) {
+                    dstRow[x] = 0;
+                    continue;
+                }
+                int r = (int)(sumR[x] / a);
+                int g = (int)(sumG[x] / a);
+                int b = (int)(sumB[x] / a);
+                dstRow[x] = ((int)(a / count) << 24) | (r << 16) | (g << 8) | b;
+            }
+            dst.getPixelWriter().setPixels(0, y, dstWidth, 1, format, dstRow, 0, dstWidth);
+        }
+        return dst;
+    }
+
+    /**
+     * Get the positions of the source pixels that are sampled along one axis
+     * for the destination pixel at the given index.
+     */
+    private static int[] samplePositions(int index, double scale, int srcLength) {
+        int start = Math.min(srcLength - 1, (int)(index * scale));
+        int end   = Math.min(srcLength, Math.max(start + 1, (int)((index + 1) * scale)));
+        int count = Math.min(end - start, MAX_SAMPLES);
+        int[] positions = new int[count];
+        double step = (double)(end - start) / count;
+        for (int i = 0; i < count; i++)
+            positions[i] = start + (int)(i * step + step / 2.0);
+        return positions;
+    }
+}
@@ -71,6 +71,11 @@ public class Main extends Application {
      */
     private PropertyPanel propertyPanel;
 
+    /**
+     * The cache of thumbnails drawn on nodes and in the property panel
+     */
+    private ThumbnailCache thumbnailCache;
+
     // ################################
     // # METHODS
     // ################################
@@ -167,6 +172,10 @@ public class Main extends Application {
                 activeGraph.addNodeSelectListener((node) -> {
                     propertyPanel.updateSelectedNode(node);
                 });
+                activeGraph.addNodeUpdateListener((node) -> {
+                    thumbnailCache.invalidate(node);
+                });
+                thumbnailCache.clear();
                 viewport.setGraph(newGraph);
                 propertyPanel.updateSelectedNode(null);
             }
@@ -183,6 +192,7 @@ public class Main extends Application {
         pane.add(menuBar, 0, 0, 2, 1);
 
         // Create viewport and add to first row, first column
+        thumbnailCache = new ThumbnailCache();
         activeGraph = new Graph();
         viewport = new Viewport(activeGraph);
         pane.add(viewport.getPane(), 0, 1);
@@ -196,6 +206,10 @@ public class Main extends Application {
         activeGraph.addNodeSelectListener((node) -> {
             propertyPanel.updateSelectedNode(node);
         });
+        // Drop the thumbnails of nodes whose data changes
+        activeGraph.addNodeUpdateListener((node) -> {
+            thumbnailCache.invalidate(node);
+        });
 
         return pane;
     }
@@ -232,4 +246,9 @@ public class Main extends Application {
      * Get the active property panel
      */
     public PropertyPanel getPropertyPanel() { return propertyPanel; }
+
+    /**
+     * Get the cache of node thumbnails
+     */
+    public ThumbnailCache getThumbnailCache() { return thumbnailCache; }
 }
@@ -108,7 +108,7 @@ public abstract class NodeFactory {
             if (node != null) {
                 Point2D center = Main.getInstance().getViewport().getViewportCenter();
                 node.setPosition(center);
-                Main.getInstance().getActiveGraph().getNodes().add(node);
+                Main.getInstance().getActiveGraph().addNode(node);
             }
         });
 
@@ -17,7 +17,9 @@ public abstract class NodeProperty<T> {
     protected T     value;
     /**
      * The GUI content that will be displayed in the property panel
-     * for this property
+     * for this property. This is null until the content is first needed
+     * (see getGUIContent()), so that nodes which are never shown (like those
+     * in a loaded or batch-processed graph) don't have to build any GUI
      */
     protected Pane  GUIContent;
     /**
@@ -29,7 +31,6 @@ public abstract class NodeProperty<T> {
      * Construct a new NodeProperty with the given parentNode
      */
     public NodeProperty(GraphNode parent) {
-        GUIContent = new Pane();
         parentNode = parent;
     }
 
@@ -38,6 +39,17 @@ public abstract class NodeProperty<T> {
      */
     public T getValue() { return value; }
 
+    /**
+     * Get the name of this property, as displayed in the property panel,
+     * or null if the property has no name. Named properties override this
+     */
+    public String getName() { return null; }
+
+    /**
+     * Get the GraphNode that this property belongs to
+     */
+    public GraphNode getParentNode() { return parentNode; }
+
     /**
      * Get a string representation of this property's value,
      * used when saving the graph to a file. By default,
@@ -55,9 +67,28 @@ public abstract class NodeProperty<T> {
      */
     public abstract void valueFromString(String str);
 
+    /**
+     * Set the value of this property and alert the parent node
+     */
+    protected void setValue(T newValue) {
+        value = newValue;
+        parentNode.onPropertyUpdate(this);
+    }
+
+    /**
+     * Build the GUI content for this property (setting GUIContent)
+     * with controls showing the property's current value.
+     */
+    protected abstract void buildGUI();
+
     /**
      * Get the GUI content used to control this property's value
-     * and to display in the property panel
+     * and to display in the property panel. The content is built
+     * the first time this is called.
      */
-    public Pane getGUIContent() { return GUIContent; }
+    public Pane getGUIContent() {
+        if (GUIContent == null)
+            buildGUI();
+        return GUIContent;
+    }
 }
\ No newline at end of file
@@ -33,20 +33,18 @@ public class NodePropertyColor extends NodeProperty<Color> {
         this.name = name;
         this.defaultColor = defaultColor;
         value = defaultColor;
-
-        buildGUI();
     }
 
     /**
      * Build the property's GUI content
      */
-    private void buildGUI() {
+    protected void buildGUI() {
         // Instantiate components
         vbox    = new VBox(5.0);
         label   = new Label(name);
         picker  = new ColorPicker();
 
-        picker.setValue(defaultColor);
+        picker.setValue(value);
 
         // Add label and slider
         vbox.getChildren().add(label);
@@ -54,8 +52,7 @@ public class NodePropertyColor extends NodeProperty<Color> {
 
         // Add listener to slider to update value and change text on label
         picker.valueProperty().addListener((obs, oldVal, newVal) -> {
-            value = newVal;
-            parentNode.onPropertyUpdate(this);
+            setValue(newVal);
         });
 
         GUIContent = vbox;
@@ -72,6 +69,11 @@ public class NodePropertyColor extends NodeProperty<Color> {
         return "rgba("+r+", "+g+", "+b+", "+value.getOpacity()+")";
     }
 
+    /**
+     * Get the name of this property
+     */
+    public String getName() { return name; }
+
     /**
      * Set the color picker's value to the color
      * specified by the given string. If the string
@@ -79,12 +81,17 @@ public class NodePropertyColor extends NodeProperty<Color> {
      * switch to the default color value.
      */
     public void valueFromString(String str) {
+        Color color;
         try {
-            picker.setValue(Color.web(str));
+            color = Color.web(str);
         } catch (IllegalArgumentException e) {
-            picker.setValue(defaultColor);
+            color = defaultColor;
         } catch (NullPointerException e) {
-            picker.setValue(defaultColor);
+            color = defaultColor;
         }
+        if (picker != null)
+            picker.setValue(color);
+        else
+            setValue(color);
     }
 }
\ No newline at end of file
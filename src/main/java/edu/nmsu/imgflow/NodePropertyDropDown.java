@@ -35,46 +35,52 @@ public class NodePropertyDropDown extends NodeProperty<String> {
         this.options = options;
 
         value = options[0];
-
-        buildGUI();
     }
 
     /**
      * Build the property's GUI content
      */
-    private void buildGUI() {
+    protected void buildGUI() {
         // Instantiate components
         vbox    = new VBox(5.0);
         label   = new Label(name);
         menu    = new ComboBox<String>();
 
         menu.getItems().addAll(options);
-        menu.getSelectionModel().select(0);
+        menu.getSelectionModel().select(value);
 
         // Add label and combo box
         vbox.getChildren().add(label);
         vbox.getChildren().add(menu);
 
         menu.getSelectionModel().selectedItemProperty().addListener((obs, oldVal, newVal) -> {
-            value = newVal;
-            parentNode.onPropertyUpdate(this);
+            setValue(newVal);
         });
 
         GUIContent = vbox;
     }
 
+    /**
+     * Get the name of this property
+     */
+    public String getName() { return name; }
+
     /**
      * Set the selected value according to the given string.
      * If the given string is not in the options, this simply
      * selects the first option.
      */
     public void valueFromString(String str) {
+        String selection = options[0];
         for (int i = 0; i < options.length; i++) {
-            if (str.equals(options[i])) {
-                menu.getSelectionModel().select(i);
-                return;
+            if (options[i].equals(str)) {
+                selection = options[i];
+                break;
             }
         }
-        menu.getSelectionModel().select(0);
+        if (menu != null)
+            menu.getSelectionModel().select(selection);
+        else
+            setValue(selection);
     }
 }
\ No newline at end of file
@@ -3,15 +3,16 @@ package edu.nmsu.imgflow;
 import javafx.scene.layout.VBox;
 import javafx.scene.control.Label;
 import javafx.scene.control.Button;
-import javafx.scene.image.Image;
 import javafx.scene.image.WritableImage;
 import java.io.File;
+import java.io.IOException;
 import javafx.stage.FileChooser;
 import javafx.stage.FileChooser.ExtensionFilter;
 
 /**
  * The NodePropertyFileIn is a kind of NodeProperty that reads
- * in a file from disk and returns it as a WritableImage
+ * in a file from disk and returns it as a WritableImage.
+ * The file's path is saved with the graph
  */
 public class NodePropertyFileIn extends NodeProperty<WritableImage> {
 
@@ -23,77 +24,114 @@ public class NodePropertyFileIn extends NodeProperty<WritableImage> {
     
     private FileChooser chooser;
 
+    /**
+     * The file that the image is loaded from. Null if no file is selected
+     */
+    private File file;
+    /**
+     * Whether decoding the file failed. If it did, it isn't tried
+     * again until a file is loaded again
+     */
+    private boolean decodeFailed;
+
     /**
      * Create a new NodePropertyFileIn with the given parent node
      */
     public NodePropertyFileIn(GraphNode parent) {
         super(parent);
+    }
 
-        chooser = new FileChooser();
-        chooser.setTitle("Open image file");
-        chooser.getExtensionFilters().add(
-            new ExtensionFilter("Image files", "*.png", "*.jpeg", "*.jpg", "*.bmp", "*.gif")
-        );
+    /**
+     * Get the full image from the selected file. Returns null if no file
+     * is selected or if the file could not be decoded.
+     */
+    public WritableImage getValue() { return getImage(null); }
 
-        buildGUI();
+    /**
+     * Get the image from the selected file, decoded at a lower resolution or
+     * just the requested region if the given request allows it (or the full image
+     * if the request is null). The file is only decoded the first time its image
+     * is needed, and decoded images are shared through the ImageDecodeCache.
+     * Returns null if no file is selected, if the file could not be decoded or
+     * if the requested region is outside of the image.
+     */
+    public WritableImage getImage(ImageRequest request) {
+        if (file != null && !decodeFailed) {
+            try {
+                return ImageDecodeCache.get(file, request);
+            } catch (IOException e) {
+                System.out.println("Error loading image!");
+                System.out.println(e.getClass() + " : " + e.getMessage());
+                decodeFailed = true;
+                if (readout != null)
+                    readout.setText("Error loading file");
+            }
+        }
+        return null;
     }
 
     /**
-     * We don't want to save the selected file (or rather, the path)
-     * when saving this node to a file, so it's serialized value
-     * will always just be 'null'
+     * Get the file that the image is loaded from. Null if no file is selected
+     */
+    public File getFile() { return file; }
+
+    /**
+     * The path of the selected file is saved,
+     * or 'null' if no file is selected
      */
-    public String serializeValue() { return "null"; }
+    public String serializeValue() {
+        if (file == null) return "null";
+        return file.getAbsolutePath();
+    }
 
     /**
-     * The File In property does not do any saving or loading,
-     * so this function does nothing
+     * Select the file at the given path (or no file if the
+     * path is 'null'). The file isn't read until its image is needed
      */
-    public void valueFromString(String str) {}; 
+    public void valueFromString(String str) {
+        if (str.equals("null"))
+            loadFile(null);
+        else
+            loadFile(new File(str));
+    }
 
     /**
      * Build the property's GUI content
      */
-    private void buildGUI() {
+    protected void buildGUI() {
+        chooser = new FileChooser();
+        chooser.setTitle("Open image file");
+        chooser.getExtensionFilters().add(
+            new ExtensionFilter("Image files", "*.png", "*.jpeg", "*.jpg", "*.bmp", "*.gif")
+        );
+
         vbox        = new VBox(5.0);
         label       = new Label("File input");
         loadButton  = new Button("Load");
-        readout     = new Label("No file loaded");
+        readout     = new Label(file == null ? "No file loaded" : file.getName());
 
         vbox.getChildren().addAll(label, loadButton, readout);
 
         loadButton.setOnAction((actionEvent) -> {
-            loadFile(chooser.showOpenDialog(Main.getInstance().getStage()));
+            File chosen = chooser.showOpenDialog(Main.getInstance().getStage());
+            if (chosen != null)
+                loadFile(chosen);
         });
 
         GUIContent = vbox;
     }
 
     /**
-     * Load the given file and update the parent node.
-     * If an error occurs loading the file, the value will be
-     * updated to null
+     * Select the given file and update the parent node. The file
+     * is decoded when the parent node next needs its image. If the
+     * file is null, or if an error occurs decoding the file, the
+     * value will be null
      */
     public void loadFile(File file) {
-        if (file == null) {
-            readout.setText("No file loaded");
-            value = null;
-        }
-        try {
-            String url = file.toURI().toURL().toExternalForm();
-            Image img = new Image(url);
-            if (img.isError())
-                throw img.getException();
-            value = new WritableImage(img.getPixelReader(), (int)img.getWidth(), (int)img.getHeight());
-            System.out.println("Successfully loaded image!");
-            readout.setText(file.getName());
-        } catch (Exception e) {
-            System.out.println("Error loading image!");
-            System.out.println(e.getClass() + " : " + e.getMessage());
-            value = null;
-        } finally {
-            parentNode.onPropertyUpdate(this);
-        }
-
+        this.file = file;
+        decodeFailed = false;
+        if (readout != null)
+            readout.setText(file == null ? "No file loaded" : file.getName());
+        setValue(null);
     }
-}
\ No newline at end of file
+}
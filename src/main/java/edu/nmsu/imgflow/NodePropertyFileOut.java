@@ -4,12 +4,9 @@ import javafx.scene.layout.VBox;
 import javafx.scene.control.Label;
 import javafx.scene.control.Button;
 import javafx.scene.image.WritableImage;
-import java.awt.image.RenderedImage;
-import javax.imageio.ImageIO;
 import java.io.File;
 import javafx.stage.FileChooser;
 import javafx.stage.FileChooser.ExtensionFilter;
-import javafx.embed.swing.SwingFXUtils;
 
 /**
  * The NodePropertyFileIn is a kind of NodeProperty that reads
@@ -30,13 +27,6 @@ public class NodePropertyFileOut extends NodeProperty<WritableImage> {
      */
     public NodePropertyFileOut(GraphNodeFileOut parent) {
         super(parent);
-        buildGUI();
-
-        chooser = new FileChooser();
-        chooser.setTitle(" image file");
-        chooser.getExtensionFilters().add(
-            new ExtensionFilter("PNG files", "*.png")
-        );
     }
 
     /**
@@ -55,7 +45,10 @@ public class NodePropertyFileOut extends NodeProperty<WritableImage> {
     /**
      * Build the property's GUI content
      */
-    private void buildGUI() {
+    protected void buildGUI() {
+        chooser = new FileChooser();
+        chooser.setTitle(" image file");
+
         vbox        = new VBox(5.0);
         label       = new Label("File output");
         saveButton  = new Button("Save");
@@ -63,27 +56,32 @@ public class NodePropertyFileOut extends NodeProperty<WritableImage> {
         vbox.getChildren().addAll(label, saveButton);
 
         saveButton.setOnAction((actionEvent) -> {
-            saveToFile(chooser.showSaveDialog(Main.getInstance().getStage()));
+            // Only show files of the node's format
+            GraphNodeFileOut node = (GraphNodeFileOut)parentNode;
+            chooser.getExtensionFilters().setAll(
+                new ExtensionFilter(node.getFormat()+" files", "*."+node.getFileExtension())
+            );
+            File file = chooser.showSaveDialog(Main.getInstance().getStage());
+            if (file != null)
+                saveToFile(file);
         });
 
         GUIContent = vbox;
     }
 
     /**
-     * Save the parent node's input image to the given
-     * file.
+     * Save the parent node's input image to the given file
+     * in the parent node's format and encoder profile.
      */
     public void saveToFile(File file) {
         GraphNodeFileOut node = (GraphNodeFileOut)parentNode;
-        node.getInputSocket().requestUpdate();
-        WritableImage img = node.getInputSocket().getImage();
+        WritableImage img = node.renderImage();
         if (img == null) {
             System.out.println("No input image available! Unable to save image!");
         }
         else {
-            RenderedImage rendered = SwingFXUtils.fromFXImage(img, null);
             try {
-                ImageIO.write(rendered, "png", file);
+                ImageEncoder.write(img, file, node.getFormat(), node.getProfile());
                 System.out.println("Succesfully saved image!");
             } catch (Exception e) {
                 System.out.println("Error saving file!");
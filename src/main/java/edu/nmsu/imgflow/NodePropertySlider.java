@@ -51,18 +51,16 @@ public class NodePropertySlider extends NodeProperty<Integer> {
             sliderDefault = sliderMax;
 
         value = sliderDefault;
-
-        buildGUI();
     }
 
     /**
      * Build the property's GUI content
      */
-    private void buildGUI() {
+    protected void buildGUI() {
         // Instantiate components
         vbox    = new VBox(5.0);
-        label   = new Label(name + ": " + sliderDefault);
-        slider  = new Slider(sliderMin, sliderMax, sliderDefault);
+        label   = new Label(name + ": " + value);
+        slider  = new Slider(sliderMin, sliderMax, value);
 
         // Add label and slider
         vbox.getChildren().add(label);
@@ -71,13 +69,17 @@ public class NodePropertySlider extends NodeProperty<Integer> {
         // Add listener to slider to update value and change text on label
         slider.valueProperty().addListener((obs, oldVal, newVal) -> {
             label.setText(name + ": " + newVal.intValue());
-            value = newVal.intValue();
-            parentNode.onPropertyUpdate(this);
+            setValue(newVal.intValue());
         });
 
         GUIContent = vbox;
     }
 
+    /**
+     * Get the name of this property
+     */
+    public String getName() { return name; }
+
     /**
      * Set the slider's value according to the given string.
      * The value is clamped between the slider's minimum and
@@ -92,7 +94,10 @@ public class NodePropertySlider extends NodeProperty<Integer> {
                 newVal = sliderMax;
             else if (newVal < sliderMin)
                 newVal = sliderMin;
-            slider.setValue(newVal);
+            if (slider != null)
+                slider.setValue(newVal);
+            else
+                setValue(newVal);
         } catch (NumberFormatException e) {}
     }
 }
\ No newline at end of file
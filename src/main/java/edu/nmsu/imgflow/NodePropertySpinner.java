@@ -51,8 +51,7 @@ public class NodePropertySpinner extends NodeProperty<Integer> {
         // It is possible for the new value to be out of range because, when entering
         // an out of range value, this listener is still called once before it is changed
         if (newVal != null && newVal >= spinnerMin && newVal <= spinnerMax) {
-            value = newVal.intValue();
-            parentNode.onPropertyUpdate(this);
+            setValue(newVal.intValue());
         }
     };
 
@@ -74,8 +73,6 @@ public class NodePropertySpinner extends NodeProperty<Integer> {
             spinnerInitialValue = spinnerMax;
 
         value = spinnerInitialValue;
-
-        buildGUI();
     }
 
     //overload constructor to allow for styling
@@ -96,18 +93,16 @@ public class NodePropertySpinner extends NodeProperty<Integer> {
             spinnerInitialValue = spinnerMax;
 
         value = spinnerInitialValue;
-
-        buildGUI();
     }
 
     /**
      * Build the property's GUI content
      */
-    private void buildGUI() {
+    protected void buildGUI() {
         // Instantiate components
         vbox    = new VBox(5.0);
         label   = new Label(name);
-        IntegerSpinnerValueFactory valueFactory = new IntegerSpinnerValueFactory(spinnerMin, spinnerMax, spinnerInitialValue);
+        IntegerSpinnerValueFactory valueFactory = new IntegerSpinnerValueFactory(spinnerMin, spinnerMax, value);
         spinner  = new Spinner<Integer>(valueFactory);
 
         spinner.setEditable(true);
@@ -129,6 +124,7 @@ public class NodePropertySpinner extends NodeProperty<Integer> {
     //updates the maximum value of the passed in spinner to newMax by creating a new ValueFactory
     //and updating the spinners ValueFactory
     public void updateSpinnerMax(int newMax){
+        if (spinner == null) buildGUI();
         IntegerSpinnerValueFactory newFactory = new IntegerSpinnerValueFactory(spinnerMin, newMax, getValue());
         
         //set wraparound and listener for new value factory
@@ -138,6 +134,11 @@ public class NodePropertySpinner extends NodeProperty<Integer> {
         spinner.setValueFactory(newFactory); 
     }
 
+    /**
+     * Get the name of this property
+     */
+    public String getName() { return name; }
+
     /**
      * Set the spinner's value according to the given string.
      * The value is clamped between the spinner's minimum and
@@ -152,7 +153,10 @@ public class NodePropertySpinner extends NodeProperty<Integer> {
                 newVal = spinnerMax;
             else if (newVal < spinnerMin)
                 newVal = spinnerMin;
-            spinner.getValueFactory().setValue(newVal);
+            if (spinner != null)
+                spinner.getValueFactory().setValue(newVal);
+            else
+                setValue(newVal);
         } catch (NumberFormatException e) {}
     }
 }
\ No newline at end of file
@@ -28,14 +28,12 @@ public class NodePropertyText extends NodeProperty<String> {
         this.name = name;
 
         value = defaultText;
-
-        buildGUI();
     }
 
     /**
      * Build the property's GUI content
      */
-    private void buildGUI() {
+    protected void buildGUI() {
         // Instantiate components
         vbox    = new VBox(5.0);
         label   = new Label(name);
@@ -47,17 +45,24 @@ public class NodePropertyText extends NodeProperty<String> {
 
         // Add listener to update value and alert parent node
         field.textProperty().addListener((obs, oldVal, newVal) -> {
-            value = newVal;
-            parentNode.onPropertyUpdate(this);
+            setValue(newVal);
         });
 
         GUIContent = vbox;
     }
 
+    /**
+     * Get the name of this property
+     */
+    public String getName() { return name; }
+
     /**
      * Set the value of this property according to the given string
      */
     public void valueFromString(String str) {
-        field.setText(str);
+        if (field != null)
+            field.setText(str);
+        else
+            setValue(str);
     }
 }
\ No newline at end of file
@@ -19,9 +19,7 @@ public abstract class NodeSocket {
      */
     protected GraphNode parentNode;
     /**
-     * The index of this socket within its parent node'
-
-    public int getIndex() { return index; }s inputSocket or
+     * The index of this socket within its parent node's inputSocket or
      * outputSocket list. (This is NOT it's index within the parent node's
      * allSockets list!!)
      */
@@ -73,6 +71,12 @@ public abstract class NodeSocket {
      */
     public GraphNode getParentNode() { return parentNode; }
 
+    /**
+     * Get the index of this socket within its parent node's
+     * inputSocket or outputSocket list
+     */
+    public int getIndex() { return index; }
+
     /**
      * Get the position of the upper-left corner of this node when drawn on
      * the viewport (relative to the parent node's position, in graph units)
@@ -45,6 +45,11 @@ public class NodeSocketInput extends NodeSocket {
             if (outputSocket.getConnectingSocket() != this)
                 outputSocket.connect(this);
 
+            if (parentNode.getGraph() != null) {
+                parentNode.getGraph().connectionAdded(outputSocket.getParentNode(), parentNode);
+                parentNode.getGraph().markChanged();
+            }
+
             propagateUpdate();
         }
     }
@@ -63,6 +68,9 @@ public class NodeSocketInput extends NodeSocket {
         if (outputSocket.getConnectingSocket() != null)
             outputSocket.disconnect();
 
+        if (parentNode.getGraph() != null)
+            parentNode.getGraph().markChanged();
+
         propagateUpdate();
     }
 
@@ -71,6 +79,8 @@ public class NodeSocketInput extends NodeSocket {
      * or having a connected output socket update)
      */
     public void propagateUpdate() {
+        if (parentNode.getGraph() != null)
+            parentNode.getGraph().notifyNodeUpdate(parentNode);
         parentNode.onInputUpdate(this);
     }
 
@@ -88,9 +98,12 @@ public class NodeSocketInput extends NodeSocket {
 
     /**
      * Get the socket's image data up-to-date by causing all up-stream
-     * nodes to update and re-process their data.
+     * nodes to update and re-process their data. The parent node's ImageRequest
+     * for this socket is passed on to the connected output socket first.
      */
     public void requestUpdate() {
+        if (connectingSocket != null)
+            connectingSocket.setRequest(parentNode.getInputRequest(this));
         if (needsUpdate()) {
             connectingSocket.getParentNode().update();
         }
@@ -107,6 +120,26 @@ public class NodeSocketInput extends NodeSocket {
         return connectingSocket.getImage();
     }
 
+    /**
+     * Get the x-coordinate of the image's top-left pixel within the full image
+     * (see NodeSocketOutput.getImageX()). 0 if this socket is disconnected
+     */
+    public int getImageX() {
+        if (connectingSocket == null)
+            return 0;
+        return connectingSocket.getImageX();
+    }
+
+    /**
+     * Get the y-coordinate of the image's top-left pixel within the full image
+     * (see NodeSocketOutput.getImageY()). 0 if this socket is disconnected
+     */
+    public int getImageY() {
+        if (connectingSocket == null)
+            return 0;
+        return connectingSocket.getImageY();
+    }
+
     /**
      * Get the output socket that this socket is connected to.
      * Or null if this socket is not connected to anything.
@@ -21,6 +21,13 @@ public class NodeSocketOutput extends NodeSocket {
      */
     private WritableImage image;
 
+    /**
+     * The position of the image's top-left pixel within the full image. This
+     * is only not (0, 0) when just a region of the image was requested and
+     * the node produced only that region (see ImageRequest)
+     */
+    private int imageX, imageY;
+
     /**
      * If this is true, then it means that the image data stored in this socket's image
      * is out-of-date with the state of the graph/node properties and that this socket's
@@ -29,6 +36,12 @@ public class NodeSocketOutput extends NodeSocket {
      */
     private boolean needsUpdateFlag;
 
+    /**
+     * How much of this socket's image the connected node needs, or null if
+     * it needs the full image. See ImageRequest
+     */
+    private ImageRequest request;
+
     /**
      * Create a new NodeSocketOutput for the given node at the given index.
      */
@@ -71,13 +84,20 @@ public class NodeSocketOutput extends NodeSocket {
 
         NodeSocketInput inputSocket = connectingSocket;
         connectingSocket = null;
+        setRequest(null);
         // Disconnect the other socket if it hasn't been disconnected already
         if (inputSocket.getConnectingSocket() != null)
             inputSocket.disconnect();
     }
 
+    /**
+     * Indicate that this socket's image data is out-of-date and pass the
+     * update on to the connected input socket (if any)
+     */
     public void propagateUpdate() {
         needsUpdateFlag = true;
+        if (parentNode.getGraph() != null)
+            parentNode.getGraph().notifyNodeUpdate(parentNode);
         if (connectingSocket != null)
             connectingSocket.propagateUpdate();
     }
@@ -98,7 +118,46 @@ public class NodeSocketOutput extends NodeSocket {
     /**
      * Set this socket's image data
      */
-    public void setImage(WritableImage newImage) { image = newImage; }
+    public void setImage(WritableImage newImage) { setImage(newImage, 0, 0); }
+
+    /**
+     * Set this socket's image data to the part of the full image
+     * whose top-left pixel is at the given position
+     */
+    public void setImage(WritableImage newImage, int x, int y) {
+        image  = newImage;
+        imageX = x;
+        imageY = y;
+    }
+
+    /**
+     * Get the x-coordinate of the image's top-left pixel within the full image
+     */
+    public int getImageX() { return imageX; }
+
+    /**
+     * Get the y-coordinate of the image's top-left pixel within the full image
+     */
+    public int getImageY() { return imageY; }
+
+    /**
+     * Get the ImageRequest describing how much of this socket's image is needed,
+     * or null if the full image is needed
+     */
+    public ImageRequest getRequest() { return request; }
+
+    /**
+     * Set the ImageRequest describing how much of this socket's image is needed.
+     * If the request changes and the parent node's output depends on it, the
+     * socket is marked as needing an update
+     */
+    public void setRequest(ImageRequest newRequest) {
+        if (newRequest == null ? request == null : newRequest.equals(request))
+            return;
+        request = newRequest;
+        if (parentNode.usesImageRequests())
+            needsUpdateFlag = true;
+    }
 
     /**
      * Get the state of the socket's needsUpdateFlag, which indicates whether or not
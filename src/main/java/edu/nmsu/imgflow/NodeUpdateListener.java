@@ -0,0 +1,15 @@
+package edu.nmsu.imgflow;
+
+/**
+ * A listener to be registered with a Graph so that other parts
+ * of the application can respond to the image data of a node in
+ * the graph becoming out-of-date.
+ */
+public interface NodeUpdateListener {
+    /**
+     * Respond to a node's image data becoming out-of-date
+     * @param node The node whose data has changed (or that
+     * was removed from the graph)
+     */
+    public void handle(GraphNode node);
+}
@@ -0,0 +1,352 @@
+package edu.nmsu.imgflow;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.WritablePixelFormat;
+
+/**
+ * Reduces an image to a palette of at most 256 colors, for writing indexed-color
+ * PNGs (see PngEncoder.writeIndexed()).
+ *
+ * The palette is chosen from a histogram of a sample of the image's pixels (on a
+ * grid, so that at most MAX_SAMPLES pixels are looked at however large the image is).
+ * If the sample has no more colors than the palette can hold, which is usual for flat
+ * graphics, those colors are used as they are. Otherwise the palette is found by median
+ * cut: starting from one box holding every sampled color, the box with the largest
+ * spread along one channel (weighted by how many pixels it covers) is split at the
+ * median along that channel, until there are as many boxes as palette entries. Each
+ * box's palette entry is the average of its colors.
+ *
+ * Every pixel is then mapped to its nearest palette entry, optionally with 4x4 ordered
+ * (Bayer) dithering. Nearest entries are cached by color (at 5 bits per channel), so
+ * mapping an image costs little more than a table lookup per pixel. Ordered dithering
+ * (unlike error diffusion) treats every pixel on its own, so rows can be mapped in any
+ * order and on several threads at once.
+ *
+ * Fully transparent pixels always map to a fully transparent palette entry. Palette
+ * entries that aren't fully opaque are put first, so a PNG's transparency chunk only
+ * needs to list those.
+ */
+public class PaletteQuantizer {
+
+    /**
+     * The most pixels sampled to build the histogram
+     */
+    private static final int MAX_SAMPLES = 1 << 20;
+
+    /**
+     * The 4x4 Bayer threshold matrix used for ordered dithering
+     */
+    private static final int[] BAYER = {
+         0,  8,  2, 10,
+        12,  4, 14,  6,
+         3, 11,  1,  9,
+        15,  7, 13,  5
+    };
+
+    /**
+     * How far (in each of R, G and B) ordered dithering
+     * can move a color, from -SPREAD/2 to SPREAD/2
+     */
+    private static final int DITHER_SPREAD = 16;
+
+    /**
+     * The palette colors (ARGB, not premultiplied)
+     */
+    private final int[] palette;
+
+    /**
+     * If the palette holds exactly the sampled colors, those colors in sorted
+     * order and the index of each one in the palette. Otherwise null
+     */
+    private int[] exactColors, exactIndices;
+
+    /**
+     * The nearest palette index (plus one, so 0 means not found yet) for
+     * each color, keyed by the top 5 bits of each of its channels
+     */
+    private final int[] nearest = new int[1 << 20];
+
+    /**
+     * Private constructor: use quantize()
+     */
+    private PaletteQuantizer(int[] palette) {
+        this.palette = palette;
+    }
+
+    /**
+     * Choose a palette of at most the given number of colors (up to 256) for the given image
+     */
+    public static PaletteQuantizer quantize(Image image, int maxColors) {
+        int width  = (int)image.getWidth();
+        int height = (int)image.getHeight();
+        PixelReader reader = image.getPixelReader();
+        WritablePixelFormat<IntBuffer> format = PixelFormat.getIntArgbInstance();
+
+        // Sample the image on a grid
+        int step = Math.max(1, (int)Math.ceil(Math.sqrt((double)width * height / MAX_SAMPLES)));
+        int[] samples = new int[((width + step - 1) / step) * ((height + step - 1) / step)];
+        int[] row = new int[width];
+        int count = 0;
+        for (int y = 0; y < height; y += step) {
+            reader.getPixels(0, y, width, 1, format, row, 0, width);
+            for (int x = 0; x < width; x += step)
+                samples[count++] = normalize(row[x]);
+        }
+
+        // Build the histogram: the distinct colors and how often each was seen
+        Arrays.sort(samples, 0, count);
+        int[] colors  = new int[count];
+        int[] weights = new int[count];
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct > 0 && colors[distinct - 1] == samples[i]) {
+                weights[distinct - 1]++;
+            } else {
+                colors[distinct]  = samples[i];
+                weights[distinct] = 1;
+                distinct++;
+            }
+        }
+
+        maxColors = Math.max(2, Math.min(256, maxColors));
+        if (distinct <= maxColors) {
+            // Few enough colors to keep them all
+            int[] palette = sortTransparentFirst(Arrays.copyOf(colors, distinct));
+            PaletteQuantizer quantizer = new PaletteQuantizer(palette);
+            quantizer.exactColors  = Arrays.copyOf(colors, distinct);
+            quantizer.exactIndices = new int[distinct];
+            for (int i = 0; i < palette.length; i++)
+                quantizer.exactIndices[Arrays.binarySearch(quantizer.exactColors, palette[i])] = i;
+            return quantizer;
+        }
+
+        // Fully transparent pixels get their own entry, the rest of the palette is found by median cut
+        int transparent = Arrays.binarySearch(colors, 0, distinct, 0);
+        if (transparent >= 0) {
+            System.arraycopy(colors,  transparent + 1, colors,  transparent, distinct - transparent - 1);
+            System.arraycopy(weights, transparent + 1, weights, transparent, distinct - transparent - 1);
+            distinct--;
+        }
+        int[] palette = medianCut(colors, weights, distinct, transparent >= 0 ? maxColors - 1 : maxColors);
+        if (transparent >= 0) {
+            palette = Arrays.copyOf(palette, palette.length + 1);
+            palette[palette.length - 1] = 0;
+        }
+        return new PaletteQuantizer(sortTransparentFirst(palette));
+    }
+
+    /**
+     * Get the palette colors (ARGB, not premultiplied)
+     */
+    public int[] getPalette() {
+        return palette;
+    }
+
+    /**
+     * Map the given row (number y) of ARGB pixels to palette indices, writing one
+     * index per pixel to the given array. If dither is true, ordered dithering is
+     * used (unless the palette holds every color of the image anyway).
+     * Rows can be mapped from several threads at once
+     */
+    public void mapRow(int[] argb, int y, boolean dither, byte[] indices) {
+        int width = indices.length;
+        if (exactColors != null) {
+            for (int x = 0; x < width; x++) {
+                int color = normalize(argb[x]);
+                int i = Arrays.binarySearch(exactColors, color);
+                indices[x] = (byte)(i >= 0 ? exactIndices[i] : findNearest(color));
+            }
+            return;
+        }
+
+        int bayerRow = (y & 3) * 4;
+        for (int x = 0; x < width; x++) {
+            int color = normalize(argb[x]);
+            if (dither && color != 0) {
+                int offset = (BAYER[bayerRow + (x & 3)] * 2 + 1) * DITHER_SPREAD / 32 - DITHER_SPREAD / 2;
+                int r = clamp(((color >> 16) & 0xff) + offset);
+                int g = clamp(((color >> 8)  & 0xff) + offset);
+                int b = clamp(( color        & 0xff) + offset);
+                color = (color & 0xff000000) | (r << 16) | (g << 8) | b;
+            }
+
+            int key = ((color >>> 12) & 0xf8000) | ((color >>> 9) & 0x7c00) |
+                      ((color >>> 6)  & 0x3e0)   | ((color >>> 3) & 0x1f);
+            int index = nearest[key] - 1;
+            if (index < 0) {
+                // Look up the nearest entry to the middle of the key's cell. Another
+                // thread may do the same at the same time, which is harmless
+                index = findNearest(color == 0 ? 0 : ((color & 0xf8f8f8f8) | 0x04040404));
+                nearest[key] = index + 1;
+            }
+            indices[x] = (byte)index;
+        }
+    }
+
+    /**
+     * Find the index of the palette entry closest to the given color
+     */
+    private int findNearest(int color) {
+        int a = color >>> 24, r = (color >> 16) & 0xff, g = (color >> 8) & 0xff, b = color & 0xff;
+        int best = 0;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int i = 0; i < palette.length; i++) {
+            int p  = palette[i];
+            int da = (p >>> 24) - a;
+            int dr = ((p >> 16) & 0xff) - r;
+            int dg = ((p >> 8)  & 0xff) - g;
+            int db = ( p        & 0xff) - b;
+            int distance = da*da + dr*dr + dg*dg + db*db;
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Split the first given number of colors of the histogram into at most the
+     * given number of boxes by median cut, and return the average color of each box
+     */
+    private static int[] medianCut(int[] colors, int[] weights, int length, int maxBoxes) {
+        ArrayList<Box> boxes = new ArrayList<Box>();
+        boxes.add(new Box(colors, weights, 0, length));
+
+        while (boxes.size() < maxBoxes) {
+            // Split the box with the largest weighted spread
+            Box best = null;
+            for (Box box : boxes)
+                if (box.score > 0 && (best == null || box.score > best.score))
+                    best = box;
+            if (best == null)
+                break;
+
+            // Sort the box's colors along its widest channel and split at the weighted median
+            int shift = best.channel * 8;
+            int size = best.end - best.start;
+            long[] order = new long[size];
+            for (int i = 0; i < size; i++)
+                order[i] = ((long)((colors[best.start + i] >>> shift) & 0xff) << 32) | i;
+            Arrays.sort(order);
+            int[] sortedColors  = new int[size];
+            int[] sortedWeights = new int[size];
+            for (int i = 0; i < size; i++) {
+                int from = best.start + (int)order[i];
+                sortedColors[i]  = colors[from];
+                sortedWeights[i] = weights[from];
+            }
+            System.arraycopy(sortedColors,  0, colors,  best.start, size);
+            System.arraycopy(sortedWeights, 0, weights, best.start, size);
+
+            int split = best.start + 1;
+            long seen = weights[best.start];
+            while (split < best.end - 1 && seen * 2 < best.weight)
+                seen += weights[split++];
+            boxes.remove(best);
+            boxes.add(new Box(colors, weights, best.start, split));
+            boxes.add(new Box(colors, weights, split, best.end));
+        }
+
+        int[] palette = new int[boxes.size()];
+        for (int i = 0; i < palette.length; i++)
+            palette[i] = boxes.get(i).average(colors, weights);
+        return palette;
+    }
+
+    /**
+     * A box of median cut: a range of the histogram's colors
+     */
+    private static class Box {
+        final int start, end;
+        /**
+         * The total number of samples in the box
+         */
+        long weight;
+        /**
+         * The channel (0-3, blue to alpha) with the largest spread
+         */
+        int channel;
+        /**
+         * That channel's spread times the box's weight, or 0
+         * if the box only holds one color and can't be split
+         */
+        long score;
+
+        public Box(int[] colors, int[] weights, int start, int end) {
+            this.start = start;
+            this.end   = end;
+            int[] min = { 255, 255, 255, 255 };
+            int[] max = { 0, 0, 0, 0 };
+            for (int i = start; i < end; i++) {
+                weight += weights[i];
+                for (int c = 0; c < 4; c++) {
+                    int value = (colors[i] >>> (c * 8)) & 0xff;
+                    if (value < min[c]) min[c] = value;
+                    if (value > max[c]) max[c] = value;
+                }
+            }
+            for (int c = 0; c < 4; c++) {
+                long spread = (max[c] - min[c]) * weight;
+                if (end - start > 1 && spread > score) {
+                    score = spread;
+                    channel = c;
+                }
+            }
+        }
+
+        /**
+         * Get the weighted average color of the box
+         */
+        public int average(int[] colors, int[] weights) {
+            long a = 0, r = 0, g = 0, b = 0;
+            for (int i = start; i < end; i++) {
+                int color = colors[i];
+                long w = weights[i];
+                a += (color >>> 24) * w;
+                r += ((color >> 16) & 0xff) * w;
+                g += ((color >> 8)  & 0xff) * w;
+                b += ( color        & 0xff) * w;
+            }
+            long half = weight / 2;
+            return (int)((a + half) / weight) << 24 | (int)((r + half) / weight) << 16 |
+                   (int)((g + half) / weight) << 8  | (int)((b + half) / weight);
+        }
+    }
+
+    /**
+     * Reorder the given palette so that the entries that aren't fully opaque come first
+     */
+    private static int[] sortTransparentFirst(int[] palette) {
+        int[] sorted = new int[palette.length];
+        int n = 0;
+        for (int color : palette)
+            if ((color >>> 24) != 0xff)
+                sorted[n++] = color;
+        for (int color : palette)
+            if ((color >>> 24) == 0xff)
+                sorted[n++] = color;
+        return sorted;
+    }
+
+    /**
+     * Map every fully transparent color to transparent black,
+     * since their color channels don't matter
+     */
+    private static int normalize(int argb) {
+        return (argb >>> 24) == 0 ? 0 : argb;
+    }
+
+    /**
+     * Clamp the given value to 0-255
+     */
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+}
@@ -0,0 +1,725 @@
+package edu.nmsu.imgflow;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.WritablePixelFormat;
+
+/**
+ * Writes images to PNG files.
+ *
+ * The image's pixels are read straight from its PixelReader one row at a time,
+ * filtered and deflated, and written through a buffered FileChannel. The image is
+ * never copied as a whole (unlike converting it to a BufferedImage for ImageIO), so
+ * saving doesn't need any more memory than a few rows of the image.
+ *
+ * The deflate level (0-9, trading speed for size) and the filter used on each row
+ * are configurable. Images without any transparent pixels are written without an
+ * alpha channel. Images can also be written with a palette of up to 256 colors (see
+ * writeIndexed()), which makes files of flat graphics much smaller.
+ *
+ * Large images are compressed on several threads at once. The image is split into
+ * blocks of rows which are filtered and deflated independently (each with its own
+ * deflate dictionary). Every block but the last ends on a sync flush, which ends on
+ * a byte boundary, so the blocks' outputs can simply be joined into one valid zlib
+ * stream, the same way pigz does it. The zlib checksum of the whole stream is
+ * combined from the checksums of the blocks. This makes the file very slightly
+ * larger than compressing on one thread, but encoding time scales with cores.
+ */
+public class PngEncoder {
+
+    // Row filters. Each row of the image is filtered before it is deflated, which
+    // usually makes it compress better. See the PNG specification for the details
+    public static final int FILTER_NONE     = 0;
+    public static final int FILTER_SUB      = 1;
+    public static final int FILTER_UP       = 2;
+    public static final int FILTER_AVERAGE  = 3;
+    public static final int FILTER_PAETH    = 4;
+    /**
+     * Try every filter on each row and use the one whose output has the
+     * smallest sum of absolute (signed) byte values. This is the usual
+     * heuristic for picking filters (libpng does the same)
+     */
+    public static final int FILTER_ADAPTIVE = 5;
+
+    /**
+     * The default deflate level, which is a good balance of speed and size
+     */
+    public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
+    /**
+     * The 8-byte signature at the start of every PNG file
+     */
+    private static final byte[] SIGNATURE = { (byte)137, 'P', 'N', 'G', '\r', '\n', 26, '\n' };
+
+    /**
+     * The most data put into a single IDAT chunk
+     */
+    private static final int IDAT_SIZE = 64 * 1024;
+
+    /**
+     * The size of the buffer that chunks are collected in before
+     * being written to the channel
+     */
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * The (approximate) number of bytes of unfiltered image data
+     * in each block of rows that is compressed on its own thread
+     */
+    private static final int BLOCK_SIZE = 1024 * 1024;
+
+    /**
+     * The threads that compress blocks of rows, shared by every PngEncoder so that
+     * several images being written at once (e.g. by a WriteBehindQueue's writers) still
+     * use only one thread per core between them. The threads are only started when needed
+     */
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), (runnable) -> {
+        Thread thread = new Thread(runnable, "PNG encoder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // PNG color types
+    private static final int COLOR_TYPE_RGB  = 2;
+    private static final int COLOR_TYPE_RGBA = 6;
+    private static final int COLOR_TYPE_INDEXED = 3;
+
+    /**
+     * The deflate level (0-9)
+     */
+    private final int compressionLevel;
+
+    /**
+     * The row filter (one of the FILTER_ constants)
+     */
+    private final int filter;
+
+    /**
+     * The most threads used to compress a single image (at most
+     * one per core, as they're taken from the shared EXECUTOR)
+     */
+    private final int threads;
+
+    /**
+     * Create a new PngEncoder with the default deflate level and
+     * adaptive filtering, using every available core
+     */
+    public PngEncoder() {
+        this(DEFAULT_COMPRESSION_LEVEL, FILTER_ADAPTIVE);
+    }
+
+    /**
+     * Create a new PngEncoder with the given deflate level (0-9) and
+     * row filter (one of the FILTER_ constants), using every available core
+     */
+    public PngEncoder(int compressionLevel, int filter) {
+        this(compressionLevel, filter, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a new PngEncoder with the given deflate level (0-9), row filter
+     * (one of the FILTER_ constants) and the most threads to compress with
+     */
+    public PngEncoder(int compressionLevel, int filter, int threads) {
+        if (compressionLevel < 0 || compressionLevel > 9)
+            throw new IllegalArgumentException("Invalid compression level: "+compressionLevel);
+        if (filter < FILTER_NONE || filter > FILTER_ADAPTIVE)
+            throw new IllegalArgumentException("Invalid filter: "+filter);
+        if (threads < 1)
+            throw new IllegalArgumentException("Invalid number of threads: "+threads);
+        this.compressionLevel = compressionLevel;
+        this.filter = filter;
+        this.threads = threads;
+    }
+
+    /**
+     * Get the deflate level (0-9)
+     */
+    public int getCompressionLevel() { return compressionLevel; }
+
+    /**
+     * Get the row filter (one of the FILTER_ constants)
+     */
+    public int getFilter() { return filter; }
+
+    /**
+     * Get the most threads used to compress a single image
+     */
+    public int getThreads() { return threads; }
+
+    /**
+     * Write the given image to the given file as a PNG,
+     * replacing the file if it already exists
+     */
+    public void write(Image image, File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(image, channel);
+        }
+    }
+
+    /**
+     * Write the given image to the given channel as a PNG.
+     * The channel is not closed
+     */
+    public void write(Image image, WritableByteChannel channel) throws IOException {
+        int width  = (int)image.getWidth();
+        int height = (int)image.getHeight();
+        PixelReader reader = image.getPixelReader();
+        boolean alpha = hasTransparency(reader, width, height);
+        int bytesPerPixel = alpha ? 4 : 3;
+
+        ChunkWriter chunks = new ChunkWriter(channel);
+        chunks.writeSignature();
+        writeHeader(chunks, width, height, alpha ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB);
+
+        // Each row is the pixels' RGB(A) bytes
+        RowSource source = (y, argb, bytes) -> {
+            reader.getPixels(0, y, width, 1, PixelFormat.getIntArgbInstance(), argb, 0, width);
+            int i = 0;
+            for (int x = 0; x < width; x++) {
+                int pixel = argb[x];
+                bytes[i++] = (byte)(pixel >> 16);
+                bytes[i++] = (byte)(pixel >> 8);
+                bytes[i++] = (byte)pixel;
+                if (bytesPerPixel == 4)
+                    bytes[i++] = (byte)(pixel >>> 24);
+            }
+        };
+        writeImageData(source, width, height, bytesPerPixel, chunks);
+
+        chunks.writeChunk("IEND", new byte[0], 0, 0);
+        chunks.flush();
+    }
+
+    /**
+     * Write the given image to the given file as an indexed-color PNG, with a
+     * palette of at most 256 colors chosen by a PaletteQuantizer, replacing the
+     * file if it already exists. If dither is true, ordered dithering is used to
+     * hide the banding from the reduced number of colors
+     */
+    public void writeIndexed(Image image, File file, boolean dither) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeIndexed(image, channel, dither);
+        }
+    }
+
+    /**
+     * Write the given image to the given channel as an indexed-color PNG (see
+     * writeIndexed(Image, File, boolean)). The channel is not closed
+     */
+    public void writeIndexed(Image image, WritableByteChannel channel, boolean dither) throws IOException {
+        int width  = (int)image.getWidth();
+        int height = (int)image.getHeight();
+        PixelReader reader = image.getPixelReader();
+        PaletteQuantizer quantizer = PaletteQuantizer.quantize(image, 256);
+        int[] palette = quantizer.getPalette();
+
+        ChunkWriter chunks = new ChunkWriter(channel);
+        chunks.writeSignature();
+        writeHeader(chunks, width, height, COLOR_TYPE_INDEXED);
+
+        // Palette. The quantizer puts any transparent colors first, so the
+        // transparency chunk only needs to list those
+        byte[] colors = new byte[palette.length * 3];
+        int numTransparent = 0;
+        for (int i = 0; i < palette.length; i++) {
+            colors[i*3]     = (byte)(palette[i] >> 16);
+            colors[i*3 + 1] = (byte)(palette[i] >> 8);
+            colors[i*3 + 2] = (byte)palette[i];
+            if ((palette[i] >>> 24) != 0xff)
+                numTransparent = i + 1;
+        }
+        chunks.writeChunk("PLTE", colors, 0, colors.length);
+        if (numTransparent > 0) {
+            byte[] alphas = new byte[numTransparent];
+            for (int i = 0; i < numTransparent; i++)
+                alphas[i] = (byte)(palette[i] >>> 24);
+            chunks.writeChunk("tRNS", alphas, 0, alphas.length);
+        }
+
+        // Each row is the pixels' palette indices
+        RowSource source = (y, argb, bytes) -> {
+            reader.getPixels(0, y, width, 1, PixelFormat.getIntArgbInstance(), argb, 0, width);
+            quantizer.mapRow(argb, y, dither, bytes);
+        };
+        writeImageData(source, width, height, 1, chunks);
+
+        chunks.writeChunk("IEND", new byte[0], 0, 0);
+        chunks.flush();
+    }
+
+    /**
+     * Write the IHDR chunk for an 8-bit image of the given size and color type
+     */
+    private static void writeHeader(ChunkWriter chunks, int width, int height, int colorType) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(13);
+        header.putInt(width);
+        header.putInt(height);
+        header.put((byte)8);            // bit depth
+        header.put((byte)colorType);    // color type
+        header.put((byte)0);            // compression method
+        header.put((byte)0);            // filter method
+        header.put((byte)0);            // interlace method
+        chunks.writeChunk("IHDR", header.array(), 0, 13);
+    }
+
+    /**
+     * Filter and deflate the rows from the given source and write them out as IDAT
+     * chunks. Compress in parallel if there's more than one block of rows
+     */
+    private void writeImageData(RowSource source, int width, int height, int bytesPerPixel,
+            ChunkWriter chunks) throws IOException {
+        int blockRows = Math.max(1, BLOCK_SIZE / (width * bytesPerPixel));
+        if (threads > 1 && height > blockRows)
+            writeImageDataParallel(source, width, height, bytesPerPixel, blockRows, chunks);
+        else
+            writeImageDataSerial(source, width, height, bytesPerPixel, chunks);
+    }
+
+    /**
+     * Filter and deflate the image's rows on this thread,
+     * and write them out as IDAT chunks
+     */
+    private void writeImageDataSerial(RowSource source, int width, int height, int bytesPerPixel,
+            ChunkWriter chunks) throws IOException {
+        Deflater deflater = new Deflater(compressionLevel);
+        try {
+            IdatStream idat = new IdatStream(chunks);
+            DeflaterOutputStream out = new DeflaterOutputStream(idat, deflater, IDAT_SIZE);
+            RowFilter rows = new RowFilter(width, bytesPerPixel, filter);
+            int[] argb = new int[width];
+            for (int y = 0; y < height; y++) {
+                source.readRow(y, argb, rows.getCurrentRow());
+                rows.filterRow(out);
+            }
+            out.finish();
+            idat.flush();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Filter and deflate blocks of the image's rows (blockRows rows each) on several
+     * threads, and write them out in order as IDAT chunks. Only a few blocks more
+     * than there are threads are held in memory at once
+     */
+    private void writeImageDataParallel(RowSource source, int width, int height, int bytesPerPixel,
+            int blockRows, ChunkWriter chunks) throws IOException {
+        int numBlocks = (height + blockRows - 1) / blockRows;
+        int numThreads = Math.min(threads, numBlocks);
+
+        IdatStream idat = new IdatStream(chunks);
+        ArrayDeque<Future<CompressedBlock>> inFlight = new ArrayDeque<Future<CompressedBlock>>();
+        try {
+            // zlib header (the blocks are raw deflate data)
+            idat.write(0x78);
+            idat.write(zlibFlags(compressionLevel));
+
+            long adler = 1; // The Adler-32 of no data
+            int nextBlock = 0;
+            while (nextBlock < numBlocks || !inFlight.isEmpty()) {
+                // Keep up to two blocks per thread queued
+                while (nextBlock < numBlocks && inFlight.size() < numThreads * 2) {
+                    int startRow = nextBlock * blockRows;
+                    int endRow   = Math.min(height, startRow + blockRows);
+                    boolean last = (endRow == height);
+                    inFlight.add(EXECUTOR.submit(() ->
+                        compressBlock(source, width, bytesPerPixel, startRow, endRow, last)
+                    ));
+                    nextBlock++;
+                }
+
+                // Write the oldest block once it's done
+                CompressedBlock block = inFlight.remove().get();
+                idat.write(block.data, 0, block.length);
+                adler = combineAdler32(adler, block.adler, block.uncompressedLength);
+            }
+
+            // zlib trailer
+            idat.write((int)(adler >>> 24));
+            idat.write((int)(adler >>> 16));
+            idat.write((int)(adler >>> 8));
+            idat.write((int)adler);
+            idat.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding PNG");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            // Don't leave this image's blocks taking up the shared threads
+            for (Future<CompressedBlock> future : inFlight)
+                future.cancel(true);
+        }
+    }
+
+    /**
+     * Filter and deflate the rows from startRow up to (not including) endRow as
+     * raw deflate data, ending on a sync flush (or finishing the stream if this is
+     * the last block). The row before the block is read so that the first row in
+     * the block can be filtered just the same as if the whole image was filtered at once
+     */
+    private CompressedBlock compressBlock(RowSource source, int width, int bytesPerPixel,
+            int startRow, int endRow, boolean last) throws IOException {
+        int[] argb = new int[width];
+        RowFilter rows = new RowFilter(width, bytesPerPixel, filter);
+        if (startRow > 0)
+            source.readRow(startRow - 1, argb, rows.getPreviousRow());
+
+        // Filter the rows
+        int scanlineLength = width * bytesPerPixel + 1;
+        ByteArrayOutputStream filtered = new ByteArrayOutputStream((endRow - startRow) * scanlineLength);
+        for (int y = startRow; y < endRow; y++) {
+            source.readRow(y, argb, rows.getCurrentRow());
+            rows.filterRow(filtered);
+        }
+        byte[] input = filtered.toByteArray();
+
+        CompressedBlock block = new CompressedBlock();
+        Adler32 adler = new Adler32();
+        adler.update(input, 0, input.length);
+        block.adler = adler.getValue();
+        block.uncompressedLength = input.length;
+
+        // Deflate the rows
+        Deflater deflater = new Deflater(compressionLevel, true);
+        try {
+            deflater.setInput(input);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    out.write(buffer, 0, n);
+                }
+            }
+            else {
+                // A sync flush empties the deflater, so this stops once the
+                // output doesn't fill the whole buffer
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    out.write(buffer, 0, n);
+                } while (n == buffer.length);
+            }
+            block.data   = out.toByteArray();
+            block.length = block.data.length;
+        } finally {
+            deflater.end();
+        }
+        return block;
+    }
+
+    /**
+     * Get the second byte of the zlib header (the flags) for the given deflate
+     * level. These are the same values that zlib itself writes
+     */
+    private static int zlibFlags(int level) {
+        if (level < 2) return 0x01;
+        if (level < 6) return 0x5e;
+        if (level == 6) return 0x9c;
+        return 0xda;
+    }
+
+    /**
+     * Combine the Adler-32 checksums of two pieces of data into the checksum
+     * of both pieces joined together, given the length of the second piece.
+     * This is adler32_combine() from zlib
+     */
+    private static long combineAdler32(long adler1, long adler2, long length2) {
+        final long BASE = 65521;
+        long remainder = length2 % BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (remainder * sum1) % BASE;
+        sum1 += (adler2 & 0xffff) + BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + BASE - remainder;
+        if (sum1 >= BASE) sum1 -= BASE;
+        if (sum1 >= BASE) sum1 -= BASE;
+        if (sum2 >= (BASE << 1)) sum2 -= (BASE << 1);
+        if (sum2 >= BASE) sum2 -= BASE;
+        return (sum2 << 16) | sum1;
+    }
+
+    /**
+     * The compressed data for a block of rows
+     */
+    private static class CompressedBlock {
+        byte[] data;
+        int    length;
+        long   adler;
+        long   uncompressedLength;
+    }
+
+    /**
+     * Check whether any pixel of the image is not fully opaque
+     */
+    private static boolean hasTransparency(PixelReader reader, int width, int height) {
+        WritablePixelFormat<IntBuffer> format = PixelFormat.getIntArgbInstance();
+        int[] argb = new int[width];
+        for (int y = 0; y < height; y++) {
+            reader.getPixels(0, y, width, 1, format, argb, 0, width);
+            for (int x = 0; x < width; x++)
+                if ((argb[x] >>> 24) != 0xff)
+                    return true;
+        }
+        return false;
+    }
+
+    /**
+     * Produces the unfiltered bytes of each row of an image
+     */
+    private interface RowSource {
+        /**
+         * Write the bytes of the given row into the given array. The given
+         * int array has room for one row of pixels and can be used as scratch
+         */
+        public void readRow(int y, int[] argb, byte[] bytes);
+    }
+
+    /**
+     * Converts rows of bytes to filtered PNG scanlines
+     * (a filter type byte followed by the filtered bytes)
+     */
+    private static class RowFilter {
+        private final int bytesPerPixel;
+        private final int filter;
+
+        /**
+         * The unfiltered bytes of the current and previous row
+         */
+        private byte[] current, previous;
+        /**
+         * The filtered scanline for each filter type
+         * (only the one in use unless filtering adaptively)
+         */
+        private final byte[][] filtered = new byte[5][];
+
+        public RowFilter(int width, int bytesPerPixel, int filter) {
+            this.bytesPerPixel = bytesPerPixel;
+            this.filter = filter;
+            int rowBytes = width * bytesPerPixel;
+            current  = new byte[rowBytes];
+            previous = new byte[rowBytes]; // The row above the first row is all zeros
+            for (int type = FILTER_NONE; type <= FILTER_PAETH; type++) {
+                if (filter == FILTER_ADAPTIVE || filter == type) {
+                    filtered[type] = new byte[rowBytes + 1];
+                    filtered[type][0] = (byte)type;
+                }
+            }
+        }
+
+        /**
+         * Get the array to write the bytes of the row above the next row to be
+         * filtered into. By default, the first row is filtered as the top row of
+         * the image (with zeros above it)
+         */
+        public byte[] getPreviousRow() { return previous; }
+
+        /**
+         * Get the array to write the bytes of the next row to be filtered into
+         */
+        public byte[] getCurrentRow() { return current; }
+
+        /**
+         * Filter the current row and write the scanline to the given stream
+         */
+        public void filterRow(OutputStream out) throws IOException {
+            byte[] scanline;
+            if (filter == FILTER_ADAPTIVE) {
+                // Use the filter with the smallest sum of absolute values
+                scanline = null;
+                long best = Long.MAX_VALUE;
+                for (int type = FILTER_NONE; type <= FILTER_PAETH; type++) {
+                    long sum = apply(type);
+                    if (sum < best) {
+                        best = sum;
+                        scanline = filtered[type];
+                    }
+                }
+            }
+            else {
+                apply(filter);
+                scanline = filtered[filter];
+            }
+            out.write(scanline, 0, scanline.length);
+
+            // The current row becomes the previous row
+            byte[] swap = previous;
+            previous = current;
+            current  = swap;
+        }
+
+        /**
+         * Apply the given filter type to the current row, writing to the
+         * filtered scanline for that type. Returns the sum of the absolute
+         * values of the filtered bytes (as signed bytes)
+         */
+        private long apply(int type) {
+            byte[] out = filtered[type];
+            int bpp = bytesPerPixel;
+            long sum = 0;
+            for (int i = 0; i < current.length; i++) {
+                int raw  = current[i] & 0xff;
+                int left = (i >= bpp) ? (current[i - bpp] & 0xff) : 0;
+                int up   = previous[i] & 0xff;
+                int value;
+                switch (type) {
+                    case FILTER_SUB:        value = raw - left; break;
+                    case FILTER_UP:         value = raw - up; break;
+                    case FILTER_AVERAGE:    value = raw - ((left + up) >> 1); break;
+                    case FILTER_PAETH:
+                        int upLeft = (i >= bpp) ? (previous[i - bpp] & 0xff) : 0;
+                        value = raw - paeth(left, up, upLeft);
+                        break;
+                    default:                value = raw; break;
+                }
+                out[i + 1] = (byte)value;
+                sum += Math.abs((byte)value);
+            }
+            return sum;
+        }
+
+        /**
+         * The Paeth predictor: whichever of the left, up and upper-left
+         * bytes is closest to left + up - upLeft
+         */
+        private static int paeth(int left, int up, int upLeft) {
+            int p  = left + up - upLeft;
+            int pa = Math.abs(p - left);
+            int pb = Math.abs(p - up);
+            int pc = Math.abs(p - upLeft);
+            if (pa <= pb && pa <= pc) return left;
+            if (pb <= pc) return up;
+            return upLeft;
+        }
+    }
+
+    /**
+     * An OutputStream that collects the deflated image data
+     * and writes it out in IDAT chunks
+     */
+    private static class IdatStream extends OutputStream {
+        private final ChunkWriter chunks;
+        private final byte[] buffer = new byte[IDAT_SIZE];
+        private int length = 0;
+
+        public IdatStream(ChunkWriter chunks) {
+            this.chunks = chunks;
+        }
+
+        public void write(int b) throws IOException {
+            if (length == buffer.length)
+                flush();
+            buffer[length++] = (byte)b;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (length == buffer.length)
+                    flush();
+                int n = Math.min(len, buffer.length - length);
+                System.arraycopy(b, off, buffer, length, n);
+                length += n;
+                off    += n;
+                len    -= n;
+            }
+        }
+
+        /**
+         * Write out the collected data as an IDAT chunk
+         */
+        public void flush() throws IOException {
+            if (length > 0) {
+                chunks.writeChunk("IDAT", buffer, 0, length);
+                length = 0;
+            }
+        }
+    }
+
+    /**
+     * Writes PNG chunks (length, type, data and CRC) to
+     * a channel through a buffer
+     */
+    private static class ChunkWriter {
+        private final WritableByteChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final CRC32 crc = new CRC32();
+
+        public ChunkWriter(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        public void writeSignature() throws IOException {
+            put(SIGNATURE, 0, SIGNATURE.length);
+        }
+
+        /**
+         * Write a chunk with the given (4-letter) type and data
+         */
+        public void writeChunk(String type, byte[] data, int off, int len) throws IOException {
+            byte[] typeBytes = type.getBytes("US-ASCII");
+            crc.reset();
+            crc.update(typeBytes);
+            crc.update(data, off, len);
+
+            putInt(len);
+            put(typeBytes, 0, 4);
+            put(data, off, len);
+            putInt((int)crc.getValue());
+        }
+
+        private void putInt(int value) throws IOException {
+            if (buffer.remaining() < 4)
+                flush();
+            buffer.putInt(value);
+        }
+
+        private void put(byte[] data, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!buffer.hasRemaining())
+                    flush();
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(data, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Write everything in the buffer to the channel
+         */
+        public void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package edu.nmsu.imgflow;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import javafx.scene.image.WritableImage;
+
+/**
+ * Reads and decodes the files of a list ahead of time on a few I/O threads, so that
+ * while one file is being processed the next ones are already being read from disk.
+ *
+ * Each file is read through a FileChannel into a buffer that is reused for the I/O
+ * thread's next file, then decoded from memory into the ImageDecodeCache with the
+ * given ImageRequest. When a File IN node then asks the cache for the same file with
+ * the same request, the decoded image is already there.
+ *
+ * At most depth files are read ahead of the one being processed, and once the files
+ * that have been decoded but not yet taken with next() hold more than maxBytes of pixel
+ * data, no more are started until some are taken.
+ *
+ * A file that can't be read or decoded is not an error here: next() still returns it,
+ * and the error is reported when the File IN node tries to load it.
+ */
+public class PrefetchDecoder {
+
+    /**
+     * The default number of I/O threads
+     */
+    public static final int DEFAULT_IO_THREADS = 2;
+
+    /**
+     * The default number of files read ahead of the one being processed
+     */
+    public static final int DEFAULT_DEPTH = 4;
+
+    /**
+     * The default most bytes of pixel data decoded ahead
+     */
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    private final List<File>   files;
+    private final ImageRequest request;
+    private final int          depth;
+    private final long         maxBytes;
+
+    /**
+     * The I/O threads that read and decode the files
+     */
+    private final ExecutorService readers;
+
+    /**
+     * The file contents buffer of each I/O thread
+     */
+    private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>();
+
+    /**
+     * The prefetch of each file that has been started, giving the number
+     * of bytes of pixel data it decoded (0 if it failed)
+     */
+    private final ArrayList<Future<Long>> prefetches = new ArrayList<Future<Long>>();
+
+    /**
+     * The index of the next file to be returned by next()
+     */
+    private int nextIndex = 0;
+
+    /**
+     * The bytes of pixel data decoded for files that haven't been taken yet
+     */
+    private long decodedBytes = 0;
+
+    /**
+     * Start prefetching the given files with the given request (see
+     * ImageDecodeCache.get(File, ImageRequest)), using the default
+     * number of threads, depth and byte budget
+     */
+    public PrefetchDecoder(List<File> files, ImageRequest request) {
+        this(files, request, DEFAULT_IO_THREADS, DEFAULT_DEPTH, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Start prefetching the given files with the given request on the given number of
+     * I/O threads, reading at most depth files ahead and decoding at most maxBytes of
+     * pixel data ahead
+     */
+    public PrefetchDecoder(List<File> files, ImageRequest request, int ioThreads, int depth, long maxBytes) {
+        this.files    = files;
+        this.request  = request;
+        this.depth    = Math.max(1, depth);
+        this.maxBytes = maxBytes;
+        readers = Executors.newFixedThreadPool(Math.max(1, ioThreads), (runnable) -> {
+            Thread thread = new Thread(runnable, "Image prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        startPrefetches();
+    }
+
+    /**
+     * Whether there are more files to be returned by next()
+     */
+    public boolean hasNext() {
+        return nextIndex < files.size();
+    }
+
+    /**
+     * Get the next file of the list, waiting until it has been read and decoded
+     * (or has failed to). Returns null when every file has been returned
+     */
+    public File next() throws InterruptedException {
+        if (!hasNext())
+            return null;
+        int index = nextIndex++;
+        try {
+            long bytes = prefetches.get(index).get();
+            synchronized (this) {
+                decodedBytes -= bytes;
+            }
+        } catch (ExecutionException e) {
+            // Reported when the file is loaded
+        }
+        prefetches.set(index, null);
+        startPrefetches();
+        return files.get(index);
+    }
+
+    /**
+     * Stop prefetching. Files that are being read are finished, but no new ones are started
+     */
+    public void close() {
+        readers.shutdown();
+    }
+
+    /**
+     * Start prefetching files up to depth files ahead of the next one,
+     * as long as the decoded files are within the byte budget
+     */
+    private void startPrefetches() {
+        while (prefetches.size() < files.size() && prefetches.size() < nextIndex + depth) {
+            synchronized (this) {
+                if (decodedBytes >= maxBytes && prefetches.size() > nextIndex)
+                    return;
+            }
+            File file = files.get(prefetches.size());
+            prefetches.add(readers.submit(() -> prefetch(file)));
+        }
+    }
+
+    /**
+     * Read the given file into this thread's buffer and decode it into the
+     * cache. Returns the number of bytes of pixel data decoded
+     */
+    private long prefetch(File file) throws IOException {
+        ByteBuffer buffer = buffers.get();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException(file.getName()+" is too large");
+            if (buffer == null || buffer.capacity() < size) {
+                buffer = ByteBuffer.allocate((int)size);
+                buffers.set(buffer);
+            }
+            buffer.clear();
+            buffer.limit((int)size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+        }
+
+        WritableImage image = ImageDecodeCache.get(file, request, buffer.array(), buffer.position());
+        long bytes = (image == null) ? 0 : 4L * (long)image.getWidth() * (long)image.getHeight();
+        synchronized (this) {
+            decodedBytes += bytes;
+        }
+        return bytes;
+    }
+}
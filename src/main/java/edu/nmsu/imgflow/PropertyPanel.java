@@ -10,6 +10,7 @@ import javafx.scene.layout.Priority;
 import javafx.scene.control.Label;
 import javafx.scene.control.Button;
 import javafx.scene.control.ScrollPane;
+import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 
 /**
@@ -22,6 +23,11 @@ import javafx.scene.image.ImageView;
  */
 public class PropertyPanel {
 
+    /**
+     * The largest width or height of the preview image (in pixels)
+     */
+    private static final int PREVIEW_SIZE = 512;
+
     /**
      * The VBox containing all of the property panel's content
      */
@@ -114,7 +120,7 @@ public class PropertyPanel {
         deleteNodeButton.setOnAction((actionEvent) -> {
             if (selectedNode == null) return;
             selectedNode.disconnectAllSockets();
-            Main.getInstance().getActiveGraph().getNodes().remove(selectedNode);
+            Main.getInstance().getActiveGraph().removeNode(selectedNode);
             updateSelectedNode(null);
         });
         // The Delete node button is placed inside an Hbox to right-align it
@@ -151,7 +157,6 @@ public class PropertyPanel {
             descriptionLabel.setText(newSelection.getDescription());
             propertyBox.getChildren().add(descriptionLabel);
             // Update preivew image
-            selectedNode.update();
             refreshPreview();
         }
     }
@@ -167,14 +172,40 @@ public class PropertyPanel {
     }
 
     /**
-     * Refresh the preview image of the selected node.
-     * If no node is selected, this does nothing
+     * Update the selected node and refresh its preview image.
+     * If no node is selected, this does nothing.
+     * 
+     * The preview shows a downsampled copy of the node's image (no larger than
+     * PREVIEW_SIZE), which is made on a background thread. Since that's all that
+     * is shown, only an image of that size is requested for the preview, combined
+     * with the request of the node the socket is connected to (if any), so the
+     * image still does for that node and isn't made again at another size.
      */
     public void refreshPreview() {
         if (selectedNode == null) return;
 
         NodeSocket socket = selectedNode.getThumbnailSocket();
-            if (socket != null)
-                preview.setImage(socket.getImage());
+        if (socket == null) return;
+        if (socket instanceof NodeSocketOutput) {
+            NodeSocketOutput output = (NodeSocketOutput)socket;
+            ImageRequest request = new ImageRequest(PREVIEW_SIZE, PREVIEW_SIZE);
+            NodeSocketInput consumer = output.getConnectingSocket();
+            if (consumer != null)
+                request = ImageRequest.union(request, consumer.getParentNode().getInputRequest(consumer));
+            output.setRequest(request);
+        }
+        selectedNode.update();
+        Image image = socket.getImage();
+        if (image == null) {
+            preview.setImage(null);
+            return;
+        }
+
+        GraphNode node = selectedNode;
+        Main.getInstance().getThumbnailCache().downsampleLater(image, PREVIEW_SIZE, (downsampled) -> {
+            // Ignore the result if the selection or the image changed in the meantime
+            if (selectedNode == node && socket.getImage() == image)
+                preview.setImage(downsampled);
+        });
     }
 }
\ No newline at end of file
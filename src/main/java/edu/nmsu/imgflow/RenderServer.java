@@ -0,0 +1,852 @@
+package edu.nmsu.imgflow;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import javafx.scene.image.WritableImage;
+
+/**
+ * An HTTP server that renders graphs for other programs, so they don't have to start
+ * the application (and a JVM) for every image. Runs on the JDK's built-in HttpServer,
+ * and doesn't need the application (or a display) to be running.
+ *
+ * POST /graphs    The body is a graph file (text or binary). Responds with the graph's
+ *                 id (the SHA-256 hash of the file), which renders can refer to.
+ * POST /render    Renders a File OUT node of a graph and responds with the encoded image.
+ *                 The parameters can be given in the query string or as multipart/form-data
+ *                 fields:
+ *                   graph=<id>                the graph to render. If there's no graph
+ *                                             parameter, the body is the graph file
+ *                   output=<node name>        the File OUT node to render (by default
+ *                                             the first one)
+ *                   format=<format>,          override the File OUT node's format and
+ *                   profile=<profile>         encoder profile (see ImageEncoder)
+ *                   <nodeName>.<propertyName>=<value>
+ *                                             override a property for this render (but
+ *                                             not a File IN node's file)
+ *                 The input images are multipart fields named after the File IN nodes they
+ *                 are loaded into. Alternatively, with a graph id, the body can be a single
+ *                 image, which is loaded into the File IN node named by input=<node name>
+ *                 (by default the first one that was saved without a file). File IN nodes
+ *                 without an image keep the file they were saved with.
+ *
+ * Graph files are parsed once and kept by their hash (up to MAX_GRAPHS of them), and each
+ * parsed graph is reused for later renders of the same graph, so nodes whose properties
+ * and inputs are the same as for the last render (e.g. a constant watermark) aren't
+ * processed again. A graph is only used by one render at a time; renders of the same
+ * graph running at the same time each parse their own copy.
+ *
+ * The server only listens on the loopback address unless it is given another address to
+ * bind to, since anyone who can reach it can render any image file the process can read
+ * (e.g. through a posted graph). Properties holding a File IN node's file can't be
+ * overridden, for the same reason.
+ *
+ * Renders run on a fixed number of worker threads with a bounded queue in front of them.
+ * A request that arrives while the queue is full gets a 503 (Service Unavailable) response
+ * straight away, so clients can back off instead of piling up. Request bodies are read on
+ * a fixed number of threads too, and a render request's body isn't read at all while the
+ * queue is full.
+ *
+ * Identical requests (the same graph, input images, parameters and overrides) are only
+ * rendered once: a request that arrives while an identical one is being rendered waits
+ * for it (without taking up a worker) and gets the same encoded image, and recently
+ * rendered images are kept (up to MAX_CACHED_BYTES of them) and sent again straight
+ * away. The X-Cache response header says which happened: MISS, SHARED or HIT. The files
+ * that graphs were saved with are assumed not to change while the server is running.
+ */
+public class RenderServer {
+
+    /**
+     * The default port the server listens on
+     */
+    public static final int DEFAULT_PORT = 8765;
+
+    /**
+     * The most graph files kept parsed
+     */
+    public static final int MAX_GRAPHS = 32;
+
+    /**
+     * The most uploaded input images kept on disk (see storeUpload())
+     */
+    private static final int MAX_UPLOADS = 256;
+
+    /**
+     * The most bytes a request body can have
+     */
+    private static final int MAX_BODY_BYTES = 256 * 1024 * 1024;
+
+    /**
+     * The most bytes of encoded images kept for repeated requests
+     */
+    public static final int MAX_CACHED_BYTES = 64 * 1024 * 1024;
+
+    private final HttpServer         server;
+    private final ExecutorService    dispatcher;
+    private final ThreadPoolExecutor workers;
+
+    /**
+     * The graph files that have been posted or rendered, by their hash, in least-
+     * to most-recently used order, and the parsed copies of each that are not in use
+     */
+    private final LinkedHashMap<String, GraphEntry> graphs = new LinkedHashMap<String, GraphEntry>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, GraphEntry> eldest) {
+            return size() > MAX_GRAPHS;
+        }
+    };
+
+    /**
+     * The directory the uploaded input images are stored in
+     */
+    private final File uploadDir;
+
+    /**
+     * The uploaded input images in the upload directory, by their hash, in
+     * least- to most-recently used order
+     */
+    private final LinkedHashMap<String, File> uploads = new LinkedHashMap<String, File>(16, 0.75f, true);
+
+    /**
+     * The renders that are queued or running, by their request's key (see RenderRequest)
+     */
+    private final HashMap<String, CompletableFuture<RenderedImage>> inFlight =
+        new HashMap<String, CompletableFuture<RenderedImage>>();
+
+    /**
+     * The recently rendered images, by their request's key, in least- to most-recently
+     * used order, and the number of bytes they take up
+     */
+    private final LinkedHashMap<String, RenderedImage> rendered =
+        new LinkedHashMap<String, RenderedImage>(16, 0.75f, true);
+    private long renderedBytes = 0;
+
+    /**
+     * Create a new RenderServer on the given port of the loopback address, rendering
+     * on the given number of worker threads with at most queueLength renders waiting.
+     * The server isn't started until start() is called
+     */
+    public RenderServer(int port, int workerThreads, int queueLength) throws IOException {
+        this(InetAddress.getLoopbackAddress(), port, workerThreads, queueLength);
+    }
+
+    /**
+     * Same as RenderServer(int, int, int), but listening on the given address
+     * (or on every address, if it is the wildcard address)
+     */
+    public RenderServer(InetAddress address, int port, int workerThreads, int queueLength) throws IOException {
+        server  = HttpServer.create(new InetSocketAddress(address, port), 0);
+        workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(Math.max(1, queueLength)), (runnable) -> {
+                Thread thread = new Thread(runnable, "Render worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        uploadDir = Files.createTempDirectory("imgflow-uploads").toFile();
+        uploadDir.deleteOnExit();
+
+        server.createContext("/graphs", (exchange) -> dispatch(exchange, this::postGraph));
+        server.createContext("/render", this::handleRender);
+        // Render requests are read on these threads, and only handed to the workers if they
+        // need rendering; they also send the responses, so slow clients don't hold up workers.
+        // There are only as many as there can be renders queued or running, so at most that
+        // many request bodies are held in memory; other requests wait for a thread
+        dispatcher = Executors.newFixedThreadPool(workerThreads + Math.max(1, queueLength), (runnable) -> {
+            Thread thread = new Thread(runnable, "Render server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(dispatcher);
+    }
+
+    /**
+     * Start the server
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stop the server, waiting for the renders that are running to finish
+     */
+    public void stop() {
+        server.stop(0);
+        workers.shutdown();
+    }
+
+    /**
+     * Get the port the server is listening on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Handle the given POST request with the given handler on a worker thread,
+     * or respond with a 503 if too many requests are waiting
+     */
+    private void dispatch(HttpExchange exchange, Handler handler) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            respond(exchange, 405, "Only POST is supported");
+            return;
+        }
+        try {
+            workers.execute(() -> {
+                try {
+                    handler.handle(exchange);
+                } catch (Exception e) {
+                    respondQuietly(exchange, e);
+                } finally {
+                    exchange.close();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            reject(exchange);
+        }
+    }
+
+    /**
+     * Respond to the given request with a 503, without keeping its body
+     */
+    private static void reject(HttpExchange exchange) throws IOException {
+        // Clients only read the response once they've sent the whole body
+        discardBody(exchange);
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        respond(exchange, 503, "Too many requests, try again later");
+        exchange.close();
+    }
+
+    /**
+     * Handle POST /graphs: keep the posted graph file and respond with its id
+     */
+    private void postGraph(HttpExchange exchange) throws Exception {
+        byte[] source = readBody(exchange);
+        String id = hash(source);
+        // Parse it now, so a broken graph is reported here rather than when rendering
+        release(id, acquire(id, source));
+        respond(exchange, 200, id);
+    }
+
+    /**
+     * Handle POST /render: respond with the encoded image of a File OUT node, from the
+     * cache, from an identical render that is already in flight, or by rendering it on
+     * a worker thread (or with a 503 if too many requests are waiting)
+     */
+    private void handleRender(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            respond(exchange, 405, "Only POST is supported");
+            return;
+        }
+        // Don't read a body of up to MAX_BODY_BYTES if it most likely couldn't be rendered
+        if (workers.getQueue().remainingCapacity() == 0) {
+            reject(exchange);
+            return;
+        }
+        RenderRequest request;
+        try {
+            request = new RenderRequest(exchange);
+        } catch (RequestException e) {
+            respondQuietly(exchange, e.status, e.getMessage());
+            exchange.close();
+            return;
+        }
+
+        RenderedImage image;
+        synchronized (rendered) {
+            image = rendered.get(request.key);
+        }
+        if (image != null) {
+            respond(exchange, image, "HIT");
+            return;
+        }
+
+        CompletableFuture<RenderedImage> result;
+        boolean render = false;
+        synchronized (inFlight) {
+            result = inFlight.get(request.key);
+            if (result == null) {
+                result = new CompletableFuture<RenderedImage>();
+                inFlight.put(request.key, result);
+                render = true;
+            }
+        }
+        String cacheStatus = render ? "MISS" : "SHARED";
+        // Respond on a server thread once the image is ready, whichever thread renders it
+        result.whenCompleteAsync((done, error) -> {
+            try {
+                if (error == null)
+                    respond(exchange, done, cacheStatus);
+                else
+                    respondQuietly(exchange, error);
+            } catch (IOException e) {
+                // The client went away
+            } finally {
+                exchange.close();
+            }
+        }, dispatcher);
+
+        if (render) {
+            CompletableFuture<RenderedImage> renderResult = result;
+            try {
+                workers.execute(() -> {
+                    try {
+                        RenderedImage done = render(request);
+                        cache(request.key, done);
+                        renderResult.complete(done);
+                    } catch (Throwable e) {
+                        renderResult.completeExceptionally(e);
+                    } finally {
+                        synchronized (inFlight) {
+                            inFlight.remove(request.key);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                synchronized (inFlight) {
+                    inFlight.remove(request.key);
+                }
+                result.completeExceptionally(new RequestException(503, "Too many requests, try again later"));
+            }
+        }
+    }
+
+    /**
+     * Render the File OUT node of the given request and encode its image
+     */
+    private RenderedImage render(RenderRequest request) throws Exception {
+        CompiledGraph graph = acquire(request.graphId, request.source);
+        WritableImage image;
+        String format, profile;
+        try {
+            // Sort the multipart fields into input images and parameters
+            LinkedHashMap<String, String> params = new LinkedHashMap<String, String>(request.params);
+            LinkedHashMap<GraphNodeFileIn, File> files = new LinkedHashMap<GraphNodeFileIn, File>();
+            for (Map.Entry<String, byte[]> part : request.parts.entrySet()) {
+                GraphNode node = graph.graph.getNode(part.getKey());
+                if (node instanceof GraphNodeFileIn)
+                    files.put((GraphNodeFileIn)node, storeUpload(part.getValue(), request.partHashes.get(part.getKey())));
+                else
+                    params.put(part.getKey(), new String(part.getValue(), StandardCharsets.UTF_8));
+            }
+            if (request.image != null) {
+                GraphNodeFileIn node = graph.getFileIn(params.get("input"));
+                if (node == null)
+                    throw new RequestException(400, "No File IN node to load the body into");
+                files.put(node, storeUpload(request.image, request.imageHash));
+            }
+
+            GraphNodeFileOut outputNode = graph.getFileOut(params.get("output"));
+            if (outputNode == null)
+                throw new RequestException(400, "No File OUT node"+
+                    (params.containsKey("output") ? " named "+params.get("output") : ""));
+            format  = params.getOrDefault("format", outputNode.getFormat());
+            profile = params.getOrDefault("profile", outputNode.getProfile());
+
+            LinkedHashMap<NodeProperty<?>, String> overrides = new LinkedHashMap<NodeProperty<?>, String>();
+            for (Map.Entry<String, String> param : params.entrySet()) {
+                if (param.getKey().indexOf('.') < 0)
+                    continue;
+                NodeProperty<?> property = BatchInputs.findProperty(graph.graph, param.getKey());
+                if (property == null)
+                    throw new RequestException(400, "No property "+param.getKey());
+                // It would let clients read any image file the server can
+                if (property instanceof NodePropertyFileIn)
+                    throw new RequestException(403, "Can't override "+param.getKey()+", send the image instead");
+                overrides.put(property, param.getValue());
+            }
+
+            image = graph.render(outputNode, files, overrides);
+        } finally {
+            release(request.graphId, graph);
+        }
+        if (image == null)
+            throw new RequestException(422, "The graph produced no image");
+
+        // The graph can be used by another render while this encodes, since
+        // images aren't written to after they are made
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageEncoder.write(image, out, format, profile);
+        return new RenderedImage(out.toByteArray(), ImageEncoder.getMimeType(format), request.graphId);
+    }
+
+    /**
+     * Keep the given rendered image for repeats of the request with the given key,
+     * forgetting the least recently used images to stay within MAX_CACHED_BYTES.
+     * Images bigger than an eighth of that aren't kept, so one can't empty the cache
+     */
+    private void cache(String key, RenderedImage image) {
+        if (image.bytes.length > MAX_CACHED_BYTES / 8)
+            return;
+        synchronized (rendered) {
+            RenderedImage old = rendered.put(key, image);
+            if (old != null)
+                renderedBytes -= old.bytes.length;
+            renderedBytes += image.bytes.length;
+            while (renderedBytes > MAX_CACHED_BYTES) {
+                String eldest = rendered.keySet().iterator().next();
+                renderedBytes -= rendered.remove(eldest).bytes.length;
+            }
+        }
+    }
+
+    /**
+     * Get a parsed copy of the graph with the given id that no other render is using,
+     * parsing the given source (if not null) or the kept source of the graph if needed
+     */
+    private CompiledGraph acquire(String id, byte[] source) throws IOException, RequestException {
+        synchronized (graphs) {
+            GraphEntry entry = graphs.get(id);
+            if (entry != null && !entry.idle.isEmpty())
+                return entry.idle.pop();
+            if (entry != null)
+                source = entry.source;
+            else if (source == null)
+                throw new RequestException(404, "No graph with id "+id);
+        }
+
+        Graph parsed = GraphSaveLoad.loadGraph(new ByteArrayInputStream(source));
+        if (parsed == null || parsed.getNodes().isEmpty())
+            throw new RequestException(400, "Could not parse the graph");
+        synchronized (graphs) {
+            graphs.putIfAbsent(id, new GraphEntry(source));
+        }
+        return new CompiledGraph(parsed);
+    }
+
+    /**
+     * Give back a parsed copy of the graph with the given id, for later renders to use
+     */
+    private void release(String id, CompiledGraph graph) {
+        synchronized (graphs) {
+            GraphEntry entry = graphs.get(id);
+            if (entry != null && entry.idle.size() < workers.getMaximumPoolSize())
+                entry.idle.push(graph);
+        }
+    }
+
+    /**
+     * Store the given uploaded image in the upload directory, named after its given hash,
+     * and return its file. An image that is uploaded again gets the same (unchanged) file,
+     * so it is found in the ImageDecodeCache instead of being decoded again
+     */
+    private File storeUpload(byte[] contents, String name) throws IOException {
+        File file;
+        synchronized (uploads) {
+            file = uploads.get(name);
+            if (file != null && file.isFile())
+                return file;
+            file = new File(uploadDir, name);
+            uploads.put(name, file);
+            // Forget the least recently used uploads
+            while (uploads.size() > MAX_UPLOADS) {
+                String eldest = uploads.keySet().iterator().next();
+                uploads.remove(eldest).delete();
+            }
+        }
+        File temp = File.createTempFile(name, ".tmp", uploadDir);
+        Files.write(temp.toPath(), contents);
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        file.deleteOnExit();
+        return file;
+    }
+
+    /**
+     * Read the body of the given request
+     */
+    private static byte[] readBody(HttpExchange exchange) throws IOException, RequestException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = exchange.getRequestBody()) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                body.write(buffer, 0, read);
+                if (body.size() > MAX_BODY_BYTES)
+                    throw new RequestException(413, "The request body is too large");
+            }
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Read and throw away the body of the given request
+     */
+    private static void discardBody(HttpExchange exchange) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = exchange.getRequestBody()) {
+            while (in.read(buffer) >= 0)
+                ;
+        }
+    }
+
+    /**
+     * Parse the given URL query string (which may be null)
+     */
+    private static LinkedHashMap<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        LinkedHashMap<String, String> params = new LinkedHashMap<String, String>();
+        if (query == null)
+            return params;
+        for (String param : query.split("&")) {
+            int equals = param.indexOf('=');
+            if (equals < 0)
+                params.put(URLDecoder.decode(param, "UTF-8"), "");
+            else
+                params.put(URLDecoder.decode(param.substring(0, equals), "UTF-8"),
+                    URLDecoder.decode(param.substring(equals + 1), "UTF-8"));
+        }
+        return params;
+    }
+
+    /**
+     * Parse the fields of the given multipart/form-data body, by name
+     */
+    private static LinkedHashMap<String, byte[]> parseMultipart(byte[] body, String contentType) throws RequestException {
+        int boundaryIndex = contentType.indexOf("boundary=");
+        if (boundaryIndex < 0)
+            throw new RequestException(400, "No multipart boundary");
+        String boundary = contentType.substring(boundaryIndex + 9).split(";")[0].trim();
+        if (boundary.startsWith("\"") && boundary.endsWith("\"") && boundary.length() > 1)
+            boundary = boundary.substring(1, boundary.length() - 1);
+        byte[] delimiter = ("--"+boundary).getBytes(StandardCharsets.ISO_8859_1);
+        byte[] headerEnd = "\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+        LinkedHashMap<String, byte[]> parts = new LinkedHashMap<String, byte[]>();
+        int start = indexOf(body, delimiter, 0);
+        while (start >= 0) {
+            int partStart = start + delimiter.length;
+            // "--" after the delimiter ends the body
+            if (partStart + 1 < body.length && body[partStart] == '-' && body[partStart + 1] == '-')
+                break;
+            int headersEnd = indexOf(body, headerEnd, partStart);
+            int next = indexOf(body, delimiter, partStart);
+            if (headersEnd < 0 || next < 0 || headersEnd > next)
+                throw new RequestException(400, "Malformed multipart body");
+
+            String headers = new String(body, partStart, headersEnd - partStart, StandardCharsets.UTF_8);
+            String name = null;
+            for (String header : headers.split("\r\n")) {
+                if (!header.toLowerCase().startsWith("content-disposition:"))
+                    continue;
+                int nameIndex = header.indexOf("name=\"");
+                if (nameIndex >= 0)
+                    name = header.substring(nameIndex + 6, header.indexOf('"', nameIndex + 6));
+            }
+            // The part's contents end with the line break before the next delimiter
+            int contentStart = headersEnd + headerEnd.length;
+            int contentEnd = Math.max(contentStart, next - 2);
+            if (name != null) {
+                byte[] contents = new byte[contentEnd - contentStart];
+                System.arraycopy(body, contentStart, contents, 0, contents.length);
+                parts.put(name, contents);
+            }
+            start = next;
+        }
+        return parts;
+    }
+
+    /**
+     * Find the first index of the given pattern in the given bytes at or after
+     * the given index. Returns -1 if the pattern isn't found
+     */
+    private static int indexOf(byte[] bytes, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= bytes.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++)
+                if (bytes[i + j] != pattern[j])
+                    continue outer;
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Respond to the given request with the given status and text
+     */
+    private static void respond(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] bytes = (text+"\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Respond to the given request with the given rendered image
+     */
+    private static void respond(HttpExchange exchange, RenderedImage image, String cacheStatus) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", image.mimeType);
+        exchange.getResponseHeaders().set("X-Graph-Id", image.graphId);
+        exchange.getResponseHeaders().set("X-Cache", cacheStatus);
+        exchange.sendResponseHeaders(200, image.bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(image.bytes);
+        }
+    }
+
+    /**
+     * Respond to the given request with the given error, if a response hasn't been
+     * started already, ignoring errors (e.g. the client going away)
+     */
+    private static void respondQuietly(HttpExchange exchange, Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null)
+            error = error.getCause();
+        if (error instanceof RequestException) {
+            RequestException e = (RequestException)error;
+            if (e.status == 503)
+                exchange.getResponseHeaders().set("Retry-After", "1");
+            respondQuietly(exchange, e.status, e.getMessage());
+        }
+        else {
+            respondQuietly(exchange, 500, error.getClass().getSimpleName()+": "+error.getMessage());
+        }
+    }
+
+    /**
+     * Respond to the given request with the given status and text, if a response
+     * hasn't been started already, ignoring errors (e.g. the client going away)
+     */
+    private static void respondQuietly(HttpExchange exchange, int status, String text) {
+        try {
+            if (exchange.getResponseCode() < 0)
+                respond(exchange, status, text);
+        } catch (IOException e) {
+            // Nobody to tell
+        }
+    }
+
+    /**
+     * Get the SHA-256 hash of the given bytes as a hex string
+     */
+    static String hash(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Handles a request on a worker thread
+     */
+    private interface Handler {
+        public void handle(HttpExchange exchange) throws Exception;
+    }
+
+    /**
+     * A request that can't be rendered, with the status to respond with
+     */
+    private static class RequestException extends Exception {
+        final int status;
+
+        RequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /**
+     * The parameters and uploaded images of a POST /render request, and the key that
+     * identifies it: the hash of the graph id, the parameters (in name order) and the
+     * hashes of the images. Requests with the same key render the same image
+     */
+    private static class RenderRequest {
+        String graphId;
+        /**
+         * The graph file, if it was sent with the request
+         */
+        byte[] source;
+        LinkedHashMap<String, String> params;
+        /**
+         * The multipart fields, other than the graph, and the hashes of their contents
+         */
+        LinkedHashMap<String, byte[]> parts = new LinkedHashMap<String, byte[]>();
+        HashMap<String, String> partHashes = new HashMap<String, String>();
+        /**
+         * The image sent as the whole body, if any, and its hash
+         */
+        byte[] image;
+        String imageHash;
+        String key;
+
+        RenderRequest(HttpExchange exchange) throws IOException, RequestException {
+            byte[] body = readBody(exchange);
+            params = parseQuery(exchange.getRequestURI().getRawQuery());
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            if (contentType != null && contentType.startsWith("multipart/form-data"))
+                parts = parseMultipart(body, contentType);
+
+            // Find the graph: by id, from a multipart field, or the body itself
+            graphId = params.remove("graph");
+            if (parts.containsKey("graph") && graphId == null)
+                source = parts.remove("graph");
+            else if (parts.containsKey("graph"))
+                graphId = new String(parts.remove("graph"), StandardCharsets.UTF_8).trim();
+            else if (graphId == null)
+                source = body;
+            else if (parts.isEmpty() && body.length > 0)
+                image = body;
+            if (source != null)
+                graphId = hash(source);
+
+            TreeMap<String, String> described = new TreeMap<String, String>(params);
+            for (Map.Entry<String, byte[]> part : parts.entrySet()) {
+                partHashes.put(part.getKey(), hash(part.getValue()));
+                described.put(part.getKey(), "\u0000"+partHashes.get(part.getKey()));
+            }
+            if (image != null) {
+                imageHash = hash(image);
+                described.put("\u0000body", imageHash);
+            }
+            StringBuilder description = new StringBuilder(graphId);
+            for (Map.Entry<String, String> entry : described.entrySet())
+                description.append('\n').append(entry.getKey().length()).append(':').append(entry.getKey())
+                    .append('=').append(entry.getValue());
+            key = hash(description.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * An encoded image that was rendered for a request
+     */
+    private static class RenderedImage {
+        final byte[] bytes;
+        final String mimeType;
+        final String graphId;
+
+        RenderedImage(byte[] bytes, String mimeType, String graphId) {
+            this.bytes    = bytes;
+            this.mimeType = mimeType;
+            this.graphId  = graphId;
+        }
+    }
+
+    /**
+     * A graph file that has been posted or rendered, and its parsed copies that aren't in use
+     */
+    private static class GraphEntry {
+        final byte[] source;
+        final ArrayDeque<CompiledGraph> idle = new ArrayDeque<CompiledGraph>();
+
+        GraphEntry(byte[] source) {
+            this.source = source;
+        }
+    }
+
+    /**
+     * A parsed copy of a graph file, remembering the files and property values
+     * it was saved with so that each render starts from them
+     */
+    private static class CompiledGraph {
+        final Graph graph;
+
+        /**
+         * The file each File IN node was saved with
+         */
+        final HashMap<GraphNodeFileIn, File> savedFiles = new HashMap<GraphNodeFileIn, File>();
+
+        /**
+         * The saved value of each property that a render has overridden
+         */
+        final LinkedHashMap<NodeProperty<?>, String> savedValues = new LinkedHashMap<NodeProperty<?>, String>();
+
+        CompiledGraph(Graph graph) {
+            this.graph = graph;
+            for (GraphNode node : graph.getNodes())
+                if (node instanceof GraphNodeFileIn)
+                    savedFiles.put((GraphNodeFileIn)node, ((GraphNodeFileIn)node).getFile());
+        }
+
+        /**
+         * Get the File IN node with the given name or, if the name is null, the first one
+         * that was saved without a file (or the first one if they all have files)
+         */
+        GraphNodeFileIn getFileIn(String name) {
+            GraphNodeFileIn first = null;
+            for (GraphNode node : graph.getNodes()) {
+                if (!(node instanceof GraphNodeFileIn))
+                    continue;
+                if (name != null ? node.getName().equals(name) : savedFiles.get(node) == null)
+                    return (GraphNodeFileIn)node;
+                if (first == null)
+                    first = (GraphNodeFileIn)node;
+            }
+            return name == null ? first : null;
+        }
+
+        /**
+         * Get the File OUT node with the given name, or the first one if the name is null
+         */
+        GraphNodeFileOut getFileOut(String name) {
+            for (GraphNode node : graph.getNodes())
+                if (node instanceof GraphNodeFileOut && (name == null || node.getName().equals(name)))
+                    return (GraphNodeFileOut)node;
+            return null;
+        }
+
+        /**
+         * Render the given File OUT node with the given files loaded into File IN nodes
+         * and the given property overrides. Everything else is set back to how the
+         * graph was saved, but only the nodes that actually change are processed again
+         */
+        WritableImage render(GraphNodeFileOut outputNode, Map<GraphNodeFileIn, File> files,
+                Map<NodeProperty<?>, String> overrides) throws RequestException {
+            for (Map.Entry<GraphNodeFileIn, File> saved : savedFiles.entrySet()) {
+                File file = files.getOrDefault(saved.getKey(), saved.getValue());
+                if (file == null ? saved.getKey().getFile() != null : !file.equals(saved.getKey().getFile()))
+                    saved.getKey().loadFile(file);
+            }
+            for (NodeProperty<?> property : overrides.keySet())
+                savedValues.putIfAbsent(property, property.serializeValue());
+            if (!BatchJob.applyOverrides(overrides, savedValues, "request"))
+                throw new RequestException(400, "Invalid property value");
+            return outputNode.renderImage();
+        }
+    }
+
+    /**
+     * Main method: runs the server until the process is killed. The optional arguments
+     * are the port (DEFAULT_PORT by default), the number of worker threads (the number
+     * of processors by default) and the address to listen on (the loopback address by
+     * default; 0.0.0.0 for every address). Up to twice as many renders as workers can wait
+     */
+    public static void main(String[] args) throws IOException {
+        int port    = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        InetAddress address = args.length > 2 ? InetAddress.getByName(args[2]) : InetAddress.getLoopbackAddress();
+        RenderServer server = new RenderServer(address, port, threads, 2 * threads);
+        server.start();
+        System.out.println("Rendering on "+address.getHostAddress()+" port "+server.getPort()+" with "+
+            threads+" worker thread(s)");
+    }
+}
@@ -0,0 +1,514 @@
+package edu.nmsu.imgflow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A batch that several processes, on one or more machines sharing a filesystem, work
+ * through together, so a batch can use more cores than one machine has. Each process
+ * runs a ShardedBatch with the same graph, input files and output directory, and they
+ * share out the input files between them through lease files in the output directory;
+ * nothing else is needed to coordinate them. Doesn't need the application (or a
+ * display) to be running.
+ *
+ * Input files are claimed a few at a time (CLAIM_SIZE) by creating their lease files in
+ * the output directory's LEASE_DIR_NAME directory. A lease file is named after the input
+ * file and a generation number, and is created with CREATE_NEW, which only one process
+ * can do. While a process holds leases it touches them every leaseMillis / 3 (its
+ * heartbeat). A lease that hasn't been touched for leaseMillis has expired (e.g. its
+ * process crashed), and its input file can be claimed again by creating the lease of the
+ * next generation, which again only one process can do. The machines' clocks should
+ * agree to well within leaseMillis. Once an input file's outputs have been saved, a done
+ * file is created for it and its lease is deleted. If any of them can't be made or saved,
+ * its lease is expired straight away instead, so it is tried again (by any process), up
+ * to MAX_ATTEMPTS times in all; after that a failed file is created for it, and the
+ * batch finishes without it.
+ *
+ * Each process records its outputs in its own shard of the output directory's
+ * BatchManifest. Once every input file is done, the first process to notice renames the
+ * lease directory (which only one process can do), merges the shards into the manifest
+ * and deletes the renamed directory, so the result is the same as if the batch had been
+ * run by one process. A process that finds the lease directory gone once it has started
+ * knows the batch is finished, rather than starting it again, and a process that starts
+ * once every output is up-to-date in the manifest (and its shards) doesn't create the
+ * lease directory at all. Input files whose outputs were already up-to-date are marked
+ * done without being counted as processed. Outputs that are already
+ * up-to-date are skipped as usual, and if every process is stopped part-way through,
+ * running them again carries on from the done files.
+ */
+public class ShardedBatch {
+
+    /**
+     * The name of the directory in the output directory that holds the lease files
+     */
+    public static final String LEASE_DIR_NAME = ".imgflow-leases";
+
+    /**
+     * The default time (in milliseconds) a lease lasts without a heartbeat
+     */
+    public static final long DEFAULT_LEASE_MILLIS = 30000;
+
+    /**
+     * The most input files claimed at a time. Claiming several lets reading,
+     * processing and saving them overlap (see BatchJob)
+     */
+    private static final int CLAIM_SIZE = 8;
+
+    /**
+     * The most times an input file is claimed (its highest lease generation)
+     * before it is given up on
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * The end of the names of done files (the start is the input file's key)
+     */
+    private static final String DONE_SUFFIX = ".done";
+
+    /**
+     * The end of the names of the files of input files that were given up on
+     */
+    private static final String FAILED_SUFFIX = ".failed";
+
+    private final GraphNodeFileIn        inputNode;
+    private final List<GraphNodeFileOut> outputNodes;
+    private final List<File>             inputFiles;
+    private final File                   outputDir;
+    private final File                   leaseDir;
+    private final String                 workerName;
+    private final long                   leaseMillis;
+
+    /**
+     * The lease files this process holds
+     */
+    private final Set<File> held = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Whether the batch is being worked on
+     */
+    private volatile boolean running = false;
+
+    /**
+     * Create a new ShardedBatch that loads its share of the given input files into
+     * the given File IN node and saves the images of the given File OUT nodes into
+     * the given output directory. The worker name must be different for each process
+     * (and only use characters that can be in a file name); it names the process's
+     * manifest shard
+     */
+    public ShardedBatch(GraphNodeFileIn inputNode, List<GraphNodeFileOut> outputNodes, List<File> inputFiles,
+            File outputDir, String workerName, long leaseMillis) {
+        this.inputNode   = inputNode;
+        this.outputNodes = outputNodes;
+        this.inputFiles  = inputFiles;
+        this.outputDir   = outputDir;
+        this.workerName  = workerName;
+        this.leaseMillis = leaseMillis;
+        leaseDir = new File(outputDir, LEASE_DIR_NAME);
+    }
+
+    /**
+     * Work on the batch on this thread until every input file has been processed (by
+     * this or another process) or given up on. Returns the number of input files this
+     * process saved outputs for
+     */
+    public int run() throws IOException {
+        LinkedHashMap<String, File> items = new LinkedHashMap<String, File>();
+        for (File file : inputFiles)
+            items.put(getKey(file), file);
+        // The items are made from the whole list, so every process names them
+        // the same way (see BatchInputs.getItems()), and claims are taken from them
+        BatchInputs all = new BatchInputs();
+        all.bindFileList(inputNode, inputFiles);
+        HashMap<File, BatchInputs.Item> itemsByFile = new HashMap<File, BatchInputs.Item>();
+        for (BatchInputs.Item item : all.getItems())
+            itemsByFile.put(item.getFiles().get(inputNode), item);
+        // A process that starts after the others have finished the batch (and deleted the
+        // lease directory) mustn't start it again, which it can tell from the manifest
+        if (isUpToDate(all)) {
+            System.out.println("Every output is already up-to-date.");
+            return 0;
+        }
+        leaseDir.mkdirs();
+
+        running = true;
+        Thread heartbeat = new Thread(this::heartbeat, "Lease heartbeat");
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+
+        int processed = 0;
+        boolean finished = false;
+        BatchManifest manifest = new BatchManifest(outputDir, workerName);
+        try {
+            while (true) {
+                LinkedHashMap<String, File> claimed = claim(items);
+                if (claimed == null) {
+                    // Another process has finished the batch and merged the manifest
+                    break;
+                }
+                if (claimed.isEmpty()) {
+                    if (isDone(items.keySet())) {
+                        finished = true;
+                        break;
+                    }
+                    // The rest are leased by other processes: wait for them to finish or expire
+                    Thread.sleep(Math.min(leaseMillis / 4, 1000));
+                    continue;
+                }
+
+                List<BatchInputs.Item> claimedItems = new ArrayList<BatchInputs.Item>();
+                for (File file : claimed.values())
+                    claimedItems.add(itemsByFile.get(file));
+                BatchJob job = new BatchJob();
+                job.addGraph(all.select(claimedItems), outputNodes, outputDir, manifest);
+                job.run();
+                HashSet<File> failed = new HashSet<File>();
+                for (BatchInputs.Item item : job.getFailedItems())
+                    failed.add(item.getFiles().get(inputNode));
+                HashSet<File> saved = new HashSet<File>();
+                for (BatchInputs.Item item : job.getSavedItems())
+                    saved.add(item.getFiles().get(inputNode));
+                for (Map.Entry<String, File> item : claimed.entrySet()) {
+                    if (failed.contains(item.getValue())) {
+                        retry(item.getKey());
+                    }
+                    else {
+                        finish(item.getKey());
+                        // Items that were already up-to-date weren't processed
+                        if (saved.contains(item.getValue()))
+                            processed++;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            running = false;
+            heartbeat.interrupt();
+            manifest.close();
+        }
+
+        if (finished)
+            consolidate();
+        return processed;
+    }
+
+    /**
+     * Whether every output of every item of the given inputs is up-to-date in the output
+     * directory's manifest and its shards, so there is nothing for this process to do
+     */
+    private boolean isUpToDate(BatchInputs inputs) throws IOException {
+        BatchJob job = new BatchJob();
+        job.addGraph(inputs, outputNodes, outputDir, BatchManifest.snapshot(outputDir));
+        return job.isUpToDate();
+    }
+
+    /**
+     * Claim up to CLAIM_SIZE of the given items (input files by their keys) that aren't
+     * done and aren't leased (or whose leases have expired), returning the claimed items,
+     * or null if the lease directory is gone because another process finished the batch
+     */
+    private LinkedHashMap<String, File> claim(LinkedHashMap<String, File> items) throws IOException {
+        // The newest lease generation of each item, and the items that are done
+        HashMap<String, Integer> generations = new HashMap<String, Integer>();
+        HashSet<String> done = new HashSet<String>();
+        String[] names = leaseDir.list();
+        if (names == null) {
+            if (!leaseDir.exists())
+                return null;
+            throw new IOException("Could not list "+leaseDir.getPath());
+        }
+        for (String name : names) {
+            int dot = name.lastIndexOf('.');
+            if (dot < 0)
+                continue;
+            String key = name.substring(0, dot);
+            if (name.endsWith(DONE_SUFFIX) || name.endsWith(FAILED_SUFFIX)) {
+                done.add(key);
+                continue;
+            }
+            try {
+                generations.merge(key, Integer.parseInt(name.substring(dot + 1)), Math::max);
+            } catch (NumberFormatException e) {
+                // Not a lease file
+            }
+        }
+
+        // Start at a different place in each process, so they don't all race for the same items
+        List<String> keys = new ArrayList<String>(items.keySet());
+        int start = keys.isEmpty() ? 0 : Math.floorMod(workerName.hashCode(), keys.size());
+        LinkedHashMap<String, File> claimed = new LinkedHashMap<String, File>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < keys.size() && claimed.size() < CLAIM_SIZE; i++) {
+            String key = keys.get((start + i) % keys.size());
+            if (done.contains(key))
+                continue;
+            Integer generation = generations.get(key);
+            if (generation == null)
+                generation = 0;
+            else if (now - getLeaseFile(key, generation).lastModified() <= leaseMillis)
+                continue;
+            else if (generation >= MAX_ATTEMPTS) {
+                giveUp(key, items.get(key));
+                continue;
+            }
+
+            File lease = getLeaseFile(key, generation + 1);
+            try {
+                Files.write(lease.toPath(), (workerName+"\n").getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException e) {
+                // Another process claimed it first
+                continue;
+            } catch (NoSuchFileException e) {
+                // Another process has finished the batch
+                return null;
+            }
+            held.add(lease);
+            // It may have been finished since the lease directory was listed
+            if (new File(leaseDir, key+DONE_SUFFIX).exists()) {
+                release(lease);
+                continue;
+            }
+            claimed.put(key, items.get(key));
+        }
+        return claimed;
+    }
+
+    /**
+     * Mark the item with the given key as done and release its lease
+     */
+    private void finish(String key) throws IOException {
+        File done = new File(leaseDir, key+DONE_SUFFIX);
+        try {
+            Files.createFile(done.toPath());
+        } catch (FileAlreadyExistsException e) {
+            // Also processed by another process, whose lease had expired
+        } catch (NoSuchFileException e) {
+            // Also processed by another process, which has already finished the batch
+        }
+        for (File lease : held)
+            if (lease.getName().startsWith(key+"."))
+                release(lease);
+    }
+
+    /**
+     * Expire the lease of the item with the given key, which failed, so
+     * it can be claimed again (by any process) straight away
+     */
+    private void retry(String key) {
+        for (File lease : held) {
+            if (lease.getName().startsWith(key+".")) {
+                held.remove(lease);
+                lease.setLastModified(0);
+            }
+        }
+    }
+
+    /**
+     * Mark the item with the given key, which has failed every attempt, as failed
+     */
+    private void giveUp(String key, File file) throws IOException {
+        try {
+            Files.createFile(new File(leaseDir, key+FAILED_SUFFIX).toPath());
+            System.out.println("Giving up on "+file.getPath()+" after "+MAX_ATTEMPTS+" attempts!");
+        } catch (FileAlreadyExistsException | NoSuchFileException e) {
+            // Another process has already given up on it, or finished the batch
+        }
+    }
+
+    /**
+     * Release the given lease
+     */
+    private void release(File lease) throws IOException {
+        held.remove(lease);
+        Files.deleteIfExists(lease.toPath());
+    }
+
+    /**
+     * Whether every item with one of the given keys is done or has been given
+     * up on (or the batch has been finished by another process)
+     */
+    private boolean isDone(Set<String> keys) {
+        if (!leaseDir.exists())
+            return true;
+        for (String key : keys)
+            if (!new File(leaseDir, key+DONE_SUFFIX).exists() && !new File(leaseDir, key+FAILED_SUFFIX).exists())
+                return false;
+        return true;
+    }
+
+    /**
+     * Touch the held leases every leaseMillis / 3, until the batch stops being worked on
+     */
+    private void heartbeat() {
+        try {
+            while (running) {
+                Thread.sleep(leaseMillis / 3);
+                long now = System.currentTimeMillis();
+                for (File lease : held)
+                    lease.setLastModified(now);
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    /**
+     * Merge the manifest shards into the output directory's manifest and delete the lease
+     * directory, unless another process is already doing so. The lease directory is
+     * renamed first, which only one process can do, so no process can see it part-way
+     * through being deleted (and claim items whose done files are already gone)
+     */
+    private void consolidate() throws IOException {
+        File finished = new File(outputDir, LEASE_DIR_NAME+"."+UUID.randomUUID());
+        try {
+            try {
+                Files.move(leaseDir.toPath(), finished.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(leaseDir.toPath(), finished.toPath());
+            }
+        } catch (NoSuchFileException e) {
+            // Another process is merging them
+            return;
+        }
+
+        BatchManifest.consolidate(outputDir);
+        File[] files = finished.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        finished.delete();
+    }
+
+    /**
+     * Get the lease file of the given generation of the item with the given key
+     */
+    private File getLeaseFile(String key, int generation) {
+        return new File(leaseDir, key+"."+generation);
+    }
+
+    /**
+     * Get the key of the given input file, which names its lease and done files.
+     * It is the same in every process that refers to the file by the same path
+     */
+    private static String getKey(File file) throws IOException {
+        return UUID.nameUUIDFromBytes(file.getCanonicalPath().getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    /**
+     * Get the default worker name of this process, from its process id and host name
+     */
+    static String getDefaultWorkerName() {
+        return ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^A-Za-z0-9_-]", "-");
+    }
+
+    /**
+     * Get the File IN node of the given graph that batch input files are loaded into: the
+     * first one that was saved without a file, or else the first one (or null if there are none)
+     */
+    static GraphNodeFileIn findInputNode(Graph graph) {
+        GraphNodeFileIn first = null;
+        for (GraphNode node : graph.getNodes()) {
+            if (!(node instanceof GraphNodeFileIn))
+                continue;
+            if (((GraphNodeFileIn)node).getFile() == null)
+                return (GraphNodeFileIn)node;
+            if (first == null)
+                first = (GraphNodeFileIn)node;
+        }
+        return first;
+    }
+
+    /**
+     * Get all of the File OUT nodes of the given graph
+     */
+    static List<GraphNodeFileOut> findOutputNodes(Graph graph) {
+        List<GraphNodeFileOut> outputNodes = new ArrayList<GraphNodeFileOut>();
+        for (GraphNode node : graph.getNodes())
+            if (node instanceof GraphNodeFileOut)
+                outputNodes.add((GraphNodeFileOut)node);
+        return outputNodes;
+    }
+
+    /**
+     * Get the input files named by the given file: the image files in it (in name order)
+     * if it is a directory, or else the files it lists, one path per line (relative to its
+     * directory). Blank lines and lines starting with '#' are skipped
+     */
+    static List<File> listInputFiles(File input) throws IOException {
+        List<File> inputFiles = new ArrayList<File>();
+        if (input.isDirectory()) {
+            File[] files = input.listFiles();
+            if (files != null) {
+                Arrays.sort(files);
+                for (File file : files)
+                    if (file.isFile() && WatchFolder.isImageFile(file))
+                        inputFiles.add(file);
+            }
+        }
+        else {
+            for (String line : Files.readAllLines(input.toPath(), StandardCharsets.UTF_8)) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                File file = new File(line);
+                inputFiles.add(file.isAbsolute() ? file : new File(input.getAbsoluteFile().getParentFile(), line));
+            }
+        }
+        return inputFiles;
+    }
+
+    /**
+     * Main method: works on a sharded batch with a graph. The arguments are the graph file,
+     * the input directory (whose image files are processed) or a text file listing the input
+     * files (one path per line, relative to the list's directory), the output directory,
+     * and optionally the worker name (by default the process id and host name) and the lease
+     * time in seconds. The first File IN node that was saved without a file (or else the
+     * first one) loads the input files, the images of all of the graph's File OUT nodes are
+     * saved, and other File IN nodes keep the files they were saved with. Run it in as many
+     * processes as needed, with the same arguments apart from the worker name
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("Usage: ShardedBatch <graph file> <input directory or list file> <output directory> "+
+                "[worker name] [lease seconds]");
+            return;
+        }
+        Graph graph = GraphSaveLoad.loadGraph(new File(args[0]));
+        if (graph == null)
+            return;
+
+        GraphNodeFileIn inputNode = findInputNode(graph);
+        List<GraphNodeFileOut> outputNodes = findOutputNodes(graph);
+        if (inputNode == null || outputNodes.isEmpty()) {
+            System.out.println("The graph needs a File IN node and a File OUT node!");
+            return;
+        }
+        List<File> inputFiles = listInputFiles(new File(args[1]));
+
+        String workerName = args.length > 3 ? args[3] : getDefaultWorkerName();
+        long leaseMillis  = args.length > 4 ? (long)(Double.parseDouble(args[4]) * 1000) : DEFAULT_LEASE_MILLIS;
+        long start = System.nanoTime();
+        int processed = new ShardedBatch(inputNode, outputNodes, inputFiles, new File(args[2]), workerName, leaseMillis).run();
+        System.out.printf("%s processed %d of %d file(s) in %.1f s%n", workerName, processed, inputFiles.size(),
+            (System.nanoTime() - start) / 1e9);
+    }
+}
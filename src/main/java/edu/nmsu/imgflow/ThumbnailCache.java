@@ -0,0 +1,265 @@
+package edu.nmsu.imgflow;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+
+/**
+ * Keeps small thumbnails of the images that nodes produce so that they can
+ * be drawn on the nodes in the viewport.
+ * 
+ * Thumbnails are made on a background thread, since making one means processing every
+ * node up-stream of it (including decoding files). The graph is not safe to use from
+ * other threads, so once per frame the queued nodes and the nodes up-stream of them are
+ * copied on the JavaFX thread (see GraphSaveLoad.saveNodes()), and the copy is processed
+ * and its images downsampled on the background thread, while the graph can go on being
+ * edited. Only thumbnail-sized images are requested from the copies of the queued nodes.
+ * Once a thumbnail is ready, the node's graph is marked as changed so that it gets drawn.
+ * 
+ * The cache holds at most MAX_ENTRIES thumbnails, dropping the least recently used
+ * ones first. A node's thumbnail is dropped whenever the node's image data becomes
+ * out-of-date (see NodeUpdateListener).
+ * 
+ * All methods must be called from the JavaFX thread.
+ */
+public class ThumbnailCache {
+
+    /**
+     * The largest width or height of a thumbnail (in pixels)
+     */
+    public static final int THUMBNAIL_SIZE = 160;
+    /**
+     * The largest number of thumbnails kept in the cache
+     */
+    private static final int MAX_ENTRIES   = 256;
+
+    /**
+     * The cached thumbnails, in order of least to most recently used.
+     * A node that has no image is mapped to null.
+     */
+    private LinkedHashMap<GraphNode, Image> thumbnails;
+
+    /**
+     * Nodes waiting to be updated so that their thumbnails can be made
+     */
+    private ArrayDeque<GraphNode> queue;
+
+    /**
+     * Nodes which are either in the queue or being made on the background thread
+     */
+    private HashSet<GraphNode> pending;
+
+    /**
+     * Whether a copy of some queued nodes is being processed on the background thread
+     */
+    private boolean busy = false;
+
+    /**
+     * A counter for each node, incremented whenever its thumbnail is invalidated.
+     * Thumbnails that finish after their node was invalidated are thrown away.
+     */
+    private HashMap<GraphNode, Long> versions;
+
+    /**
+     * The background thread on which thumbnails are made
+     */
+    private ExecutorService executor;
+
+    /**
+     * Create a new, empty thumbnail cache
+     */
+    public ThumbnailCache() {
+        thumbnails = new LinkedHashMap<GraphNode, Image>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<GraphNode, Image> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+        queue    = new ArrayDeque<GraphNode>();
+        pending  = new HashSet<GraphNode>();
+        versions = new HashMap<GraphNode, Long>();
+        executor = Executors.newSingleThreadExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "thumbnails");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Get the thumbnail for the given node. If there is no thumbnail for the
+     * node yet, this returns null and queues the node to have one made.
+     */
+    public Image get(GraphNode node) {
+        if (thumbnails.containsKey(node))
+            return thumbnails.get(node);
+        if (!pending.contains(node)) {
+            pending.add(node);
+            queue.add(node);
+        }
+        return null;
+    }
+
+    /**
+     * Drop the thumbnail for the given node, since its
+     * image data is out-of-date, and mark the node's graph as
+     * changed so the old thumbnail isn't drawn any more. A node
+     * that has been removed from its graph is forgotten altogether
+     */
+    public void invalidate(GraphNode node) {
+        thumbnails.remove(node);
+        if (pending.remove(node))
+            queue.remove(node);
+        if (node.getGraph() == null) {
+            // Its thumbnail may still be being made, but it isn't pending
+            // any more, so the thumbnail will be thrown away when it's done
+            versions.remove(node);
+            return;
+        }
+        versions.put(node, getVersion(node) + 1);
+        node.getGraph().markChanged();
+    }
+
+    /**
+     * Drop all thumbnails (for example, when switching to another graph)
+     */
+    public void clear() {
+        // A copy that is being processed is thrown away once it is done
+        thumbnails.clear();
+        queue.clear();
+        pending.clear();
+        versions.clear();
+    }
+
+    /**
+     * Copy the queued nodes (and the nodes up-stream of them) and start making their
+     * thumbnails from the copy on the background thread, unless it is still busy with
+     * the last copy. This should be called once per frame.
+     */
+    public void pump() {
+        if (busy || queue.isEmpty()) return;
+
+        ArrayList<GraphNode> targets = new ArrayList<GraphNode>();
+        HashSet<GraphNode> upstream = new HashSet<GraphNode>();
+        Graph graph = null;
+        for (GraphNode node : queue) {
+            // Nodes that were removed from the graph don't get a thumbnail
+            if (node.getGraph() == null) {
+                pending.remove(node);
+                continue;
+            }
+            graph = node.getGraph();
+            targets.add(node);
+            upstream.add(node);
+            upstream.addAll(BatchJob.getUpstreamNodes(node));
+        }
+        queue.clear();
+        if (targets.isEmpty()) return;
+
+        // Copy the nodes in topological order, noting where the targets are in the copy
+        ArrayList<GraphNode> nodes = new ArrayList<GraphNode>();
+        HashMap<GraphNode, Integer> indices = new HashMap<GraphNode, Integer>();
+        for (GraphNode node : graph.getTopologicalOrder()) {
+            if (upstream.contains(node)) {
+                indices.put(node, nodes.size());
+                nodes.add(node);
+            }
+        }
+        StringWriter copy = new StringWriter();
+        try {
+            GraphSaveLoad.saveNodes(nodes, copy);
+        } catch (IOException e) {
+            // A StringWriter doesn't throw
+        }
+        int[] targetIndices = new int[targets.size()];
+        long[] targetVersions = new long[targets.size()];
+        for (int i = 0; i < targets.size(); i++) {
+            targetIndices[i]  = indices.get(targets.get(i));
+            targetVersions[i] = getVersion(targets.get(i));
+        }
+
+        busy = true;
+        String source = copy.toString();
+        executor.execute(() -> {
+            Image[] results = makeThumbnails(source, targetIndices);
+            Platform.runLater(() -> {
+                busy = false;
+                for (int i = 0; i < results.length; i++)
+                    finish(targets.get(i), targetVersions[i], results[i]);
+            });
+        });
+    }
+
+    /**
+     * Load a copy of part of a graph from the given text and make thumbnails of the
+     * copied nodes at the given indices (in the copy's getNodes()). A node without
+     * an image (or whose copy couldn't be processed) gets a null thumbnail.
+     * This runs on the background thread
+     */
+    private static Image[] makeThumbnails(String source, int[] indices) {
+        Image[] results = new Image[indices.length];
+        try {
+            List<GraphNode> nodes = GraphSaveLoad.loadGraph(new StringReader(source)).getNodes();
+            // Only a thumbnail-sized image is needed of nodes whose images nothing else in the copy uses
+            for (int index : indices) {
+                NodeSocket socket = nodes.get(index).getThumbnailSocket();
+                if (socket instanceof NodeSocketOutput && ((NodeSocketOutput)socket).getConnectingSocket() == null)
+                    ((NodeSocketOutput)socket).setRequest(new ImageRequest(THUMBNAIL_SIZE, THUMBNAIL_SIZE));
+            }
+            for (int i = 0; i < indices.length; i++) {
+                GraphNode node = nodes.get(indices[i]);
+                NodeSocket socket = node.getThumbnailSocket();
+                node.update();
+                Image image = socket != null ? socket.getImage() : null;
+                if (image != null)
+                    results[i] = ImageScaler.downsample(image, THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+            }
+        } catch (Exception e) {
+            System.out.println("Error updating node for thumbnail!");
+            System.out.println(e.getClass() + " : " + e.getMessage());
+        }
+        return results;
+    }
+
+    /**
+     * Downsample the given image on the background thread to fit within
+     * the given size. The callback is called on the JavaFX thread with
+     * the result.
+     */
+    public void downsampleLater(Image image, int size, Consumer<Image> callback) {
+        executor.execute(() -> {
+            Image result = ImageScaler.downsample(image, size, size);
+            Platform.runLater(() -> callback.accept(result));
+        });
+    }
+
+    /**
+     * Store a finished thumbnail, unless the node was invalidated
+     * since the thumbnail was started.
+     */
+    private void finish(GraphNode node, long version, Image thumbnail) {
+        if (version != getVersion(node) || !pending.remove(node)) return;
+        thumbnails.put(node, thumbnail);
+        if (node.getGraph() != null)
+            node.getGraph().markChanged();
+    }
+
+    /**
+     * Get the current version of a node's thumbnail
+     */
+    private long getVersion(GraphNode node) {
+        Long version = versions.get(node);
+        return version == null ? 0 : version;
+    }
+}
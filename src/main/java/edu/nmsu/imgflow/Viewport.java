@@ -7,10 +7,14 @@ import javafx.scene.layout.RowConstraints;
 import javafx.scene.layout.Priority;
 
 import javafx.scene.canvas.Canvas;
+import javafx.scene.shape.Rectangle;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.paint.Color;
+import javafx.scene.text.Font;
 
 import javafx.geometry.Point2D;
+import javafx.geometry.Bounds;
+import javafx.geometry.BoundingBox;
 
 import javafx.beans.value.ChangeListener;
 import javafx.scene.input.MouseButton;
@@ -18,6 +22,8 @@ import javafx.scene.Cursor;
 
 import javafx.animation.AnimationTimer;
 
+import java.util.function.Consumer;
+
 /**
  * Represents a view of a graph on a canvas, allowing the user to view a graph,
  * select and move nodes and make/delete connections.
@@ -55,6 +61,11 @@ public class Viewport {
      * The speed of zooming (as a multiplier on the scroll units from the scroll event)
      */
     private static final double ZOOM_SPEED      = 0.001;
+    /**
+     * How far (in pixels) the cached layers are drawn past each edge of the viewport.
+     * Panning by less than this reuses the cached layers by simply moving them.
+     */
+    private static final double PAN_MARGIN      = 256.0;
 
     // ################################
     // # INSTANCE VARIABLES
@@ -109,6 +120,12 @@ public class Viewport {
      */
     private Point2D connectingPoint;
 
+    /**
+     * The font used for drawing node titles, cached for the current zoom level.
+     * See getTitleFont()
+     */
+    private Font titleFont;
+
     /**
      * The RedrawTimer that controls redrawing the canvas at
      * set intervals
@@ -121,10 +138,35 @@ public class Viewport {
      */
     private GridPane pane;
     /**
-     * The JavaFX canvas on which the graph is drawn.
+     * The JavaFX canvas on top of all the layers which receives mouse events
+     * and on which interaction feedback (like a connection being drawn) is drawn.
+     * The coordinates of this canvas are what are referred to as "canvas coordinates"
      */
     private Canvas canvas;
 
+    // The layers which the graph is drawn onto, from bottom to top.
+    // Each layer is only re-drawn when something it draws has changed
+    private CanvasLayer gridLayer;
+    private CanvasLayer wireLayer;
+    private CanvasLayer nodeLayer;
+
+    /**
+     * If true, the overlay canvas must be re-drawn on the next frame
+     */
+    private boolean overlayDirty = true;
+
+    /**
+     * The revision of the graph that was current when the wire and node layers
+     * were last checked. See Graph.getRevision()
+     */
+    private long drawnRevision = -1;
+
+    /**
+     * The layer that is currently being drawn. This is what getGraphicsContext()
+     * refers to.
+     */
+    private CanvasLayer activeLayer;
+
     // ################################
     // # METHODS
     // ################################
@@ -168,8 +210,18 @@ public class Viewport {
         row2.setPrefHeight(25.0);
         pane.getRowConstraints().addAll(row1/*, row2*/);
 
-        // Create a Pane which will contain the canvas
+        // Create a Pane which will contain the canvas and its layers.
+        // The layers extend past the edges of the wrapper, so it is clipped to its bounds
         Pane canvasWrapper = new Pane();
+        Rectangle clip = new Rectangle();
+        clip.widthProperty().bind(canvasWrapper.widthProperty());
+        clip.heightProperty().bind(canvasWrapper.heightProperty());
+        canvasWrapper.setClip(clip);
+
+        // Create the layers
+        gridLayer = new CanvasLayer(canvasWrapper, (ctx) -> drawGrid(ctx));
+        wireLayer = new CanvasLayer(canvasWrapper, (ctx) -> drawConnections(ctx));
+        nodeLayer = new CanvasLayer(canvasWrapper, (ctx) -> drawNodes(ctx));
 
         // Create the canvas
         canvas = new Canvas();
@@ -188,34 +240,79 @@ public class Viewport {
     }
 
     /**
-     * Redraw the graph
+     * Redraw whatever parts of the graph have changed since the last redraw
      */
     private void redraw() {
-        GraphicsContext ctx = canvas.getGraphicsContext2D();
+        // If the graph has changed, the wires and nodes need to be redrawn
+        if (graph.getRevision() != drawnRevision) {
+            drawnRevision = graph.getRevision();
+            wireLayer.invalidate();
+            nodeLayer.invalidate();
+        }
 
-        // Fill background
-        ctx.setFill(Color.web("#333333"));
-        ctx.fillRect(0.0, 0.0, canvas.getWidth(), canvas.getHeight());
+        gridLayer.refresh();
+        wireLayer.refresh();
+        nodeLayer.refresh();
 
-        // Transform context to draw in graph units
-        ctx.save();
-        transformContextToGraphSpace(ctx);
+        if (overlayDirty) {
+            drawOverlay();
+            overlayDirty = false;
+        }
+    }
+
+    /**
+     * Mark every layer as needing to be redrawn
+     */
+    private void invalidateAll() {
+        gridLayer.invalidate();
+        wireLayer.invalidate();
+        nodeLayer.invalidate();
+        overlayDirty = true;
+    }
 
-        drawGrid(ctx);
+    /**
+     * Draw the connections between nodes (in graph units) with a single stroke
+     */
+    private void drawConnections(GraphicsContext ctx) {
+        ctx.setLineWidth(pixelsToGraphUnits(2.5));
+        ctx.setStroke(Color.web("#85d8f2"));
+        ctx.beginPath();
         for (GraphNode node : graph.getNodes()) {
-            node.draw(this);
+            node.traceConnections(ctx);
         }
+        ctx.stroke();
+    }
+
+    /**
+     * Draw every node within the bounds of the layer being drawn (in graph units)
+     */
+    private void drawNodes(GraphicsContext ctx) {
+        Bounds bounds = getLayerBounds();
+        for (GraphNode node : graph.getNodes()) {
+            if (node.intersects(bounds))
+                node.draw(this);
+        }
+    }
+
+    /**
+     * Draw the overlay canvas: the line of a connection being drawn (if any)
+     * and the border
+     */
+    private void drawOverlay() {
+        GraphicsContext ctx = canvas.getGraphicsContext2D();
+        ctx.clearRect(0.0, 0.0, canvas.getWidth(), canvas.getHeight());
 
         // Draw connecting line if a connection is being drawn
         if (connectingSocket != null) {
+            ctx.save();
+            transformContextToGraphSpace(ctx);
             ctx.setLineWidth(pixelsToGraphUnits(2.5));
             ctx.setStroke(Color.DARKBLUE);
             Point2D fromPos = connectingSocket.getConnectingPosition().add(connectingSocket.getParentNode().getPosition());
             ctx.strokeLine(fromPos.getX(), fromPos.getY(), connectingPoint.getX(), connectingPoint.getY());
+            ctx.restore(); // transform back
         }
 
-        ctx.restore(); // transform back
-
         // Draw border
         ctx.setLineWidth(1.5);
         ctx.setStroke(Color.BLACK);
@@ -228,6 +325,7 @@ public class Viewport {
     private void addListenersToCanvas(Canvas canvas) {
         // Redraw whenever the size of the canvas changes
         ChangeListener<Number> onResize = (obs, oldVal, newVal) -> {
+            invalidateAll();
             redraw();
         };
         canvas.widthProperty().addListener(onResize);
@@ -260,11 +358,13 @@ public class Viewport {
             // If a connection is being drawn, update connectingPoint
             else {
                 connectingPoint = graphCoord;
+                overlayDirty = true;
             }
 
             // If the hoveringNode has changed from the last mouse event, update
             if (hoverQuery.getHoveringNode() != prevHoverQuery.getHoveringNode()) {
                 prevHoverQuery = hoverQuery;
+                nodeLayer.invalidate();
             }
         });
 
@@ -338,6 +438,7 @@ public class Viewport {
                 }
                 connectingSocket = null;
                 connectingPoint = null;
+                overlayDirty = true;
             }
             else {
                 // If a node is being hovered over, select it
@@ -346,6 +447,7 @@ public class Viewport {
                     if (hoverQuery.isOverSocket()) {
                         connectingSocket = hoverQuery.getHoveringSocket();
                         connectingPoint = graphCoord;
+                        overlayDirty = true;
                         connectingSocket.disconnect();
                     }
                     graph.selectNode(hoverQuery.getHoveringNode());
@@ -367,51 +469,56 @@ public class Viewport {
             if (newZoom > MAX_ZOOM) newZoom = MAX_ZOOM;
             if (newZoom < MIN_ZOOM) newZoom = MIN_ZOOM;
             viewportZoom = newZoom;
+            overlayDirty = true;
         });
     }
 
     /**
-     * Draw the grid in the background of the viewport.
+     * Draw the background and grid of the viewport (in graph units)
+     * covering the bounds of the layer being drawn.
      */
     private void drawGrid(GraphicsContext ctx) {
+        Bounds bounds = getLayerBounds();
+
+        // Fill background
+        ctx.setFill(Color.web("#333333"));
+        ctx.fillRect(bounds.getMinX(), bounds.getMinY(), bounds.getWidth(), bounds.getHeight());
+
         ctx.setStroke(Color.DIMGRAY);
 
-        // Get the width and height of the canvas in graph units
-        double viewportWidth  = canvas.getWidth()  / PIXELS_PER_UNIT / viewportZoom;
-        double viewportHeight = canvas.getHeight() / PIXELS_PER_UNIT / viewportZoom;
-
-        // Iterate through the units on the x-axis (that are within view) and draw vertical lines for each one
-        for (
-            int i   = (int) Math.floor(viewportCenter.getX() - viewportWidth / 2.0);
-            i       <=      Math.ceil(viewportCenter.getX()  + viewportWidth / 2.0);
-            i++
-        ) {
-            // The line through the origin is drawn thicker
-            if (i == 0)
-                ctx.setLineWidth(2.5 / PIXELS_PER_UNIT / viewportZoom);
-            else
-                ctx.setLineWidth(1.0 / PIXELS_PER_UNIT / viewportZoom);
-            ctx.strokeLine(
-                i, (viewportCenter.getY() - viewportHeight / 2.0),
-                i, (viewportCenter.getY() + viewportHeight / 2.0)
-            );
+        // Lines for each unit are all added to one path and stroked together.
+        // Lines through the origin are drawn thicker afterwards
+        ctx.setLineWidth(pixelsToGraphUnits(1.0));
+        ctx.beginPath();
+        // Iterate through the units on the x-axis (that are within bounds) and add vertical lines for each one
+        for (int i = (int) Math.floor(bounds.getMinX()); i <= Math.ceil(bounds.getMaxX()); i++) {
+            ctx.moveTo(i, bounds.getMinY());
+            ctx.lineTo(i, bounds.getMaxY());
         }
-        // Iterate through the units on the y-axis (that are within view) and draw horizontal lines for each one
-        for (
-            int i   = (int) Math.floor(viewportCenter.getY() - viewportHeight / 2.0);
-            i       <=      Math.ceil(viewportCenter.getY()  + viewportHeight / 2.0);
-            i++
-        ) {
-            // The line through the origin is drawn thicker
-            if (i == 0)
-                ctx.setLineWidth(2.5 / PIXELS_PER_UNIT / viewportZoom);
-            else
-                ctx.setLineWidth(1.0 / PIXELS_PER_UNIT / viewportZoom);
-            ctx.strokeLine(
-                (viewportCenter.getX() - viewportWidth / 2.0), i,
-                (viewportCenter.getX() + viewportWidth / 2.0), i
-            );
+        // Iterate through the units on the y-axis (that are within bounds) and add horizontal lines for each one
+        for (int i = (int) Math.floor(bounds.getMinY()); i <= Math.ceil(bounds.getMaxY()); i++) {
+            ctx.moveTo(bounds.getMinX(), i);
+            ctx.lineTo(bounds.getMaxX(), i);
         }
+        ctx.stroke();
+
+        // The lines through the origin are drawn thicker
+        ctx.setLineWidth(pixelsToGraphUnits(2.5));
+        ctx.strokeLine(0.0, bounds.getMinY(), 0.0, bounds.getMaxY());
+        ctx.strokeLine(bounds.getMinX(), 0.0, bounds.getMaxX(), 0.0);
+    }
+
+    /**
+     * Get the region of the graph (in graph units) covered by the cached layers.
+     * This is the visible region plus PAN_MARGIN on every side.
+     */
+    private Bounds getLayerBounds() {
+        Bounds visible = getVisibleBounds();
+        double margin = pixelsToGraphUnits(PAN_MARGIN);
+        return new BoundingBox(
+            visible.getMinX() - margin, visible.getMinY() - margin,
+            visible.getWidth() + 2.0 * margin, visible.getHeight() + 2.0 * margin
+        );
     }
 
     // ################################
@@ -448,6 +555,30 @@ public class Viewport {
         ctx.scale(scaleFactor, scaleFactor);
     }
 
+    /**
+     * Get the region of the graph that is currently visible on the canvas (in graph units)
+     */
+    public Bounds getVisibleBounds() {
+        double viewportWidth  = pixelsToGraphUnits(canvas.getWidth());
+        double viewportHeight = pixelsToGraphUnits(canvas.getHeight());
+        return new BoundingBox(
+            viewportCenter.getX() - viewportWidth / 2.0,
+            viewportCenter.getY() - viewportHeight / 2.0,
+            viewportWidth, viewportHeight
+        );
+    }
+
+    /**
+     * Get the font used for drawing node titles at the current zoom level.
+     * The font is only re-created when the zoom level changes.
+     */
+    public Font getTitleFont() {
+        double size = graphUnitsToPixels(GraphNode.NODE_TITLE_SIZE);
+        if (titleFont == null || titleFont.getSize() != size)
+            titleFont = new Font(size);
+        return titleFont;
+    }
+
     /**
      * Convert a length in pixels on the canvas to length
      * in graph units (at the viewport's current zoom level)
@@ -502,9 +633,10 @@ public class Viewport {
     public Pane getPane() { return pane; }
 
     /**
-     * Get the graphics context for this viewport's canvas
+     * Get the graphics context for the layer currently being drawn.
+     * (While drawing nodes, this is the context of the node layer)
      */
-    public GraphicsContext getGraphicsContext() { return canvas.getGraphicsContext2D(); }
+    public GraphicsContext getGraphicsContext() { return activeLayer.canvas.getGraphicsContext2D(); }
 
     /**
      * Get the current hover query containing information about what is 
@@ -531,6 +663,8 @@ public class Viewport {
         connectingPoint     = null;
         hoverQuery          = HoverQuery.NO_HOVER;
         prevHoverQuery      = HoverQuery.NO_HOVER;
+        drawnRevision       = -1;
+        invalidateAll();
     }
 
     // ################################
@@ -543,7 +677,90 @@ public class Viewport {
      */
     private class RedrawTimer extends AnimationTimer {
         public void handle(long now) {
+            Main.getInstance().getThumbnailCache().pump();
             redraw();
         }
     }
+
+    /**
+     * A canvas stacked underneath the viewport's main canvas that caches
+     * part of the drawing of the graph.
+     * 
+     * A layer is larger than the viewport by PAN_MARGIN on each side. When the
+     * view is panned without the layer's contents changing, the layer is just moved
+     * to line up with the view instead of being re-drawn. It is only re-drawn when it
+     * is invalidated, when the zoom level changes or when the view is panned too far.
+     */
+    private class CanvasLayer {
+
+        /**
+         * The canvas the layer is drawn on
+         */
+        private Canvas canvas;
+        /**
+         * The function that draws the layer's contents (in graph units)
+         */
+        private Consumer<GraphicsContext> painter;
+        /**
+         * If true, the layer's contents have changed and it must be re-drawn
+         */
+        private boolean dirty = true;
+        /**
+         * The viewport center and zoom at the time the layer was last drawn
+         */
+        private Point2D drawnCenter;
+        private double  drawnZoom;
+
+        /**
+         * Create a new layer in the given wrapper pane, drawn by the given painter
+         */
+        public CanvasLayer(Pane wrapper, Consumer<GraphicsContext> painter) {
+            this.painter = painter;
+            canvas = new Canvas();
+            canvas.setManaged(false);
+            canvas.setMouseTransparent(true);
+            canvas.setLayoutX(-PAN_MARGIN);
+            canvas.setLayoutY(-PAN_MARGIN);
+            canvas.widthProperty().bind(wrapper.widthProperty().add(2.0 * PAN_MARGIN));
+            canvas.heightProperty().bind(wrapper.heightProperty().add(2.0 * PAN_MARGIN));
+            wrapper.getChildren().add(canvas);
+        }
+
+        /**
+         * Mark the layer as needing to be re-drawn
+         */
+        public void invalidate() { dirty = true; }
+
+        /**
+         * Bring the layer up-to-date with the view, either by
+         * moving it or by re-drawing it.
+         */
+        public void refresh() {
+            // If possible, just move the layer to line up with the current view
+            if (!dirty && drawnZoom == viewportZoom) {
+                Point2D offset = drawnCenter.subtract(viewportCenter).multiply(PIXELS_PER_UNIT * viewportZoom);
+                if (Math.abs(offset.getX()) <= PAN_MARGIN && Math.abs(offset.getY()) <= PAN_MARGIN) {
+                    canvas.setTranslateX(offset.getX());
+                    canvas.setTranslateY(offset.getY());
+                    return;
+                }
+            }
+
+            // Otherwise re-draw the whole layer
+            GraphicsContext ctx = canvas.getGraphicsContext2D();
+            ctx.clearRect(0.0, 0.0, canvas.getWidth(), canvas.getHeight());
+            ctx.save();
+            ctx.translate(PAN_MARGIN, PAN_MARGIN);
+            transformContextToGraphSpace(ctx);
+            activeLayer = this;
+            painter.accept(ctx);
+            ctx.restore();
+
+            canvas.setTranslateX(0.0);
+            canvas.setTranslateY(0.0);
+            drawnCenter = viewportCenter;
+            drawnZoom   = viewportZoom;
+            dirty       = false;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,297 @@
+package edu.nmsu.imgflow;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * Watches an input directory and runs every image file that is dropped into it
+ * through a graph, saving the images of the graph's File OUT nodes into an output
+ * directory, until it is stopped. This is for directories that files arrive in all
+ * day, which would otherwise have to be batch processed again and again.
+ *
+ * Files are found with a WatchService, and are only processed once they are stable:
+ * once their size and last-modified time haven't changed for settleMillis, so a file
+ * that is still being written (or copied) isn't read half-written. Files that are ready
+ * at the same time are processed together as one BatchJob, so reading, processing and
+ * saving them overlap.
+ *
+ * The graph is loaded once and kept for as long as the folder is watched, so constant
+ * inputs (e.g. a watermark) are only decoded once, and nodes that only depend on them
+ * are only processed once. The output directory's BatchManifest records which files
+ * have been processed, so files that were already in the directory when watching
+ * started are only processed if their outputs are out-of-date. The manifest and the
+ * WriteBehindQueue that saves the outputs are also kept for as long as the folder is
+ * watched, so each group of files only appends to the manifest rather than reading
+ * and compacting it again.
+ *
+ * Can be run from the command line (see main()), and doesn't need the application
+ * (or a display) to be running.
+ */
+public class WatchFolder {
+
+    /**
+     * The default time (in milliseconds) a file has to stay unchanged before it is processed
+     */
+    public static final long DEFAULT_SETTLE_MILLIS = 300;
+
+    /**
+     * How often (in milliseconds) changed files are checked to see if they have settled
+     */
+    private static final long POLL_MILLIS = 50;
+
+    /**
+     * The extensions of the files that are processed
+     */
+    private static final String[] EXTENSIONS = { ".png", ".jpeg", ".jpg", ".bmp", ".gif" };
+
+    private final GraphNodeFileIn        inputNode;
+    private final List<GraphNodeFileOut> outputNodes;
+    private final File                   inputDir;
+    private final File                   outputDir;
+    private final long                   settleMillis;
+
+    /**
+     * The files that have changed but may still be being written, with their size,
+     * last-modified time and the time they were last seen to change
+     */
+    private final LinkedHashMap<File, long[]> unsettled = new LinkedHashMap<File, long[]>();
+
+    /**
+     * The files that have settled and are waiting to be processed
+     */
+    private final LinkedBlockingQueue<File> ready = new LinkedBlockingQueue<File>();
+
+    /**
+     * Whether the folder is being watched
+     */
+    private volatile boolean running = false;
+
+    /**
+     * Create a new WatchFolder that loads the files dropped into the given input directory
+     * into the given File IN node and saves the images of the given File OUT nodes into the
+     * given output directory, with the default settle time
+     */
+    public WatchFolder(GraphNodeFileIn inputNode, List<GraphNodeFileOut> outputNodes, File inputDir, File outputDir) {
+        this(inputNode, outputNodes, inputDir, outputDir, DEFAULT_SETTLE_MILLIS);
+    }
+
+    /**
+     * Create a new WatchFolder that loads the files dropped into the given input directory
+     * into the given File IN node and saves the images of the given File OUT nodes into the
+     * given output directory, processing files once they have been unchanged for settleMillis
+     */
+    public WatchFolder(GraphNodeFileIn inputNode, List<GraphNodeFileOut> outputNodes, File inputDir, File outputDir,
+            long settleMillis) {
+        this.inputNode    = inputNode;
+        this.outputNodes  = outputNodes;
+        this.inputDir     = inputDir;
+        this.outputDir    = outputDir;
+        this.settleMillis = settleMillis;
+    }
+
+    /**
+     * Watch the input directory on this thread, processing files on another thread,
+     * until stop() is called. The files already in the directory are processed first
+     * (unless their outputs are up-to-date)
+     */
+    public void run() throws IOException {
+        if (inputDir.getCanonicalFile().equals(outputDir.getCanonicalFile()))
+            throw new IOException("The output directory can't be the watched directory");
+
+        WriteBehindQueue queue = new WriteBehindQueue();
+        try (WatchService watcher = FileSystems.getDefault().newWatchService();
+                BatchManifest manifest = new BatchManifest(outputDir)) {
+            inputDir.toPath().register(watcher,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            running = true;
+            Thread processor = new Thread(() -> processFiles(manifest, queue), "Watch folder processor");
+            processor.setDaemon(true);
+            processor.start();
+            System.out.println("Watching "+inputDir.getPath()+"...");
+
+            scan();
+            try {
+                while (running) {
+                    WatchKey key = watcher.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            // Events were lost, so look at every file again
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                                scan();
+                            else
+                                changed(new File(inputDir, event.context().toString()));
+                        }
+                        if (!key.reset()) {
+                            System.out.println(inputDir.getPath()+" can no longer be watched!");
+                            break;
+                        }
+                    }
+                    settle();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                running = false;
+                // Let the files being processed finish before the manifest is closed,
+                // unless this thread was interrupted
+                boolean interrupted = false;
+                while (processor.isAlive()) {
+                    try {
+                        processor.join();
+                    } catch (InterruptedException e) {
+                        processor.interrupt();
+                        interrupted = true;
+                    }
+                }
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        } finally {
+            try {
+                queue.finish();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Stop watching the input directory. Files that are being processed are finished
+     */
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * Treat every file in the input directory as changed
+     */
+    private void scan() {
+        File[] files = inputDir.listFiles();
+        if (files != null)
+            for (File file : files)
+                changed(file);
+    }
+
+    /**
+     * Start waiting for the given file to settle, if it is an image file
+     */
+    private void changed(File file) {
+        if (isImageFile(file))
+            unsettled.put(file, new long[] { file.length(), file.lastModified(), System.currentTimeMillis() });
+    }
+
+    /**
+     * Whether the given file is named like an image file that can be processed
+     * (hidden files, e.g. those of the manifest, are not)
+     */
+    static boolean isImageFile(File file) {
+        String name = file.getName().toLowerCase();
+        if (name.startsWith("."))
+            return false;
+        for (String extension : EXTENSIONS)
+            if (name.endsWith(extension))
+                return true;
+        return false;
+    }
+
+    /**
+     * Move the files that haven't changed for settleMillis to the ready queue
+     */
+    private void settle() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<File, long[]>> entries = unsettled.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<File, long[]> entry = entries.next();
+            File file = entry.getKey();
+            long[] seen = entry.getValue();
+            if (!file.isFile()) {
+                entries.remove();
+            }
+            else if (file.length() != seen[0] || file.lastModified() != seen[1]) {
+                seen[0] = file.length();
+                seen[1] = file.lastModified();
+                seen[2] = now;
+            }
+            // Empty files have usually just been created, and are about to be written
+            else if (now - seen[2] >= settleMillis && seen[0] > 0) {
+                entries.remove();
+                ready.add(file);
+            }
+        }
+    }
+
+    /**
+     * Process the files in the ready queue as they arrive, recording their outputs in the
+     * given manifest and saving them through the given queue, until the folder stops being
+     * watched
+     */
+    private void processFiles(BatchManifest manifest, WriteBehindQueue queue) {
+        try {
+            while (running) {
+                File first = ready.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                // Process every file that is ready together
+                LinkedHashSet<File> files = new LinkedHashSet<File>();
+                files.add(first);
+                ready.drainTo(files);
+
+                long start = System.nanoTime();
+                BatchInputs inputs = new BatchInputs();
+                inputs.bindFileList(inputNode, new ArrayList<File>(files));
+                BatchJob job = new BatchJob();
+                job.addGraph(inputs, outputNodes, outputDir, manifest);
+                job.run(queue);
+                System.out.printf("Processed %d file(s) in %.0f ms%n", files.size(), (System.nanoTime() - start) / 1e6);
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    /**
+     * Main method: watches a directory with a graph. The arguments are the graph file,
+     * the directory to watch, the output directory and optionally the name of the File IN
+     * node that loads the dropped files (by default the first File IN node). The images
+     * of all of the graph's File OUT nodes are saved, and other File IN nodes keep the
+     * files they were saved with
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("Usage: WatchFolder <graph file> <input directory> <output directory> [File IN node name]");
+            return;
+        }
+        Graph graph = GraphSaveLoad.loadGraph(new File(args[0]));
+        if (graph == null)
+            return;
+
+        GraphNodeFileIn inputNode = null;
+        List<GraphNodeFileOut> outputNodes = new ArrayList<GraphNodeFileOut>();
+        for (GraphNode node : graph.getNodes()) {
+            if (node instanceof GraphNodeFileIn && inputNode == null && (args.length < 4 || node.getName().equals(args[3])))
+                inputNode = (GraphNodeFileIn)node;
+            else if (node instanceof GraphNodeFileOut)
+                outputNodes.add((GraphNodeFileOut)node);
+        }
+        if (inputNode == null || outputNodes.isEmpty()) {
+            System.out.println("The graph needs a File IN node"+(args.length < 4 ? "" : " named "+args[3])+
+                " and a File OUT node!");
+            return;
+        }
+
+        new WatchFolder(inputNode, outputNodes, new File(args[1]), new File(args[2])).run();
+    }
+}
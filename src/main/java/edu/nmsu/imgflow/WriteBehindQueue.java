@@ -0,0 +1,177 @@
+package edu.nmsu.imgflow;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.AtomicMoveNotSupportedException;
+import javafx.scene.image.Image;
+
+/**
+ * A queue of images waiting to be encoded and written to files by a few dedicated
+ * writer threads, so that the thread producing the images (e.g. a batch process
+ * evaluating a graph for each input file) doesn't have to wait on the disk.
+ *
+ * Each image is written to a temporary file in the target's directory, which is
+ * then renamed over the target (atomically, where the file system supports it), so
+ * a target file is never seen half-written.
+ *
+ * The queue holds at most maxBytes of pixel data (4 bytes per pixel). Submitting an
+ * image when the queue is full blocks until enough queued images have been written,
+ * so a producer that is faster than the disk can't use up all the memory. A single
+ * image larger than the whole budget is still accepted once the queue is empty.
+ *
+ * Images must not be written to after they are submitted. Every node creates a new
+ * image each time it updates, so the images from a graph can be submitted as they are.
+ */
+public class WriteBehindQueue {
+
+    /**
+     * The default number of writer threads
+     */
+    public static final int DEFAULT_WRITER_THREADS = 2;
+
+    /**
+     * The default most bytes of pixel data held in the queue
+     */
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * The threads that encode and write the images
+     */
+    private final ExecutorService writers;
+
+    /**
+     * The most bytes of pixel data held in the queue
+     */
+    private final long maxBytes;
+
+    /**
+     * The bytes of pixel data of the images that are queued or being written
+     */
+    private long queuedBytes = 0;
+
+    /**
+     * The number of images that are queued or being written
+     */
+    private int queuedImages = 0;
+
+    /**
+     * The number of images that could not be written
+     */
+    private int failures = 0;
+
+    /**
+     * Create a new WriteBehindQueue with the default number of writer threads and byte budget
+     */
+    public WriteBehindQueue() {
+        this(DEFAULT_WRITER_THREADS, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Create a new WriteBehindQueue with the given number of writer threads,
+     * holding at most the given number of bytes of pixel data
+     */
+    public WriteBehindQueue(int writerThreads, long maxBytes) {
+        this.maxBytes = maxBytes;
+        writers = Executors.newFixedThreadPool(Math.max(1, writerThreads), (runnable) -> {
+            Thread thread = new Thread(runnable, "Image writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queue the given image to be written to the given file in the given format
+     * with the given encoder profile (see ImageEncoder). Blocks while the queue
+     * is too full to hold the image
+     */
+    public void submit(Image image, File file, String format, String profile) throws InterruptedException {
+        submit(image, file, format, profile, null);
+    }
+
+    /**
+     * Same as submit(Image, File, String, String), but the given listener (if not
+     * null) is told on the writer thread once the image has been written or has failed
+     */
+    public void submit(Image image, File file, String format, String profile, Listener listener)
+            throws InterruptedException {
+        long size = 4L * (long)image.getWidth() * (long)image.getHeight();
+        synchronized (this) {
+            while (queuedImages > 0 && queuedBytes + size > maxBytes)
+                wait();
+            queuedBytes += size;
+            queuedImages++;
+        }
+
+        writers.execute(() -> {
+            boolean succeeded = false;
+            try {
+                write(image, file, format, profile);
+                succeeded = true;
+            } catch (Exception e) {
+                System.out.println("Error saving "+file.getName()+"!");
+                System.out.println(e.getMessage());
+                synchronized (this) {
+                    failures++;
+                }
+            } finally {
+                if (listener != null)
+                    listener.written(file, succeeded);
+                synchronized (this) {
+                    queuedBytes -= size;
+                    queuedImages--;
+                    notifyAll();
+                }
+            }
+        });
+    }
+
+    /**
+     * Wait until every queued image has been written, then stop the writer
+     * threads. Returns the number of images that could not be written.
+     * No more images can be submitted afterwards
+     */
+    public int finish() throws InterruptedException {
+        writers.shutdown();
+        writers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        synchronized (this) {
+            return failures;
+        }
+    }
+
+    /**
+     * A listener told when a queued image has been written
+     */
+    public interface Listener {
+        /**
+         * Respond to the image for the given file having been written
+         * (if succeeded is true) or having failed to be written
+         */
+        public void written(File file, boolean succeeded);
+    }
+
+    /**
+     * Write the given image to a temporary file next to the given
+     * file, then move the temporary file over the given file
+     */
+    private static void write(Image image, File file, String format, String profile) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile("."+file.getName()+"-", ".tmp", dir);
+        try {
+            ImageEncoder.write(image, temp, format, profile);
+            try {
+                Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            // Only still there if something went wrong
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+}
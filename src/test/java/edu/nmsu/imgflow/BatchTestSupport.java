@@ -0,0 +1,98 @@
+package edu.nmsu.imgflow;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Helpers for the tests that run batches in several processes: input images,
+ * a File IN -> Resize -> File OUT graph, launching processes and checking outputs
+ */
+class BatchTestSupport {
+
+    /**
+     * A graph that shrinks its input to 50x50 and saves it
+     */
+    static final String GRAPH =
+        "0\nfilein\n0.0\n0.0\n1 0\nInput\nnull\n\n"+
+        "1\nresize\n1.0\n0.0\n2 0\nHalf\n50\n50\n\n"+
+        "2\nfileout\n2.0\n0.0\nOutput\nnull\n";
+
+    /**
+     * Write the given number of noisy PNG images of the given size into the given directory
+     */
+    static List<File> writeImages(File dir, int count, int size) throws IOException {
+        dir.mkdirs();
+        Random random = new Random(count);
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < count; i++) {
+            BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+            for (int y = 0; y < size; y++)
+                for (int x = 0; x < size; x++)
+                    image.setRGB(x, y, 0xff000000 | random.nextInt(0x1000000));
+            File file = new File(dir, String.format("image%03d.png", i));
+            ImageIO.write(image, "png", file);
+            files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * Write the test graph into the given file
+     */
+    static File writeGraph(File file) throws IOException {
+        Files.write(file.toPath(), GRAPH.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    /**
+     * Start a new JVM running the main method of the given class with the given
+     * arguments, on this JVM's class path, with its output going to the given file
+     */
+    static Process launch(Class<?> main, File log, String... args) throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home")+File.separator+"bin"+File.separator+"java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(main.getName());
+        Collections.addAll(command, args);
+        return new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+    }
+
+    /**
+     * Check that every input file has an output in the given output directory, that the
+     * directory's manifest records every output as up-to-date, and that no manifest
+     * shards are left over
+     */
+    static void assertComplete(File graphFile, List<File> inputs, File outputDir) throws IOException {
+        Graph graph = GraphSaveLoad.loadGraph(graphFile);
+        GraphNodeFileIn inputNode = ShardedBatch.findInputNode(graph);
+        GraphNodeFileOut outputNode = ShardedBatch.findOutputNodes(graph).get(0);
+        String graphHash = BatchManifest.hashGraph(outputNode, Collections.singletonList(inputNode));
+
+        String[] shards = outputDir.list((dir, name) -> name.startsWith(BatchManifest.FILE_NAME+"."));
+        assertEquals("Manifest shards left over", 0, shards.length);
+
+        BatchManifest manifest = new BatchManifest(outputDir);
+        try {
+            for (File input : inputs) {
+                File output = outputNode.getBatchFile(outputDir, BatchInputs.getStem(input));
+                assertTrue("Missing "+output.getName(), output.isFile());
+                assertTrue("Not in the manifest: "+output.getName(),
+                    manifest.isUpToDate(Collections.singletonList(input), graphHash, output));
+            }
+        } finally {
+            manifest.close();
+        }
+    }
+}
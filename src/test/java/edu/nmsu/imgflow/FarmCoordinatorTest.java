@@ -0,0 +1,107 @@
+package edu.nmsu.imgflow;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a render farm job on several worker JVMs on this machine
+ */
+public class FarmCoordinatorTest {
+
+    private static final int IMAGES = 40;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private FarmCoordinator coordinator;
+    private List<Process> workers;
+
+    @After
+    public void stop() {
+        if (workers != null)
+            for (Process worker : workers)
+                worker.destroyForcibly();
+        if (coordinator != null)
+            coordinator.stop();
+    }
+
+    /**
+     * A worker killed part-way through has its items processed by the
+     * others, and the job still ends with every output and one manifest
+     */
+    @Test
+    public void lostWorkersItemsAreReassigned() throws Exception {
+        List<File> inputs = BatchTestSupport.writeImages(temp.newFolder("in"), IMAGES, 400);
+        File graph  = BatchTestSupport.writeGraph(temp.newFile("graph.imgflow"));
+        File output = new File(temp.getRoot(), "out");
+        byte[] source = Files.readAllBytes(graph.toPath());
+
+        coordinator = new FarmCoordinator(0, 2000);
+        coordinator.start();
+        workers = coordinator.launchLocalWorkers(3, 1);
+
+        CompletableFuture<int[]> result = CompletableFuture.supplyAsync(() -> {
+            try {
+                return FarmCoordinator.submitRemote(InetAddress.getLoopbackAddress().getHostAddress(),
+                    coordinator.getPort(), source, inputs, output);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        // Kill a worker once the job is under way
+        long deadline = System.currentTimeMillis() + 60000;
+        while (countOutputs(output) < 3 && !result.isDone() && System.currentTimeMillis() < deadline)
+            Thread.sleep(20);
+        workers.get(0).destroyForcibly();
+
+        assertArrayEquals(new int[] { IMAGES, 0 }, result.get(2, TimeUnit.MINUTES));
+        BatchTestSupport.assertComplete(graph, inputs, output);
+    }
+
+    /**
+     * Finishing a job only merges its own manifest shards, not those of
+     * another job still saving into the same directory
+     */
+    @Test
+    public void otherJobsShardsAreLeftAlone() throws Exception {
+        List<File> inputs = BatchTestSupport.writeImages(temp.newFolder("in"), 4, 100);
+        File graph  = BatchTestSupport.writeGraph(temp.newFile("graph.imgflow"));
+        File output = temp.newFolder("out");
+        byte[] source = Files.readAllBytes(graph.toPath());
+        File otherShard = new File(output, BatchManifest.FILE_NAME+".other-worker-1000");
+        Files.write(otherShard.toPath(), new byte[0]);
+
+        coordinator = new FarmCoordinator(0, 2000);
+        coordinator.start();
+        workers = coordinator.launchLocalWorkers(1, 1);
+
+        assertArrayEquals(new int[] { 4, 0 }, FarmCoordinator.submitRemote(
+            InetAddress.getLoopbackAddress().getHostAddress(), coordinator.getPort(), source, inputs, output));
+        assertTrue("Another job's shard was merged", otherShard.isFile());
+        Files.delete(otherShard.toPath());
+        BatchTestSupport.assertComplete(graph, inputs, output);
+    }
+
+    /**
+     * Count the PNG files in the given directory
+     */
+    private static int countOutputs(File dir) {
+        String[] names = dir.list((parent, name) -> name.endsWith(".png"));
+        return names == null ? 0 : names.length;
+    }
+}
@@ -0,0 +1,133 @@
+package edu.nmsu.imgflow;
+
+import java.util.Random;
+import java.io.StringWriter;
+import java.io.StringReader;
+import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import javafx.geometry.Point2D;
+
+/**
+ * Command-line benchmark for saving and loading large graphs with GraphSaveLoad.
+ *
+ * Generates graphs of increasing size (10,000 to 100,000 nodes by default, or the
+ * node counts given as arguments), connects each node to a few nodes further down
+ * the graph, then times saving each graph and loading it back, in both the plaintext
+ * and the binary format. Does
+ * not need the application (or a display) to be running.
+ *
+ * Kept with the tests so it isn't part of the application; run it from the
+ * test classpath (e.g. after mvn test-compile). It isn't run as a test.
+ */
+public abstract class GraphSaveLoadBenchmark {
+
+    /**
+     * The node counts that are benchmarked if none are given as arguments
+     */
+    private static final int[] DEFAULT_SIZES = { 10000, 25000, 50000, 100000 };
+
+    /**
+     * The node types the generated graphs are built from
+     */
+    private static final String[] NODE_TYPES = {
+        "rectangle", "invert", "opacity", "coloreffects", "resize", "composite", "matte", "fileout"
+    };
+
+    /**
+     * How many nodes further down the graph a connection can reach
+     */
+    private static final int MAX_CONNECTION_DISTANCE = 8;
+
+    /**
+     * Main method: Runs the benchmark for each of the given node counts
+     */
+    public static void main(String[] args) throws IOException {
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                sizes[i] = Integer.parseInt(args[i]);
+        }
+
+        for (int size : sizes) {
+            Graph graph = generateGraph(size, new Random(size));
+
+            long start = System.nanoTime();
+            StringWriter writer = new StringWriter();
+            GraphSaveLoad.saveGraph(graph, writer);
+            String text = writer.toString();
+            long saved = System.nanoTime();
+            Graph loaded = GraphSaveLoad.loadGraph(new StringReader(text));
+            long loadedTime = System.nanoTime();
+
+            System.out.printf("%7d nodes, text:   save %7.1f ms, load %7.1f ms (%d bytes, %d/%d connections loaded)%n",
+                size,
+                (saved - start) / 1e6,
+                (loadedTime - saved) / 1e6,
+                text.getBytes("UTF-8").length,
+                countConnections(loaded),
+                countConnections(graph)
+            );
+
+            start = System.nanoTime();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            GraphSaveLoad.saveGraphBinary(graph, bytes);
+            byte[] binary = bytes.toByteArray();
+            saved = System.nanoTime();
+            loaded = GraphSaveLoad.loadGraph(new ByteArrayInputStream(binary));
+            loadedTime = System.nanoTime();
+
+            System.out.printf("%7d nodes, binary: save %7.1f ms, load %7.1f ms (%d bytes, %d/%d connections loaded)%n",
+                size,
+                (saved - start) / 1e6,
+                (loadedTime - saved) / 1e6,
+                binary.length,
+                countConnections(loaded),
+                countConnections(graph)
+            );
+        }
+    }
+
+    /**
+     * Count the connected output sockets in the given graph
+     */
+    private static int countConnections(Graph graph) {
+        int count = 0;
+        for (GraphNode node : graph.getNodes())
+            for (NodeSocketOutput output : node.getOutputSockets())
+                if (output.getConnectingSocket() != null)
+                    count++;
+        return count;
+    }
+
+    /**
+     * Generate a graph with the given number of nodes. Each output socket
+     * is connected to a free input socket on one of the next few nodes
+     * (if one is free), so the graph never contains a loop.
+     */
+    public static Graph generateGraph(int size, Random random) {
+        Graph graph = new Graph();
+        GraphNode[] nodes = new GraphNode[size];
+        for (int i = 0; i < size; i++) {
+            nodes[i] = NodeFactory.createNode(NODE_TYPES[random.nextInt(NODE_TYPES.length)]);
+            nodes[i].setPosition(new Point2D((i % 100) * 2.5, (i / 100) * 2.5));
+            graph.addNode(nodes[i]);
+        }
+
+        for (int i = 0; i < size; i++) {
+            for (NodeSocketOutput output : nodes[i].getOutputSockets()) {
+                int target = i + 1 + random.nextInt(MAX_CONNECTION_DISTANCE);
+                if (target >= size)
+                    continue;
+                for (NodeSocketInput input : nodes[target].getInputSockkets()) {
+                    if (input.getConnectingSocket() == null) {
+                        output.connect(input);
+                        break;
+                    }
+                }
+            }
+        }
+        return graph;
+    }
+}
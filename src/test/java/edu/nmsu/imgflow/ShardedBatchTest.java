@@ -0,0 +1,122 @@
+package edu.nmsu.imgflow;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a sharded batch in several JVMs against a temporary directory
+ */
+public class ShardedBatchTest {
+
+    private static final int WORKERS = 3;
+    private static final int IMAGES  = 30;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    /**
+     * Every input is processed exactly once between the workers, and the
+     * batch ends with one complete manifest and no lease directory
+     */
+    @Test
+    public void workersShareTheBatch() throws Exception {
+        List<File> inputs = BatchTestSupport.writeImages(temp.newFolder("in"), IMAGES, 200);
+        File graph  = BatchTestSupport.writeGraph(temp.newFile("graph.imgflow"));
+        File output = new File(temp.getRoot(), "out");
+
+        Process[] workers = new Process[WORKERS];
+        File[] logs = new File[WORKERS];
+        for (int w = 0; w < WORKERS; w++) {
+            logs[w] = temp.newFile("worker"+w+".log");
+            workers[w] = BatchTestSupport.launch(ShardedBatch.class, logs[w], graph.getPath(),
+                inputs.get(0).getParent(), output.getPath(), "worker"+w, "10");
+        }
+
+        int processed = 0;
+        Pattern summary = Pattern.compile("processed (\\d+) of "+IMAGES+" file");
+        for (int w = 0; w < WORKERS; w++) {
+            assertTrue("Worker "+w+" timed out", workers[w].waitFor(2, TimeUnit.MINUTES));
+            String log = readLog(logs[w]);
+            assertEquals("Worker "+w+" failed:\n"+log, 0, workers[w].exitValue());
+            Matcher matcher = summary.matcher(log);
+            assertTrue("No summary from worker "+w+":\n"+log, matcher.find());
+            processed += Integer.parseInt(matcher.group(1));
+        }
+
+        // Workers that finish early must not start the batch again
+        assertEquals(IMAGES, processed);
+        assertFalse(new File(output, ShardedBatch.LEASE_DIR_NAME).exists());
+        BatchTestSupport.assertComplete(graph, inputs, output);
+    }
+
+    /**
+     * A worker that starts after the batch has finished (e.g. on a slower host)
+     * saves nothing and doesn't start the batch again
+     */
+    @Test
+    public void lateWorkerFindsBatchDone() throws Exception {
+        List<File> inputs = BatchTestSupport.writeImages(temp.newFolder("in"), 5, 50);
+        File graph  = BatchTestSupport.writeGraph(temp.newFile("graph.imgflow"));
+        File output = new File(temp.getRoot(), "out");
+
+        for (int run = 0; run < 2; run++) {
+            File log = temp.newFile("run"+run+".log");
+            Process worker = BatchTestSupport.launch(ShardedBatch.class, log, graph.getPath(),
+                inputs.get(0).getParent(), output.getPath(), "worker"+run, "10");
+            assertTrue(worker.waitFor(1, TimeUnit.MINUTES));
+            String text = readLog(log);
+            assertEquals(text, 0, worker.exitValue());
+            assertTrue(text, text.contains("processed "+(run == 0 ? inputs.size() : 0)+" of "+inputs.size()+" file"));
+            if (run == 1)
+                assertTrue(text, text.contains("Every output is already up-to-date."));
+            assertFalse(new File(output, ShardedBatch.LEASE_DIR_NAME).exists());
+        }
+        BatchTestSupport.assertComplete(graph, inputs, output);
+    }
+
+    /**
+     * Input files with the same name in different directories each get their own
+     * outputs, even when different workers process them
+     */
+    @Test
+    public void sameNamedInputsDontCollide() throws Exception {
+        List<File> inputs = BatchTestSupport.writeImages(temp.newFolder("x"), 6, 50);
+        inputs.addAll(BatchTestSupport.writeImages(temp.newFolder("y"), 6, 50));
+        File list = temp.newFile("inputs.txt");
+        StringBuilder paths = new StringBuilder();
+        for (File input : inputs)
+            paths.append(input.getAbsolutePath()).append('\n');
+        Files.write(list.toPath(), paths.toString().getBytes(StandardCharsets.UTF_8));
+        File graph  = BatchTestSupport.writeGraph(temp.newFile("graph.imgflow"));
+        File output = new File(temp.getRoot(), "out");
+
+        Process[] workers = new Process[2];
+        for (int w = 0; w < workers.length; w++)
+            workers[w] = BatchTestSupport.launch(ShardedBatch.class, temp.newFile("worker"+w+".log"),
+                graph.getPath(), list.getPath(), output.getPath(), "worker"+w, "10");
+        for (Process worker : workers) {
+            assertTrue(worker.waitFor(1, TimeUnit.MINUTES));
+            assertEquals(0, worker.exitValue());
+        }
+        String[] outputs = output.list((dir, name) -> name.endsWith(".png"));
+        assertEquals(inputs.size(), outputs.length);
+    }
+
+    private static String readLog(File log) throws IOException {
+        return new String(Files.readAllBytes(log.toPath()), StandardCharsets.UTF_8);
+    }
+}